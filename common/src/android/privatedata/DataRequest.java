@@ -35,6 +35,9 @@ import android.os.ResultReceiver;
  * @author      Irwin Reyes <irwin.reyes@twosixlabs.com>
  */
 public class DataRequest {
+    /** The request has no deadline. */
+    public static final long NO_TIMEOUT = 0l;
+
     private Context mContext;
     private DataType mDataType;
     private Bundle mDataTypeExtras;
@@ -42,6 +45,7 @@ public class DataRequest {
     private Bundle mPalExtras;
     private Purpose mPurpose;
     private ResultReceiver mReceiver;
+    private long mTimeoutMillis = NO_TIMEOUT;
 
     /**
      *  @param context          The context from where this request originated.
@@ -102,6 +106,24 @@ public class DataRequest {
         return mReceiver;
     }
 
+    /**
+     *  Set a deadline for the whole request: the policy decision, acquiring
+     *  the data and processing it in the PAL. If the request has not
+     *  completed when it passes, the work still in progress is cancelled and
+     *  the receiver gets PrivateDataManager.RESULT_TIMED_OUT. For continuous
+     *  requests, results delivered before the deadline stand.
+     *  @param timeoutMillis    Time from sending the request, or NO_TIMEOUT.
+     *  @return this request
+     */
+    public DataRequest setTimeoutMillis(long timeoutMillis) {
+        mTimeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public long getTimeoutMillis() {
+        return mTimeoutMillis;
+    }
+
     // NOTE(irwin): There could be a better way to represent data type selection.
     //              Might be ideal to use the same representation here and in the
     //              PAL so we can check if they match.
@@ -269,22 +291,33 @@ public class DataRequest {
     }
 
     /**
-     * Helper class to generate paramter Bundle for location requests
+     * Helper class to generate paramter Bundle for location requests. In
+     * continuous update mode, the timeout is how long updates are delivered
+     * for, and the update interval and batching parameters are optional.
      */
     public static class LocationParamsBuilder {
 
         public static final String UPDATE_MODE = "update_mode";
         public static final String UPDATE_TIMEOUT_MILLIS = "update_timeout_millis";
         public static final String PROVIDER = "provider";
+        /** Requested time between location fixes in continuous update mode */
+        public static final String UPDATE_INTERVAL_MILLIS = "update_interval_millis";
+        /** Number of fixes delivered together in continuous update mode */
+        public static final String BATCH_SIZE = "batch_size";
+        /** Longest time a fix is held back before its batch is delivered in continuous update mode */
+        public static final String BATCH_MILLIS = "batch_millis";
 
         public static final String MODE_LAST_LOCATION = "last_location";
         public static final String MODE_SINGLE_UPDATE = "single_update";
-        //public static final String MODE_CONTINUOUS_UPDATE = "continuous_update";
+        public static final String MODE_CONTINUOUS_UPDATE = "continuous_update";
         public static final String MODE_UNSET = "unset";
 
         private String mMode = MODE_UNSET;
         private String mProvider = null;
         private int mTimeout = -1;
+        private long mIntervalMillis = -1l;
+        private int mBatchSize = -1;
+        private long mBatchMillis = -1l;
 
         public LocationParamsBuilder setUpdateMode(String mode) {
             mMode = mode;
@@ -301,32 +334,197 @@ public class DataRequest {
             return this;
         }
 
+        public LocationParamsBuilder setUpdateIntervalMillis(long intervalMillis) {
+            mIntervalMillis = intervalMillis;
+            return this;
+        }
+
+        public LocationParamsBuilder setBatchSize(int batchSize) {
+            mBatchSize = batchSize;
+            return this;
+        }
+
+        public LocationParamsBuilder setBatchMillis(long batchMillis) {
+            mBatchMillis = batchMillis;
+            return this;
+        }
+
         public Bundle build() {
             Bundle params = new Bundle();
             params.putString(UPDATE_MODE, mMode);
             params.putInt(UPDATE_TIMEOUT_MILLIS, mTimeout);
             params.putString(PROVIDER, mProvider);
+            if(mIntervalMillis >= 0l) {
+                params.putLong(UPDATE_INTERVAL_MILLIS, mIntervalMillis);
+            }
+            if(mBatchSize > 0) {
+                params.putInt(BATCH_SIZE, mBatchSize);
+            }
+            if(mBatchMillis > 0l) {
+                params.putLong(BATCH_MILLIS, mBatchMillis);
+            }
             return params;
         }
     }
 
     /**
-     * Helper class to generate parameter Bundle for message requests
+     * Helper class to generate parameter Bundle for phone state requests. By
+     * default a single snapshot of the device state is returned. In subscribe
+     * mode, the state is delivered whenever it changes meaningfully, for as
+     * long as the timeout: the signal level must move by at least the
+     * threshold, or another field must change, and a change is only delivered
+     * if it still stands once the debounce time has passed.
+     */
+    public static class PhoneStateParamsBuilder {
+
+        public static final String UPDATE_MODE = "update_mode";
+        public static final String UPDATE_TIMEOUT_MILLIS = "update_timeout_millis";
+        /** Smallest change of the signal level that is delivered in subscribe mode */
+        public static final String SIGNAL_LEVEL_THRESHOLD = "signal_level_threshold";
+        /** Time a change must stand before it is delivered in subscribe mode */
+        public static final String DEBOUNCE_MILLIS = "debounce_millis";
+
+        public static final String MODE_SNAPSHOT = "snapshot";
+        public static final String MODE_SUBSCRIBE = "subscribe";
+
+        private String mMode = MODE_SNAPSHOT;
+        private int mTimeout = -1;
+        private int mSignalLevelThreshold = -1;
+        private long mDebounceMillis = -1l;
+
+        public PhoneStateParamsBuilder setUpdateMode(String mode) {
+            mMode = mode;
+            return this;
+        }
+
+        public PhoneStateParamsBuilder setTimeoutMillis(int timeout) {
+            mTimeout = timeout;
+            return this;
+        }
+
+        public PhoneStateParamsBuilder setSignalLevelThreshold(int threshold) {
+            mSignalLevelThreshold = threshold;
+            return this;
+        }
+
+        public PhoneStateParamsBuilder setDebounceMillis(long debounceMillis) {
+            mDebounceMillis = debounceMillis;
+            return this;
+        }
+
+        public Bundle build() {
+            Bundle params = new Bundle();
+            params.putString(UPDATE_MODE, mMode);
+            params.putInt(UPDATE_TIMEOUT_MILLIS, mTimeout);
+            if(mSignalLevelThreshold > 0) {
+                params.putInt(SIGNAL_LEVEL_THRESHOLD, mSignalLevelThreshold);
+            }
+            if(mDebounceMillis >= 0l) {
+                params.putLong(DEBOUNCE_MILLIS, mDebounceMillis);
+            }
+            return params;
+        }
+    }
+
+    /**
+     * Helper class to generate parameter Bundle for message requests. The
+     * message type and contact filters are optional, and are applied by the
+     * database rather than after reading every message.
      */
     public static class MessageParamsBuilder extends TimeParamsBuilder {
+
+        /** Only return messages of this type, "received" or "sent" (MessageItem.TYPE_*) */
+        public static final String MESSAGE_TYPE = "message_type";
+        /** Only return messages to or from this address, as stored by the SMS provider */
+        public static final String CONTACT_NUMBER = "contact_number";
+
+        private String mMessageType = null;
+        private String mContactNumber = null;
+
+        public MessageParamsBuilder setMessageType(String messageType) {
+            mMessageType = messageType;
+            return this;
+        }
+
+        public MessageParamsBuilder setContactNumber(String contactNumber) {
+            mContactNumber = contactNumber;
+            return this;
+        }
+
+        @Override
+        public Bundle build() {
+            Bundle params = super.build();
+            if(mMessageType != null) {
+                params.putString(MESSAGE_TYPE, mMessageType);
+            }
+            if(mContactNumber != null) {
+                params.putString(CONTACT_NUMBER, mContactNumber);
+            }
+            return params;
+        }
     }
 
     /**
-     * Helepr class to generate parameter Bundle for calendar requests
+     * Helepr class to generate parameter Bundle for calendar requests. The
+     * calendar filter is optional.
      */
     public static class CalendarParamsBuilder extends TimeParamsBuilder {
+
+        /** Only return events from the calendar with this ID */
+        public static final String CALENDAR_ID = "calendar_id";
+
+        private long mCalendarId = -1l;
+
+        public CalendarParamsBuilder setCalendarId(long calendarId) {
+            mCalendarId = calendarId;
+            return this;
+        }
+
+        @Override
+        public Bundle build() {
+            Bundle params = super.build();
+            if(mCalendarId >= 0l) {
+                params.putLong(CALENDAR_ID, mCalendarId);
+            }
+            return params;
+        }
     }
 
     /**
-     *
+     * Helper class to generate parameter Bundle for call log requests. The
+     * call type and contact filters are optional.
      */
-
     public static class CallParamsBuilder extends TimeParamsBuilder {
+
+        /** Only return calls of this type, "incoming", "outgoing" or "missed" (CallItem.TYPE_*) */
+        public static final String CALL_TYPE = "call_type";
+        /** Only return calls to or from this number, as stored in the call log */
+        public static final String CONTACT_NUMBER = "contact_number";
+
+        private String mCallType = null;
+        private String mContactNumber = null;
+
+        public CallParamsBuilder setCallType(String callType) {
+            mCallType = callType;
+            return this;
+        }
+
+        public CallParamsBuilder setContactNumber(String contactNumber) {
+            mContactNumber = contactNumber;
+            return this;
+        }
+
+        @Override
+        public Bundle build() {
+            Bundle params = super.build();
+            if(mCallType != null) {
+                params.putString(CALL_TYPE, mCallType);
+            }
+            if(mContactNumber != null) {
+                params.putString(CONTACT_NUMBER, mContactNumber);
+            }
+            return params;
+        }
     }
 
     public static class TimeParamsBuilder {
@@ -0,0 +1,143 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+/**
+ * Options for a single acquisition of private data by an {@link ItemProvider}:
+ * the fields to acquire, whether a list should be streamed in chunks rather
+ * than returned at once, and the signal that cancels the acquisition, e.g.
+ * when its request is cancelled or runs past its deadline. Providers pass
+ * the signal to their content queries and stop long-running work once it
+ * is cancelled.
+ */
+public final class AcquisitionOptions {
+    /** Acquire every field and return the data at once. */
+    public static final AcquisitionOptions DEFAULT = new AcquisitionOptions(FieldProjection.ALL);
+
+    private final FieldProjection mProjection;
+    private final int mChunkSize;
+    private final ColumnarListItem.ChunkSink mChunkSink;
+    private final CancellationSignal mCancellationSignal;
+
+    /**
+     * @param projection the fields to acquire
+     */
+    public AcquisitionOptions(FieldProjection projection) {
+        this(projection, 0, null, null);
+    }
+
+    /**
+     * @param projection         the fields to acquire
+     * @param cancellationSignal cancels the acquisition, or null
+     */
+    public AcquisitionOptions(FieldProjection projection, CancellationSignal cancellationSignal) {
+        this(projection, 0, null, cancellationSignal);
+    }
+
+    /**
+     * @param projection the fields to acquire
+     * @param chunkSize  the number of items in a streamed chunk
+     * @param chunkSink  the receiver of the streamed chunks
+     */
+    public AcquisitionOptions(FieldProjection projection, int chunkSize, ColumnarListItem.ChunkSink chunkSink) {
+        this(projection, chunkSize, chunkSink, null);
+    }
+
+    /**
+     * @param projection         the fields to acquire
+     * @param chunkSize          the number of items in a streamed chunk
+     * @param chunkSink          the receiver of the streamed chunks
+     * @param cancellationSignal cancels the acquisition, or null
+     */
+    public AcquisitionOptions(FieldProjection projection, int chunkSize, ColumnarListItem.ChunkSink chunkSink,
+                              CancellationSignal cancellationSignal) {
+        mProjection = projection;
+        mChunkSize = chunkSize;
+        mChunkSink = chunkSink;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    public FieldProjection getProjection() {
+        return mProjection;
+    }
+
+    public boolean isStreaming() {
+        return mChunkSink != null;
+    }
+
+    /**
+     * Get the signal to pass to content queries.
+     * @return the signal, or null if the acquisition cannot be cancelled
+     */
+    public CancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    public boolean isCanceled() {
+        return mCancellationSignal != null && mCancellationSignal.isCanceled();
+    }
+
+    /**
+     * Stop an acquisition that was cancelled, e.g. between rows or batches.
+     * @throws OperationCanceledException if the acquisition was cancelled
+     */
+    public void throwIfCanceled() {
+        if (mCancellationSignal != null) {
+            mCancellationSignal.throwIfCanceled();
+        }
+    }
+
+    /**
+     * Set up a list builder for these options. When streaming, the builder hands
+     * each full chunk to the sink, and only the last chunk is returned by the provider.
+     * @param builder the list builder
+     * @return the builder
+     */
+    public <T extends Item> ColumnarListItem.Builder<T> prepare(ColumnarListItem.Builder<T> builder) {
+        if (mChunkSink != null) {
+            builder.setChunkSink(mChunkSize, (ColumnarListItem.ChunkSink<T>) mChunkSink);
+        }
+        return builder;
+    }
+
+    /**
+     * Set up a list builder for these options, with a chunk size chosen by the
+     * provider rather than the caller, e.g. a batch size requested in the params.
+     * @param builder   the list builder
+     * @param chunkSize the number of items in a streamed chunk
+     * @return the builder
+     */
+    public <T extends Item> ColumnarListItem.Builder<T> prepare(ColumnarListItem.Builder<T> builder, int chunkSize) {
+        if (mChunkSink != null) {
+            builder.setChunkSink(chunkSize, (ColumnarListItem.ChunkSink<T>) mChunkSink);
+        }
+        return builder;
+    }
+}
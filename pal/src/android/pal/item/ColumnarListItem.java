@@ -0,0 +1,1227 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.os.BadParcelableException;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.pal.item.utils.CompactReader;
+import android.pal.item.utils.CompactWriter;
+import android.pal.item.utils.ContentHasher;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A list item that stores its items column by column instead of as one
+ * Bundle per item. Each field is kept in a single primitive array, and String
+ * fields are dictionary-encoded, so a large history result marshals as a
+ * handful of arrays.
+ *
+ * On the wire the list is a versioned compact payload: a single string table
+ * shared by field names and all String values, a schema header naming each
+ * column and its type, then the columns themselves, with long columns delta
+ * and varint encoded. The header also records the byte length of each column,
+ * so a received list only decodes a column, or a String in the table, the
+ * first time it is read. It also names the long column, if any, that the rows
+ * are sorted by, so that ranges can be found by binary search. Fields a PAL
+ * never touches, e.g. message bodies, are never materialized.
+ *
+ * Unlike other items, a list may be read from several threads, e.g. once it
+ * is frozen and shared by a cache. Lazily decoded columns and lookup tables
+ * are built in full before they are published, so a thread never sees them
+ * half built. Two threads decoding the same value at once just both decode it.
+ *
+ * Items are read back through row views, which are regular instances of the
+ * stored item type backed by a {@link FieldSource}, so their getters keep
+ * working as usual.
+ *
+ * An item type can be stored in a ColumnarListItem if it declares a public
+ * static {@link RowCreator} field named {@code ROW_CREATOR}.
+ */
+public class ColumnarListItem<T extends Item> extends ListItem<T> {
+
+    private static final String TAG = "ColumnarListItem";
+
+    public static final int COLUMN_LONG = 1;
+    public static final int COLUMN_INT = 2;
+    public static final int COLUMN_DOUBLE = 3;
+    public static final int COLUMN_FLOAT = 4;
+    public static final int COLUMN_BOOLEAN = 5;
+    public static final int COLUMN_STRING = 6;
+
+    /** Dictionary code of a null String value. */
+    private static final int NULL_STRING = -1;
+
+    /** Version of the compact payload encoding. */
+    private static final int WIRE_VERSION = 3;
+
+    /** Longest encoding of a varint, in bytes. */
+    private static final int MAX_VARINT_SIZE = 10;
+
+    /** Generous size of everything parcelled ahead of the payload, apart from the row class name. */
+    private static final int PARCEL_HEADER_SIZE = 512;
+
+    /** Column index of a list that is not sorted. */
+    private static final int NOT_SORTED = -1;
+
+    /**
+     * Creates row views of an item type.
+     */
+    public interface RowCreator<T extends Item> {
+        /**
+         * Create an item backed by a row of the list.
+         * @param row the field values of the row
+         * @return the item
+         */
+        T createRow(FieldSource row);
+    }
+
+    /**
+     * Receives the chunks of a list built in streaming mode.
+     */
+    public interface ChunkSink<T extends Item> {
+        /**
+         * Called each time the builder has accumulated a full chunk of rows.
+         * @param chunk the rows of the chunk
+         */
+        void onChunk(ColumnarListItem<T> chunk);
+    }
+
+    private static final HashMap<String, RowCreator<?>> sRowCreators = new HashMap<>();
+
+    private String mRowClassName;
+    private RowCreator<T> mRowCreator;
+    private int mSize;
+    private String[] mFieldNames;
+    private int[] mColumnTypes;
+    private AtomicReferenceArray<Object> mColumns;
+    private String[] mStrings;
+    private int[] mNameCodes;
+    private int mSortedColumn = NOT_SORTED;
+
+    /*
+     * Encoded payload, kept once encoded or received, and its offset index;
+     * columns and Strings of a received payload are decoded on first access,
+     * each with a reader of its own. Decoded Strings are immutable, so they
+     * need no further publication. The payload may be a shared memory mapping.
+     */
+    private volatile ByteBuffer mPayload;
+    private int[] mStringOffsets;
+    private int[] mColumnOffsets;
+    private int[] mColumnEnds;
+
+    private volatile HashMap<String, Integer> mColumnIndex;
+    private volatile Set<String> mFieldNameSet;
+    private volatile ArrayList<T> mRows;
+
+    private ColumnarListItem(Builder<T> builder) {
+        super();
+        mRowClassName = builder.mRowClass.getName();
+        mRowCreator = getRowCreator(mRowClassName);
+        mSize = builder.mSize;
+
+        // Columns left out by the builder's projection are dropped
+        int numColumns = 0;
+        for (Object column : builder.mColumns) {
+            if (column != null) {
+                numColumns++;
+            }
+        }
+        mFieldNames = new String[numColumns];
+        mColumnTypes = new int[numColumns];
+        mColumns = new AtomicReferenceArray<>(numColumns);
+        mNameCodes = new int[numColumns];
+        int i = 0;
+        for (int column = 0; column < builder.mColumns.size(); column++) {
+            if (builder.mColumns.get(column) == null) {
+                continue;
+            }
+            mFieldNames[i] = builder.mFieldNames.get(column);
+            mColumnTypes[i] = builder.mColumnTypes.get(column);
+            mColumns.set(i, resize(builder.mColumns.get(column), mColumnTypes[i], mSize));
+            mNameCodes[i] = builder.mNameCodes.get(column);
+            if (column == builder.mSortedColumn) {
+                mSortedColumn = isAscending((long[]) mColumns.get(i), mSize) ? i : NOT_SORTED;
+                if (mSortedColumn == NOT_SORTED) {
+                    Log.w(TAG, "Rows are not sorted by " + mFieldNames[i] + " as declared");
+                }
+            }
+            i++;
+        }
+        mStrings = builder.mStrings.toArray(new String[builder.mStrings.size()]);
+    }
+
+    /**
+     * Get the number of items in the list.
+     * @return the number of stored items
+     */
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Estimate the parcelled size of the list without encoding it, from the
+     * number of rows and the largest encoding of each column type.
+     * @return an upper bound on the parcelled size, in bytes
+     */
+    public int estimateParcelSize() {
+        // The Item Bundle, wire version and row class name
+        long size = PARCEL_HEADER_SIZE + 2L * mRowClassName.length();
+        ByteBuffer payload = mPayload;
+        if (payload != null) {
+            return (int) Math.min(size + payload.limit(), Integer.MAX_VALUE);
+        }
+
+        for (String value : mStrings) {
+            size += MAX_VARINT_SIZE + 3L * value.length();
+        }
+        size += 3 * MAX_VARINT_SIZE;
+        for (int i = 0; i < mFieldNames.length; i++) {
+            size += 2 * MAX_VARINT_SIZE + 1 + maxColumnLength(mColumnTypes[i], mSize);
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Get the type of the stored items.
+     * @return the item class
+     */
+    public Class<T> getItemClass() {
+        try {
+            return (Class<T>) Class.forName(mRowClassName, false, ColumnarListItem.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Get a row view of a single item in the list.
+     * @param index the position of the item in the list
+     * @return the item at the given position
+     */
+    @Override
+    public T get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + mSize);
+        }
+        return mRowCreator.createRow(new Row(index));
+    }
+
+    /**
+     * Get row views of all items in the list.
+     * @return the stored items
+     */
+    @Override
+    public ArrayList<T> getStoredItems() {
+        ArrayList<T> rows = mRows;
+        if (rows == null) {
+            rows = new ArrayList<>(mSize);
+            for (int i = 0; i < mSize; i++) {
+                rows.add(get(i));
+            }
+            mRows = rows;
+        }
+        return rows;
+    }
+
+    /**
+     * Get the fields of the list as a Bundle, with row views of the items
+     * under {@link #STORED_ITEMS}, as in the Bundle of a ListItem. The Bundle
+     * is a copy, so modifying it does not change the list.
+     * @return the fields of the list
+     */
+    @Override
+    public Bundle getBundle() {
+        Bundle bundle = new Bundle(super.getBundle());
+        bundle.putParcelableArrayList(STORED_ITEMS, getStoredItems());
+        return bundle;
+    }
+
+    @Override
+    public <TValue> TValue getValueByField(String fieldName) {
+        if (STORED_ITEMS.equals(fieldName)) {
+            return (TValue) getStoredItems();
+        }
+        return super.getValueByField(fieldName);
+    }
+
+    /**
+     * Test if the stored items have a field.
+     * @param fieldName the field name to test
+     * @return true if there is a column for the field, otherwise false
+     */
+    public boolean hasColumn(String fieldName) {
+        return getColumnIndex(fieldName) >= 0;
+    }
+
+    /**
+     * Get the value of a long field of an item without creating a row view.
+     * @param index     the position of the item in the list
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    public long getLong(int index, String fieldName) {
+        return ((long[]) getColumn(fieldName, COLUMN_LONG))[index];
+    }
+
+    /**
+     * Get the value of an int field of an item without creating a row view.
+     * @param index     the position of the item in the list
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    public int getInt(int index, String fieldName) {
+        return ((int[]) getColumn(fieldName, COLUMN_INT))[index];
+    }
+
+    /**
+     * Get the value of a double field of an item without creating a row view.
+     * @param index     the position of the item in the list
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    public double getDouble(int index, String fieldName) {
+        return ((double[]) getColumn(fieldName, COLUMN_DOUBLE))[index];
+    }
+
+    /**
+     * Get the value of a float field of an item without creating a row view.
+     * @param index     the position of the item in the list
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    public float getFloat(int index, String fieldName) {
+        return ((float[]) getColumn(fieldName, COLUMN_FLOAT))[index];
+    }
+
+    /**
+     * Get the value of a boolean field of an item without creating a row view.
+     * @param index     the position of the item in the list
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    public boolean getBoolean(int index, String fieldName) {
+        return ((boolean[]) getColumn(fieldName, COLUMN_BOOLEAN))[index];
+    }
+
+    /**
+     * Get the value of a String field of an item without creating a row view.
+     * @param index     the position of the item in the list
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    public String getString(int index, String fieldName) {
+        int column = getColumnIndex(fieldName);
+        checkColumnType(fieldName, column, COLUMN_STRING);
+        return decodeString(((int[]) getColumn(column))[index]);
+    }
+
+    /**
+     * Get the field the items are sorted by, in ascending order.
+     * @return the name of the field, or null if the list is not known to be sorted
+     */
+    public String getSortedBy() {
+        return (mSortedColumn != NOT_SORTED) ? mFieldNames[mSortedColumn] : null;
+    }
+
+    /**
+     * Find the first item whose sort field is at least a value, by binary search.
+     * Together with {@link #upperBound(long)} this gives the range of items
+     * within an interval without scanning the list.
+     * @param value the value to search for
+     * @return the index of the first item with a sort field &gt;= value, or {@link #size()} if there is none
+     * @throws IllegalStateException if the list is not sorted
+     */
+    public int lowerBound(long value) {
+        return search(value, false);
+    }
+
+    /**
+     * Find the first item whose sort field is greater than a value, by binary search.
+     * @param value the value to search for
+     * @return the index of the first item with a sort field &gt; value, or {@link #size()} if there is none
+     * @throws IllegalStateException if the list is not sorted
+     */
+    public int upperBound(long value) {
+        return search(value, true);
+    }
+
+    private int search(long value, boolean inclusive) {
+        if (mSortedColumn == NOT_SORTED) {
+            throw new IllegalStateException("The list is not sorted");
+        }
+        long[] values = (long[]) getColumn(mSortedColumn);
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (values[middle] < value || (inclusive && values[middle] == value)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static boolean isAscending(long[] values, int size) {
+        for (int i = 1; i < size; i++) {
+            if (values[i] < values[i - 1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object getColumn(String fieldName, int columnType) {
+        int column = getColumnIndex(fieldName);
+        checkColumnType(fieldName, column, columnType);
+        return getColumn(column);
+    }
+
+    private Object getColumn(int column) {
+        Object values = mColumns.get(column);
+        if (values == null) {
+            CompactReader reader = new CompactReader(mPayload);
+            reader.setPosition(mColumnOffsets[column]);
+            try {
+                values = decodeColumn(reader, mColumnTypes[column], mSize);
+            } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+                throw new BadParcelableException(e);
+            }
+            if (reader.getPosition() > mColumnEnds[column]) {
+                throw new BadParcelableException("ColumnarListItem column " + column + " overruns its length");
+            }
+            if (mColumnTypes[column] == COLUMN_STRING) {
+                for (int code : (int[]) values) {
+                    if (code < NULL_STRING || code >= mStrings.length) {
+                        throw new BadParcelableException("Invalid ColumnarListItem string code " + code);
+                    }
+                }
+            }
+            mColumns.set(column, values);
+        }
+        return values;
+    }
+
+    private void checkColumnType(String fieldName, int column, int columnType) {
+        if (column < 0) {
+            throw new IllegalArgumentException("Unknown field: \"" + fieldName + "\"");
+        }
+        if (mColumnTypes[column] != columnType) {
+            throw new IllegalArgumentException("Field \"" + fieldName + "\" has column type "
+                    + mColumnTypes[column] + ", not " + columnType);
+        }
+    }
+
+    private int getColumnIndex(String fieldName) {
+        HashMap<String, Integer> columnIndex = mColumnIndex;
+        if (columnIndex == null) {
+            columnIndex = new HashMap<>();
+            for (int i = 0; i < mFieldNames.length; i++) {
+                columnIndex.put(mFieldNames[i], i);
+            }
+            mColumnIndex = columnIndex;
+        }
+        Integer column = columnIndex.get(fieldName);
+        return (column != null) ? column : -1;
+    }
+
+    /* The field names of a row: its columns, and the creation time it shares with the list */
+    private Set<String> getFieldNameSet() {
+        Set<String> fieldNameSet = mFieldNameSet;
+        if (fieldNameSet == null) {
+            LinkedHashSet<String> fieldNames = new LinkedHashSet<>(Arrays.asList(mFieldNames));
+            fieldNames.add(TIME_CREATED);
+            fieldNameSet = Collections.unmodifiableSet(fieldNames);
+            mFieldNameSet = fieldNameSet;
+        }
+        return fieldNameSet;
+    }
+
+    private String decodeString(int code) {
+        if (code == NULL_STRING) {
+            return null;
+        }
+        String value = mStrings[code];
+        if (value == null) {
+            CompactReader reader = new CompactReader(mPayload);
+            reader.setPosition(mStringOffsets[code]);
+            value = reader.readString();
+            mStrings[code] = value;
+        }
+        return value;
+    }
+
+    private Object getBoxedValue(int column, int index) {
+        switch (mColumnTypes[column]) {
+            case COLUMN_LONG:
+                return ((long[]) getColumn(column))[index];
+            case COLUMN_INT:
+                return ((int[]) getColumn(column))[index];
+            case COLUMN_DOUBLE:
+                return ((double[]) getColumn(column))[index];
+            case COLUMN_FLOAT:
+                return ((float[]) getColumn(column))[index];
+            case COLUMN_BOOLEAN:
+                return ((boolean[]) getColumn(column))[index];
+            case COLUMN_STRING:
+                return decodeString(((int[]) getColumn(column))[index]);
+            default:
+                throw new IllegalStateException("Unknown column type " + mColumnTypes[column]);
+        }
+    }
+
+    /**
+     * A view of the field values of one row.
+     */
+    private class Row implements FieldSource {
+        private final int mIndex;
+
+        Row(int index) {
+            mIndex = index;
+        }
+
+        @Override
+        public boolean containsField(String fieldName) {
+            return getColumnIndex(fieldName) >= 0 || TIME_CREATED.equals(fieldName);
+        }
+
+        @Override
+        public Object getFieldValue(String fieldName) {
+            int column = getColumnIndex(fieldName);
+            if (column < 0) {
+                return TIME_CREATED.equals(fieldName) ? getLongValue(TIME_CREATED) : null;
+            }
+            return getBoxedValue(column, mIndex);
+        }
+
+        @Override
+        public Set<String> getFieldNames() {
+            return getFieldNameSet();
+        }
+    }
+
+    private static Object newColumn(int columnType, int capacity) {
+        switch (columnType) {
+            case COLUMN_LONG:
+                return new long[capacity];
+            case COLUMN_INT:
+            case COLUMN_STRING:
+                return new int[capacity];
+            case COLUMN_DOUBLE:
+                return new double[capacity];
+            case COLUMN_FLOAT:
+                return new float[capacity];
+            case COLUMN_BOOLEAN:
+                return new boolean[capacity];
+            default:
+                throw new IllegalArgumentException("Unknown column type " + columnType);
+        }
+    }
+
+    private static Object resize(Object column, int columnType, int size) {
+        switch (columnType) {
+            case COLUMN_LONG:
+                return Arrays.copyOf((long[]) column, size);
+            case COLUMN_INT:
+            case COLUMN_STRING:
+                return Arrays.copyOf((int[]) column, size);
+            case COLUMN_DOUBLE:
+                return Arrays.copyOf((double[]) column, size);
+            case COLUMN_FLOAT:
+                return Arrays.copyOf((float[]) column, size);
+            case COLUMN_BOOLEAN:
+                return Arrays.copyOf((boolean[]) column, size);
+            default:
+                throw new IllegalArgumentException("Unknown column type " + columnType);
+        }
+    }
+
+    /* Look up the ROW_CREATOR of an item type, the same way Parcel looks up a CREATOR */
+    private static <T extends Item> RowCreator<T> getRowCreator(String className) {
+        synchronized (sRowCreators) {
+            RowCreator<?> creator = sRowCreators.get(className);
+            if (creator == null) {
+                try {
+                    Class<?> rowClass = Class.forName(className, true, ColumnarListItem.class.getClassLoader());
+                    Field field = rowClass.getField("ROW_CREATOR");
+                    creator = (RowCreator<?>) field.get(null);
+                } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
+                    Log.e(TAG, "Unable to find ROW_CREATOR of " + className, e);
+                    throw new IllegalArgumentException(className + " cannot be stored in a ColumnarListItem");
+                }
+                sRowCreators.put(className, creator);
+            }
+            return (RowCreator<T>) creator;
+        }
+    }
+
+    /**
+     * Builds a ColumnarListItem row by row. Columns are declared up front and
+     * addressed by the index in which they were added.
+     */
+    public static class Builder<T extends Item> {
+        private final Class<T> mRowClass;
+        private final ArrayList<String> mFieldNames = new ArrayList<>();
+        private final ArrayList<Integer> mColumnTypes = new ArrayList<>();
+        private final ArrayList<Object> mColumns = new ArrayList<>();
+        private final ArrayList<Integer> mNameCodes = new ArrayList<>();
+        private final ArrayList<String> mStrings = new ArrayList<>();
+        private final HashMap<String, Integer> mStringCodes = new HashMap<>();
+        private final FieldProjection mProjection;
+        private int mCapacity;
+        private int mSize;
+        private ChunkSink<T> mChunkSink;
+        private int mChunkSize;
+        private int mSortedColumn = NOT_SORTED;
+
+        /**
+         * @param rowClass     the type of the stored items
+         * @param expectedRows the expected number of rows, used to pre-size the columns
+         */
+        public Builder(Class<T> rowClass, int expectedRows) {
+            this(rowClass, expectedRows, FieldProjection.ALL);
+        }
+
+        /**
+         * @param rowClass     the type of the stored items
+         * @param expectedRows the expected number of rows, used to pre-size the columns
+         * @param projection   the fields to keep; columns for other fields are not stored
+         */
+        public Builder(Class<T> rowClass, int expectedRows, FieldProjection projection) {
+            mRowClass = rowClass;
+            mCapacity = Math.max(expectedRows, 1);
+            mProjection = projection;
+        }
+
+        /**
+         * Declare a column. Must be called before any row is added. A column for a
+         * field outside the projection keeps its index, but values set on it are
+         * discarded.
+         * @param fieldName  the name of the item field stored in the column
+         * @param columnType the type of the column, one of the COLUMN_* constants
+         * @return this builder
+         */
+        public Builder<T> addColumn(String fieldName, int columnType) {
+            if (mSize > 0) {
+                throw new IllegalStateException("Columns must be added before rows");
+            }
+            boolean projected = mProjection.contains(fieldName);
+            mFieldNames.add(fieldName);
+            mColumnTypes.add(columnType);
+            mColumns.add(projected ? newColumn(columnType, mCapacity) : null);
+            mNameCodes.add(projected ? encodeString(fieldName) : NULL_STRING);
+            return this;
+        }
+
+        /**
+         * Check if a column is stored, so callers can skip acquiring values that would be discarded.
+         * @param column the index of the column
+         * @return true if the column's field is in the projection
+         */
+        public boolean isProjected(int column) {
+            return mColumns.get(column) != null;
+        }
+
+        /**
+         * Declare that rows are added in ascending order of a long column, so
+         * the list can be searched by {@link ColumnarListItem#lowerBound(long)}.
+         * The order is checked when the list is built, and the declaration is
+         * dropped if the rows turn out not to be sorted or the column is not projected.
+         * @param column the index of the column, which must be of type {@link #COLUMN_LONG}
+         * @return this builder
+         */
+        public Builder<T> setSortedBy(int column) {
+            if (mColumnTypes.get(column) != COLUMN_LONG) {
+                throw new IllegalArgumentException("Only long columns can be sorted");
+            }
+            mSortedColumn = column;
+            return this;
+        }
+
+        /**
+         * Switch the builder to streaming mode. Each time a chunk of rows is
+         * full it is built and handed to the sink, and the builder starts over,
+         * so at most one chunk is held in memory. {@link #build()} then returns
+         * the last, possibly empty, chunk.
+         * @param chunkSize the number of rows in a chunk
+         * @param sink      the receiver of the chunks
+         * @return this builder
+         */
+        public Builder<T> setChunkSink(int chunkSize, ChunkSink<T> sink) {
+            if (mSize > 0) {
+                throw new IllegalStateException("Streaming must be set up before rows are added");
+            }
+            mChunkSize = chunkSize;
+            mChunkSink = sink;
+            if (mCapacity > chunkSize) {
+                mCapacity = chunkSize;
+                resetColumns();
+            }
+            return this;
+        }
+
+        /**
+         * Append a row. The setters write to the most recently added row.
+         * @return this builder
+         */
+        public Builder<T> newRow() {
+            if (mChunkSink != null && mSize == mChunkSize) {
+                flushChunk();
+            }
+            if (mSize == mCapacity) {
+                mCapacity *= 2;
+                for (int i = 0; i < mColumns.size(); i++) {
+                    if (mColumns.get(i) != null) {
+                        mColumns.set(i, resize(mColumns.get(i), mColumnTypes.get(i), mCapacity));
+                    }
+                }
+            }
+            mSize++;
+            return this;
+        }
+
+        public Builder<T> setLong(int column, long value) {
+            long[] values = (long[]) mColumns.get(column);
+            if (values != null) {
+                values[mSize - 1] = value;
+            }
+            return this;
+        }
+
+        public Builder<T> setInt(int column, int value) {
+            int[] values = (int[]) mColumns.get(column);
+            if (values != null) {
+                values[mSize - 1] = value;
+            }
+            return this;
+        }
+
+        public Builder<T> setDouble(int column, double value) {
+            double[] values = (double[]) mColumns.get(column);
+            if (values != null) {
+                values[mSize - 1] = value;
+            }
+            return this;
+        }
+
+        public Builder<T> setFloat(int column, float value) {
+            float[] values = (float[]) mColumns.get(column);
+            if (values != null) {
+                values[mSize - 1] = value;
+            }
+            return this;
+        }
+
+        public Builder<T> setBoolean(int column, boolean value) {
+            boolean[] values = (boolean[]) mColumns.get(column);
+            if (values != null) {
+                values[mSize - 1] = value;
+            }
+            return this;
+        }
+
+        public Builder<T> setString(int column, String value) {
+            int[] values = (int[]) mColumns.get(column);
+            if (values != null) {
+                values[mSize - 1] = (value != null) ? encodeString(value) : NULL_STRING;
+            }
+            return this;
+        }
+
+        /* All String values and field names share one dictionary, which becomes the payload string table */
+        private int encodeString(String value) {
+            Integer code = mStringCodes.get(value);
+            if (code == null) {
+                code = mStrings.size();
+                mStrings.add(value);
+                mStringCodes.put(value, code);
+            }
+            return code;
+        }
+
+        /**
+         * In streaming mode, hand the rows added so far to the sink as a chunk
+         * without waiting for the chunk to be full, e.g. because they should not
+         * be held back any longer. Does nothing if there are no rows or no sink.
+         * @return this builder
+         */
+        public Builder<T> flush() {
+            if (mChunkSink != null && mSize > 0) {
+                flushChunk();
+            }
+            return this;
+        }
+
+        /**
+         * Get the number of rows added so far.
+         * @return the number of rows
+         */
+        public int size() {
+            return mSize;
+        }
+
+        public ColumnarListItem<T> build() {
+            return new ColumnarListItem<>(this);
+        }
+
+        /*
+         * Hand the full chunk to the sink, then start the next one with a fresh string table.
+         * build() copies the columns, so their arrays are reused for the next chunk.
+         */
+        private void flushChunk() {
+            mChunkSink.onChunk(build());
+            mSize = 0;
+            mStrings.clear();
+            mStringCodes.clear();
+            for (int i = 0; i < mFieldNames.size(); i++) {
+                if (mColumns.get(i) != null) {
+                    mNameCodes.set(i, encodeString(mFieldNames.get(i)));
+                }
+            }
+        }
+
+        private void resetColumns() {
+            for (int i = 0; i < mColumns.size(); i++) {
+                if (mColumns.get(i) != null) {
+                    mColumns.set(i, newColumn(mColumnTypes.get(i), mCapacity));
+                }
+            }
+        }
+    }
+
+    public static final Parcelable.Creator<ColumnarListItem> CREATOR = new Parcelable.Creator<ColumnarListItem>() {
+        public ColumnarListItem createFromParcel(Parcel in) {
+            return new ColumnarListItem(in);
+        }
+
+        public ColumnarListItem[] newArray(int size) {
+            return new ColumnarListItem[size];
+        }
+    };
+
+    private ColumnarListItem (Parcel in) {
+        this(in, null);
+    }
+
+    /* Read the header, then the payload from the Parcel unless it is given */
+    private ColumnarListItem (Parcel in, ByteBuffer payload) {
+        super(in);
+        int version = in.readInt();
+        if (version != WIRE_VERSION) {
+            throw new BadParcelableException("Unsupported ColumnarListItem wire version " + version);
+        }
+        mRowClassName = in.readString();
+        mRowCreator = getRowCreator(mRowClassName);
+        if (payload == null) {
+            byte[] bytes = in.createByteArray();
+            if (bytes == null) {
+                throw new BadParcelableException("Missing ColumnarListItem payload");
+            }
+            payload = ByteBuffer.wrap(bytes);
+        }
+        mPayload = payload;
+        try {
+            readIndex(new CompactReader(payload));
+        } catch (IndexOutOfBoundsException | IllegalArgumentException e) {
+            // Reads past the end of a truncated payload, or malformed varints
+            throw new BadParcelableException(e);
+        }
+    }
+
+    /**
+     * Create a list from a header written by {@link #writeHeaderToParcel} and
+     * a payload written by {@link #writePayload}, e.g. in a shared memory
+     * mapping. The payload is not copied: columns and Strings are decoded
+     * from it on first access, so it must stay mapped as long as the list is
+     * used.
+     * @param header  the header
+     * @param payload the payload, from index 0 up to its limit
+     * @return the list
+     * @throws BadParcelableException if the header or payload is malformed
+     */
+    public static ColumnarListItem<?> createFromHeader(Parcel header, ByteBuffer payload) {
+        return new ColumnarListItem<>(header, payload);
+    }
+
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        writeHeaderToParcel(out, flags);
+
+        // A received or frozen list is passed on as-is, without encoding it again
+        out.writeByteArray(getPayloadBytes());
+    }
+
+    /**
+     * Write everything {@link #writeToParcel} writes but the payload.
+     * @param out   the Parcel
+     * @param flags the parcelling flags
+     */
+    public void writeHeaderToParcel(Parcel out, int flags) {
+        super.writeToParcel(out, flags);
+        out.writeInt(WIRE_VERSION);
+        out.writeString(mRowClassName);
+    }
+
+    /**
+     * Get the size of the payload {@link #writePayload} writes.
+     * @return the size in bytes
+     */
+    public int getPayloadSize() {
+        return getPayload().limit();
+    }
+
+    /**
+     * Copy the payload into a buffer, e.g. a shared memory mapping, at its
+     * position, which is advanced past the payload.
+     * @param out the buffer
+     */
+    public void writePayload(ByteBuffer out) {
+        out.put(getPayload().duplicate());
+    }
+
+    /**
+     * Freeze the list. Its encoded form is kept, so that the content hash is
+     * computed over it and later parcelling does not encode the list again.
+     */
+    @Override
+    public ColumnarListItem<T> freeze() {
+        if (!isFrozen()) {
+            getPayload();
+        }
+        super.freeze();
+        return this;
+    }
+
+    /* Columns never change once built, so the payload is kept as soon as it is encoded */
+    private ByteBuffer getPayload() {
+        ByteBuffer payload = mPayload;
+        if (payload == null) {
+            payload = ByteBuffer.wrap(encode());
+            mPayload = payload;
+        }
+        return payload;
+    }
+
+    /* The payload as a byte array, copied only if it is not backed by one, e.g. when mapped */
+    private byte[] getPayloadBytes() {
+        ByteBuffer payload = getPayload();
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.array().length == payload.limit()) {
+            return payload.array();
+        }
+        byte[] bytes = new byte[payload.limit()];
+        ByteBuffer source = payload.duplicate();
+        source.position(0);
+        source.get(bytes);
+        return bytes;
+    }
+
+    /* Rows are views of the payload, which is not modified once frozen */
+    @Override
+    protected void freezeStoredItems() {
+    }
+
+    /* The encoding is deterministic, so equal lists have equal payloads */
+    @Override
+    protected long computeContentHash() {
+        byte[] payload = getPayloadBytes();
+        return new ContentHasher()
+                .putString(getClass().getName())
+                .putString(mRowClassName)
+                .putBytes(payload, 0, payload.length)
+                .getHash();
+    }
+
+    @Override
+    protected boolean contentEquals(Item other) {
+        ColumnarListItem<?> otherList = (ColumnarListItem<?>) other;
+        return mRowClassName.equals(otherList.mRowClassName) && getPayload().equals(otherList.getPayload());
+    }
+
+    private byte[] encode() {
+        int numColumns = mFieldNames.length;
+        CompactWriter[] columnWriters = new CompactWriter[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            columnWriters[i] = new CompactWriter(mSize * 2);
+            encodeColumn(columnWriters[i], mColumnTypes[i], mColumns.get(i), mSize);
+        }
+
+        CompactWriter writer = new CompactWriter(mSize * numColumns * 2);
+
+        // String table shared by the schema header and all String columns
+        writer.writeVarint(mStrings.length);
+        for (String value : mStrings) {
+            writer.writeString(value);
+        }
+
+        // Schema header, with the encoded length of each column as the offset index, then the sorted column
+        writer.writeVarint(mSize);
+        writer.writeVarint(numColumns);
+        for (int i = 0; i < numColumns; i++) {
+            writer.writeVarint(mNameCodes[i]);
+            writer.writeByte(mColumnTypes[i]);
+            writer.writeVarint(columnWriters[i].size());
+        }
+        writer.writeVarint(mSortedColumn + 1);
+
+        // Columns
+        for (CompactWriter columnWriter : columnWriters) {
+            writer.append(columnWriter);
+        }
+
+        return writer.toByteArray();
+    }
+
+    /* Read the string table offsets, the schema header and the column offsets, without decoding any values */
+    private void readIndex(CompactReader reader) {
+        // Counts and lengths are checked against the payload before allocating or reading with them
+        int numStrings = readCount(reader);
+        mStrings = new String[numStrings];
+        mStringOffsets = new int[numStrings];
+        for (int i = 0; i < numStrings; i++) {
+            mStringOffsets[i] = reader.getPosition();
+            int length = readCount(reader);
+            if (length > mPayload.limit() - reader.getPosition()) {
+                throw new BadParcelableException("ColumnarListItem string " + i + " overruns the payload");
+            }
+            reader.setPosition(reader.getPosition() + length);
+        }
+
+        mSize = (int) reader.readVarint();
+        if (mSize < 0) {
+            throw new BadParcelableException("Invalid ColumnarListItem size " + mSize);
+        }
+        int numColumns = readCount(reader);
+        mFieldNames = new String[numColumns];
+        mNameCodes = new int[numColumns];
+        mColumnTypes = new int[numColumns];
+        mColumns = new AtomicReferenceArray<>(numColumns);
+        int[] columnLengths = new int[numColumns];
+        for (int i = 0; i < numColumns; i++) {
+            mNameCodes[i] = (int) reader.readVarint();
+            mColumnTypes[i] = reader.readByte();
+            columnLengths[i] = readCount(reader);
+            if (mNameCodes[i] < 0 || mNameCodes[i] >= numStrings) {
+                throw new BadParcelableException("Invalid ColumnarListItem field name code " + mNameCodes[i]);
+            }
+            if (columnLengths[i] < minColumnLength(mColumnTypes[i], mSize)) {
+                throw new BadParcelableException("ColumnarListItem column " + i + " is too short for "
+                        + mSize + " rows");
+            }
+        }
+        mSortedColumn = (int) reader.readVarint() - 1;
+        if (mSortedColumn < NOT_SORTED || mSortedColumn >= numColumns
+                || (mSortedColumn != NOT_SORTED && mColumnTypes[mSortedColumn] != COLUMN_LONG)) {
+            throw new BadParcelableException("Invalid sorted column " + mSortedColumn);
+        }
+
+        mColumnOffsets = new int[numColumns];
+        mColumnEnds = new int[numColumns];
+        long offset = reader.getPosition();
+        for (int i = 0; i < numColumns; i++) {
+            mColumnOffsets[i] = (int) Math.min(offset, mPayload.limit());
+            offset += columnLengths[i];
+            mColumnEnds[i] = (int) Math.min(offset, mPayload.limit());
+        }
+        if (offset != mPayload.limit()) {
+            throw new BadParcelableException("ColumnarListItem payload length mismatch");
+        }
+
+        for (int i = 0; i < numColumns; i++) {
+            mFieldNames[i] = decodeString(mNameCodes[i]);
+        }
+    }
+
+    /* Read a count or length, which can be at most the payload length */
+    private int readCount(CompactReader reader) {
+        long count = reader.readVarint();
+        if (count < 0 || count > mPayload.limit()) {
+            throw new BadParcelableException("Invalid ColumnarListItem count " + count);
+        }
+        return (int) count;
+    }
+
+    /* The most bytes a column can be encoded in; a UTF-8 String takes at most 3 bytes per char */
+    private static long maxColumnLength(int columnType, int size) {
+        switch (columnType) {
+            case COLUMN_LONG:
+                return (long) MAX_VARINT_SIZE * size;
+            case COLUMN_INT:
+            case COLUMN_STRING:
+                return 5L * size;
+            case COLUMN_DOUBLE:
+                return 8L * size;
+            case COLUMN_FLOAT:
+                return 4L * size;
+            case COLUMN_BOOLEAN:
+                return (size + 7L) / 8;
+            default:
+                throw new IllegalStateException("Unknown column type " + columnType);
+        }
+    }
+
+    /* The fewest bytes a column can be encoded in, so a bogus size is rejected before allocating */
+    private static long minColumnLength(int columnType, int size) {
+        switch (columnType) {
+            case COLUMN_LONG:
+            case COLUMN_INT:
+            case COLUMN_STRING:
+                return size;
+            case COLUMN_DOUBLE:
+                return 8l * size;
+            case COLUMN_FLOAT:
+                return 4l * size;
+            case COLUMN_BOOLEAN:
+                return (size + 7l) / 8;
+            default:
+                throw new BadParcelableException("Unknown column type " + columnType);
+        }
+    }
+
+    private static void encodeColumn(CompactWriter writer, int columnType, Object column, int size) {
+        switch (columnType) {
+            case COLUMN_LONG: {
+                long[] values = (long[]) column;
+                long previous = 0;
+                for (int row = 0; row < size; row++) {
+                    writer.writeSignedVarint(values[row] - previous);
+                    previous = values[row];
+                }
+                break;
+            }
+            case COLUMN_INT: {
+                int[] values = (int[]) column;
+                for (int row = 0; row < size; row++) {
+                    writer.writeSignedVarint(values[row]);
+                }
+                break;
+            }
+            case COLUMN_DOUBLE: {
+                double[] values = (double[]) column;
+                for (int row = 0; row < size; row++) {
+                    writer.writeDouble(values[row]);
+                }
+                break;
+            }
+            case COLUMN_FLOAT: {
+                float[] values = (float[]) column;
+                for (int row = 0; row < size; row++) {
+                    writer.writeFloat(values[row]);
+                }
+                break;
+            }
+            case COLUMN_BOOLEAN: {
+                boolean[] values = (boolean[]) column;
+                for (int row = 0; row < size; row += 8) {
+                    int packed = 0;
+                    for (int bit = 0; bit < 8 && row + bit < size; bit++) {
+                        if (values[row + bit]) {
+                            packed |= 1 << bit;
+                        }
+                    }
+                    writer.writeByte(packed);
+                }
+                break;
+            }
+            case COLUMN_STRING: {
+                // Shifted by one so that null is encoded as 0
+                int[] values = (int[]) column;
+                for (int row = 0; row < size; row++) {
+                    writer.writeVarint(values[row] + 1);
+                }
+                break;
+            }
+        }
+    }
+
+    private static Object decodeColumn(CompactReader reader, int columnType, int size) {
+        switch (columnType) {
+            case COLUMN_LONG: {
+                long[] values = new long[size];
+                long previous = 0;
+                for (int row = 0; row < size; row++) {
+                    previous += reader.readSignedVarint();
+                    values[row] = previous;
+                }
+                return values;
+            }
+            case COLUMN_INT: {
+                int[] values = new int[size];
+                for (int row = 0; row < size; row++) {
+                    values[row] = (int) reader.readSignedVarint();
+                }
+                return values;
+            }
+            case COLUMN_DOUBLE: {
+                double[] values = new double[size];
+                for (int row = 0; row < size; row++) {
+                    values[row] = reader.readDouble();
+                }
+                return values;
+            }
+            case COLUMN_FLOAT: {
+                float[] values = new float[size];
+                for (int row = 0; row < size; row++) {
+                    values[row] = reader.readFloat();
+                }
+                return values;
+            }
+            case COLUMN_BOOLEAN: {
+                boolean[] values = new boolean[size];
+                for (int row = 0; row < size; row += 8) {
+                    int packed = reader.readByte();
+                    for (int bit = 0; bit < 8 && row + bit < size; bit++) {
+                        values[row + bit] = (packed & (1 << bit)) != 0;
+                    }
+                }
+                return values;
+            }
+            case COLUMN_STRING: {
+                int[] values = new int[size];
+                for (int row = 0; row < size; row++) {
+                    values[row] = (int) reader.readVarint() - 1;
+                }
+                return values;
+            }
+            default:
+                throw new BadParcelableException("Unknown column type " + columnType);
+        }
+    }
+
+}
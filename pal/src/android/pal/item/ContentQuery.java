@@ -0,0 +1,157 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+
+import java.util.ArrayList;
+
+/**
+ * Builds the projection and selection of a ContentResolver query, so that
+ * providers only read the columns they need and let the database filter rows
+ * instead of filtering them after reading.
+ */
+public class ContentQuery {
+    private final ArrayList<String> mColumns = new ArrayList<>();
+    private final StringBuilder mSelection = new StringBuilder();
+    private final ArrayList<String> mSelectionArgs = new ArrayList<>();
+
+    /**
+     * Add a column to the projection.
+     * @param column the column name
+     * @return this query
+     */
+    public ContentQuery addColumn(String column) {
+        if (!mColumns.contains(column)) {
+            mColumns.add(column);
+        }
+        return this;
+    }
+
+    /**
+     * Add a column to the projection if a condition holds, typically whether
+     * the corresponding item field is in the field projection.
+     * @param include whether to add the column
+     * @param column  the column name
+     * @return this query
+     */
+    public ContentQuery addColumnIf(boolean include, String column) {
+        return include ? addColumn(column) : this;
+    }
+
+    /**
+     * Add a condition comparing a column to a value.
+     * @param column   the column name
+     * @param operator a comparison operator, e.g. "=" or "&gt;="
+     * @param value    the value, passed as a selection argument
+     * @return this query
+     */
+    public ContentQuery where(String column, String operator, Object value) {
+        appendCondition(column + operator + "?");
+        mSelectionArgs.add(String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Add a condition that a column holds one of a set of integer values.
+     * @param column the column name
+     * @param values the allowed values
+     * @return this query
+     */
+    public ContentQuery whereIn(String column, int... values) {
+        StringBuilder condition = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < values.length; i++) {
+            condition.append((i == 0) ? "?" : ",?");
+            mSelectionArgs.add(String.valueOf(values[i]));
+        }
+        appendCondition(condition.append(")").toString());
+        return this;
+    }
+
+    /**
+     * Add a condition that a column holds one of a set of String values.
+     * @param column the column name
+     * @param values the allowed values
+     * @return this query
+     */
+    public ContentQuery whereIn(String column, String... values) {
+        StringBuilder condition = new StringBuilder(column).append(" IN (");
+        for (int i = 0; i < values.length; i++) {
+            condition.append((i == 0) ? "?" : ",?");
+            mSelectionArgs.add(values[i]);
+        }
+        appendCondition(condition.append(")").toString());
+        return this;
+    }
+
+    private void appendCondition(String condition) {
+        if (mSelection.length() > 0) {
+            mSelection.append(" AND ");
+        }
+        mSelection.append(condition);
+    }
+
+    public String[] getProjection() {
+        return mColumns.toArray(new String[mColumns.size()]);
+    }
+
+    public String getSelection() {
+        return (mSelection.length() > 0) ? mSelection.toString() : null;
+    }
+
+    public String[] getSelectionArgs() {
+        return mSelectionArgs.isEmpty() ? null : mSelectionArgs.toArray(new String[mSelectionArgs.size()]);
+    }
+
+    /**
+     * Run the query.
+     * @param cr        the content resolver
+     * @param uri       the content URI to query
+     * @param sortOrder the sort order, or null for the default
+     * @return the cursor, or null
+     */
+    public Cursor query(ContentResolver cr, Uri uri, String sortOrder) {
+        return query(cr, uri, sortOrder, null);
+    }
+
+    /**
+     * Run the query, so that it can be cancelled while the database runs it
+     * or fills the cursor.
+     * @param cr                 the content resolver
+     * @param uri                the content URI to query
+     * @param sortOrder          the sort order, or null for the default
+     * @param cancellationSignal cancels the query, or null
+     * @return the cursor, or null
+     * @throws android.os.OperationCanceledException if the query was cancelled
+     */
+    public Cursor query(ContentResolver cr, Uri uri, String sortOrder, CancellationSignal cancellationSignal) {
+        return cr.query(uri, getProjection(), getSelection(), getSelectionArgs(), sortOrder, cancellationSignal);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.database.CharArrayBuffer;
+import android.database.Cursor;
+
+/**
+ * Reads typed values from the rows of a cursor by column index, with the same
+ * checks as {@link CursorHelper}. Column indices are resolved once per cursor,
+ * and repeated String values (phone numbers, addresses, call types) are copied
+ * through a reusable buffer and shared, so that reading a row does not
+ * allocate unless it holds a value not seen before.
+ */
+public class CursorReader {
+    /* Bounds the memory held by the pool for cursors with mostly unique values */
+    private static final int MAX_POOLED_STRINGS = 4096;
+
+    private final Cursor mCursor;
+    private final CharArrayBuffer mBuffer = new CharArrayBuffer(64);
+    private String[] mPool = new String[64];
+    private int mPoolSize;
+
+    /**
+     * @param cursor the cursor to read, may be null
+     */
+    public CursorReader(Cursor cursor) {
+        mCursor = cursor;
+    }
+
+    /**
+     * Resolve a column index. Call once per cursor, not once per row.
+     * @param columnName the name of the column
+     * @return the column index, or -1 if there is no cursor or no such column
+     */
+    public int getColumnIndex(String columnName) {
+        return (mCursor != null) ? mCursor.getColumnIndex(columnName) : -1;
+    }
+
+    /**
+     * Check if the value of a column in the current row is null.
+     * @param columnIndex the column index
+     * @return true if the value is null
+     */
+    public boolean isNull(int columnIndex) throws IllegalArgumentException {
+        if (columnIndex < 0) {
+            throw new IllegalArgumentException("Column does not exist");
+        }
+        return mCursor.getType(columnIndex) == Cursor.FIELD_TYPE_NULL;
+    }
+
+    public long getLong(int columnIndex) throws IllegalArgumentException {
+        checkType(columnIndex, Cursor.FIELD_TYPE_INTEGER, "FIELD_TYPE_INTEGER");
+        return mCursor.getLong(columnIndex);
+    }
+
+    public int getInt(int columnIndex) throws IllegalArgumentException {
+        checkType(columnIndex, Cursor.FIELD_TYPE_INTEGER, "FIELD_TYPE_INTEGER");
+        return mCursor.getInt(columnIndex);
+    }
+
+    public String getString(int columnIndex) throws IllegalArgumentException {
+        checkType(columnIndex, Cursor.FIELD_TYPE_STRING, "FIELD_TYPE_STRING");
+        mCursor.copyStringToBuffer(columnIndex, mBuffer);
+        return intern(mBuffer.data, mBuffer.sizeCopied);
+    }
+
+    private void checkType(int columnIndex, int expectedType, String expectedTypeName) {
+        if (columnIndex < 0) {
+            throw new IllegalArgumentException("Column does not exist");
+        }
+        if (mCursor.getType(columnIndex) != expectedType) {
+            throw new IllegalArgumentException("Column " + mCursor.getColumnName(columnIndex)
+                    + " is not of type " + expectedTypeName);
+        }
+    }
+
+    /* Find or create the String with the given characters, in an open-addressing table keyed on content */
+    private String intern(char[] chars, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + chars[i];
+        }
+
+        int mask = mPool.length - 1;
+        int slot = hash & mask;
+        while (mPool[slot] != null) {
+            String candidate = mPool[slot];
+            if (candidate.hashCode() == hash && contentEquals(candidate, chars, length)) {
+                return candidate;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        String value = new String(chars, 0, length);
+        if (mPoolSize < MAX_POOLED_STRINGS) {
+            mPool[slot] = value;
+            mPoolSize++;
+            if (mPoolSize * 2 > mPool.length) {
+                rehash();
+            }
+        }
+        return value;
+    }
+
+    private static boolean contentEquals(String value, char[] chars, int length) {
+        if (value.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) != chars[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void rehash() {
+        String[] oldPool = mPool;
+        mPool = new String[oldPool.length * 2];
+        int mask = mPool.length - 1;
+        for (String value : oldPool) {
+            if (value != null) {
+                int slot = value.hashCode() & mask;
+                while (mPool[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                mPool[slot] = value;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The item fields a PAL needs. Providers only acquire the fields in the
+ * projection and leave the others out of the items they build, which keeps
+ * both the work done and the data released to the PAL to a minimum.
+ */
+public final class FieldProjection {
+    /** Projection containing every field. */
+    public static final FieldProjection ALL = new FieldProjection(null);
+
+    /* null means every field */
+    private final Set<String> mFields;
+
+    private FieldProjection(Set<String> fields) {
+        mFields = fields;
+    }
+
+    /**
+     * Create a projection from a list of field names.
+     * @param fieldNames the names of the fields to keep, or null for every field
+     * @return the projection
+     */
+    public static FieldProjection of(Collection<String> fieldNames) {
+        if (fieldNames == null) {
+            return ALL;
+        }
+        return new FieldProjection(Collections.unmodifiableSet(new HashSet<>(fieldNames)));
+    }
+
+    /**
+     * Check if a field is in the projection.
+     * @param fieldName the name of the field
+     * @return true if the field should be acquired
+     */
+    public boolean contains(String fieldName) {
+        return mFields == null || mFields.contains(fieldName);
+    }
+
+    /**
+     * Check if the projection contains every field.
+     * @return true if no field is left out
+     */
+    public boolean isAll() {
+        return mFields == null;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FieldProjection)) {
+            return false;
+        }
+        Set<String> otherFields = ((FieldProjection) other).mFields;
+        return (mFields == null) ? otherFields == null : mFields.equals(otherFields);
+    }
+
+    @Override
+    public int hashCode() {
+        return (mFields == null) ? 0 : mFields.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return (mFields == null) ? "*" : mFields.toString();
+    }
+}
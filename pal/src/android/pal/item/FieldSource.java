@@ -0,0 +1,59 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import java.util.Set;
+
+/**
+ * A read-only source of field values. An Item can be backed by a FieldSource
+ * instead of its own Bundle, e.g. a row view over a {@link ColumnarListItem}.
+ */
+public interface FieldSource {
+
+    /**
+     * Test if the source contains a field
+     *
+     * @param fieldName the field name to test
+     * @return true if the source contains the field, otherwise false
+     */
+    boolean containsField(String fieldName);
+
+    /**
+     * Get the value of a field in the source.
+     *
+     * @param fieldName the name of the field
+     * @return the field value, or null if the source does not contain the field
+     */
+    Object getFieldValue(String fieldName);
+
+    /**
+     * Get the names of all fields in the source.
+     *
+     * @return the field names
+     */
+    Set<String> getFieldNames();
+}
@@ -29,10 +29,15 @@ package android.pal.item;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.pal.item.utils.ContentHasher;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import static android.pal.item.utils.Assertions.cast;
 
@@ -50,7 +55,17 @@ public class Item implements Parcelable {
      */
     public static final String TIME_CREATED = "time_created";
 
-    private final Bundle itemMap;
+    private Bundle itemMap;
+
+    /**
+     * Backing source of the field values when this item does not own a Bundle.
+     * Replaced by a Bundle copy the first time the item is modified.
+     */
+    private FieldSource fieldSource;
+
+    /** Set by freeze(); a frozen item rejects modifications and caches its content hash. */
+    private boolean frozen;
+    private long contentHash;
 
     public Item() {
         this(new Bundle());
@@ -61,10 +76,20 @@ public class Item implements Parcelable {
         this.setFieldValue(TIME_CREATED, System.currentTimeMillis());
     }
 
+    /**
+     * Create an item that reads its fields from a FieldSource.
+     *
+     * @param fieldSource the source of the field values
+     */
+    protected Item(FieldSource fieldSource) {
+        this.itemMap = null;
+        this.fieldSource = fieldSource;
+    }
+
     public String toDebugString() {
         String itemStr = "ITEM {\n";
-        for (String fieldKey : this.itemMap.keySet()) {
-            Object fieldValue = this.itemMap.get(fieldKey);
+        for (String fieldKey : this.getFieldNames()) {
+            Object fieldValue = this.getRawValue(fieldKey);
             if (fieldValue == null) {
                 itemStr += String.format(Locale.getDefault(),
                         "\t\"%s\": null\n",
@@ -81,9 +106,390 @@ public class Item implements Parcelable {
     }
 
     public Bundle getBundle() {
+        return this.getOwnBundle();
+    }
+
+    /**
+     * Get the Bundle that holds the item's own fields, copying them from the
+     * FieldSource first if needed. Unlike {@link #getBundle()}, which
+     * subclasses may override to present more fields, this is the Bundle the
+     * setters write to and that is parcelled.
+     */
+    private Bundle getOwnBundle() {
+        if (this.fieldSource != null) {
+            this.itemMap = toBundle(this.fieldSource);
+            this.fieldSource = null;
+        }
         return this.itemMap;
     }
 
+    /**
+     * Get the names of all fields in the item.
+     *
+     * @return the field names
+     */
+    public Set<String> getFieldNames() {
+        if (this.fieldSource != null) {
+            return this.fieldSource.getFieldNames();
+        }
+        return this.itemMap.keySet();
+    }
+
+    /**
+     * Make the item immutable and compute its content hash once. Later calls to
+     * the setters throw an IllegalStateException. The Bundle returned by
+     * {@link #getBundle()} must not be modified either.
+     *
+     * @return this item
+     */
+    public Item freeze() {
+        if (!this.frozen) {
+            this.contentHash = computeContentHash();
+            this.frozen = true;
+        }
+        return this;
+    }
+
+    /**
+     * Test if the item has been frozen.
+     *
+     * @return true if the item is immutable, otherwise false
+     */
+    public final boolean isFrozen() {
+        return this.frozen;
+    }
+
+    /**
+     * Get a stable 64-bit hash of the field values, ignoring {@link #TIME_CREATED}.
+     * Items with the same type and field values have the same content hash. It
+     * is computed once for a frozen item, and on every call otherwise.
+     *
+     * @return the content hash
+     */
+    public final long contentHash() {
+        return this.frozen ? this.contentHash : computeContentHash();
+    }
+
+    /**
+     * Compute the content hash. Subclasses with a more compact representation
+     * of their fields may override this, as long as equal contents still give
+     * equal hashes.
+     *
+     * @return the content hash
+     */
+    protected long computeContentHash() {
+        ContentHasher hasher = new ContentHasher();
+        hasher.putString(getClass().getName());
+
+        // Bundle key order is not defined, so fields are hashed in name order
+        ArrayList<String> fieldNames = new ArrayList<>(getFieldNames());
+        Collections.sort(fieldNames);
+        for (String fieldName : fieldNames) {
+            if (!TIME_CREATED.equals(fieldName)) {
+                hasher.putString(fieldName);
+                hashValue(hasher, getRawValue(fieldName));
+            }
+        }
+        return hasher.getHash();
+    }
+
+    private static void hashValue(ContentHasher hasher, Object value) {
+        if (value == null) {
+            hasher.putByte(0);
+        } else if (value instanceof String) {
+            hasher.putByte(1).putString((String) value);
+        } else if (value instanceof Boolean) {
+            hasher.putByte(2).putBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            hasher.putByte(3).putInt((Integer) value);
+        } else if (value instanceof Long) {
+            hasher.putByte(4).putLong((Long) value);
+        } else if (value instanceof Double) {
+            hasher.putByte(5).putDouble((Double) value);
+        } else if (value instanceof Float) {
+            hasher.putByte(6).putFloat((Float) value);
+        } else if (value instanceof Item) {
+            // Hashing a nested item must not freeze it, as its parent may still be modified
+            hasher.putByte(7).putLong(((Item) value).contentHash());
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            hasher.putByte(8).putInt(list.size());
+            for (Object element : list) {
+                hashValue(hasher, element);
+            }
+        } else {
+            // Other Parcelables, e.g. Location, have an identity hashCode, so their parcelled form is hashed
+            hasher.putByte(9).putString(value.getClass().getName());
+            byte[] bytes = (value instanceof Parcelable) ? marshall((Parcelable) value) : null;
+            if (bytes != null) {
+                hasher.putBytes(bytes, 0, bytes.length);
+            } else {
+                hasher.putInt(value.hashCode());
+            }
+        }
+    }
+
+    /* The parcelled form of a value, or null if it cannot be flattened, e.g. because it holds a binder */
+    private static byte[] marshall(Parcelable value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            value.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    /**
+     * Frozen items are equal if they have the same type and field values.
+     * Other items are only equal to themselves.
+     */
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Item) || other.getClass() != getClass()) {
+            return false;
+        }
+        Item otherItem = (Item) other;
+        // Equal hashes are only compared field by field, to rule out a collision
+        return this.frozen && otherItem.frozen && this.contentHash == otherItem.contentHash
+                && contentEquals(otherItem);
+    }
+
+    /**
+     * Compare the field values with those of an item of the same type,
+     * ignoring {@link #TIME_CREATED}. Subclasses that override
+     * {@link #computeContentHash()} may override this to compare the same
+     * representation.
+     *
+     * @param other the item to compare with
+     * @return true if the field values are equal, otherwise false
+     */
+    protected boolean contentEquals(Item other) {
+        int fieldCount = 0;
+        for (String fieldName : getFieldNames()) {
+            if (TIME_CREATED.equals(fieldName)) {
+                continue;
+            }
+            if (!other.containsField(fieldName)
+                    || !valuesEqual(getRawValue(fieldName), other.getRawValue(fieldName))) {
+                return false;
+            }
+            fieldCount++;
+        }
+        int otherFieldCount = other.getFieldNames().size();
+        if (other.containsField(TIME_CREATED)) {
+            otherFieldCount--;
+        }
+        return fieldCount == otherFieldCount;
+    }
+
+    private static boolean valuesEqual(Object value, Object otherValue) {
+        if (value == otherValue) {
+            return true;
+        }
+        if (value == null || otherValue == null) {
+            return false;
+        }
+        if (value instanceof List && otherValue instanceof List) {
+            List<?> list = (List<?>) value;
+            List<?> otherList = (List<?>) otherValue;
+            if (list.size() != otherList.size()) {
+                return false;
+            }
+            for (int i = 0; i < list.size(); i++) {
+                if (!valuesEqual(list.get(i), otherList.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value.getClass() != otherValue.getClass()) {
+            return false;
+        }
+        if (value instanceof Item) {
+            return ((Item) value).contentEquals((Item) otherValue);
+        }
+        if (value instanceof Parcelable) {
+            byte[] bytes = marshall((Parcelable) value);
+            byte[] otherBytes = marshall((Parcelable) otherValue);
+            if (bytes != null && otherBytes != null) {
+                return Arrays.equals(bytes, otherBytes);
+            }
+        }
+        return value.equals(otherValue);
+    }
+
+    /**
+     * The hash code of a frozen item is derived from its content hash. An item
+     * should be frozen before it is used as a key in a hash-based collection.
+     */
+    @Override
+    public int hashCode() {
+        if (this.frozen) {
+            return (int) (this.contentHash ^ (this.contentHash >>> 32));
+        }
+        return System.identityHashCode(this);
+    }
+
+    private Bundle getMutableBundle() {
+        if (this.frozen) {
+            throw new IllegalStateException("Item is frozen");
+        }
+        return getOwnBundle();
+    }
+
+    /**
+     * Test if the item still reads its fields from a FieldSource, i.e. it has
+     * not been switched to a Bundle copy by a modification.
+     *
+     * @param source the source to test
+     * @return true if the item is backed by the source, otherwise false
+     */
+    protected final boolean isBackedBy(FieldSource source) {
+        return source != null && this.fieldSource == source;
+    }
+
+    /**
+     * Get the value of a field, or null if the item does not contain the
+     * field, e.g. because it was left out by a {@link FieldProjection}. Unlike
+     * {@link #getValueByField}, a missing field is not logged.
+     *
+     * @param fieldName the name of the field
+     * @param <TValue>  the type of field value
+     * @return the field value
+     */
+    protected final <TValue> TValue getOptionalValue(String fieldName) {
+        if (containsField(fieldName)) {
+            return cast(fieldName, getRawValue(fieldName));
+        }
+        return null;
+    }
+
+    /**
+     * Get the value of a long field, or 0 if the item does not contain the
+     * field, e.g. because it was left out by a {@link FieldProjection}.
+     *
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    protected final long getLongValue(String fieldName) {
+        Long value = containsField(fieldName) ? (Long) cast(fieldName, getRawValue(fieldName)) : null;
+        return (value != null) ? value : 0L;
+    }
+
+    /**
+     * Get the value of a double field, or 0 if the item does not contain the
+     * field.
+     *
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    protected final double getDoubleValue(String fieldName) {
+        Double value = containsField(fieldName) ? (Double) cast(fieldName, getRawValue(fieldName)) : null;
+        return (value != null) ? value : 0.0;
+    }
+
+    /**
+     * Get the value of a float field, or 0 if the item does not contain the
+     * field.
+     *
+     * @param fieldName the name of the field
+     * @return the field value
+     */
+    protected final float getFloatValue(String fieldName) {
+        Float value = containsField(fieldName) ? (Float) cast(fieldName, getRawValue(fieldName)) : null;
+        return (value != null) ? value : 0.0f;
+    }
+
+    /**
+     * Write the header of a typed item, ahead of its positional field values:
+     * the presence bitmap of the schema fields and the creation time. It is
+     * read back by {@link TypedFields#TypedFields(ItemSchema, Parcel)}.
+     *
+     * @param out    the parcel to write to
+     * @param schema the schema of the item
+     */
+    protected final void writeFieldsHeader(Parcel out, ItemSchema schema) {
+        long presentFields = 0;
+        for (int position = 0; position < schema.size(); position++) {
+            if (containsField(schema.getFieldName(position))) {
+                presentFields |= 1L << position;
+            }
+        }
+        out.writeLong(presentFields);
+        out.writeLong(getLongValue(TIME_CREATED));
+    }
+
+    /**
+     * Write the fields of a typed item that are not in its schema, i.e. that
+     * were added with the setters, after its positional field values.
+     *
+     * @param out    the parcel to write to
+     * @param schema the schema of the item
+     */
+    protected final void writeExtraFields(Parcel out, ItemSchema schema) {
+        Bundle extras = null;
+        if (this.fieldSource == null && !schema.getFieldNames().containsAll(this.itemMap.keySet())) {
+            extras = new Bundle(this.itemMap);
+            for (String fieldName : schema.getFieldNames()) {
+                extras.remove(fieldName);
+            }
+        }
+        out.writeBundle(extras);
+    }
+
+    /**
+     * Read the fields written by {@link #writeExtraFields} into the item.
+     *
+     * @param in the parcel to read from
+     */
+    protected final void readExtraFields(Parcel in) {
+        Bundle extras = in.readBundle(getClass().getClassLoader());
+        if (extras != null) {
+            getOwnBundle().putAll(extras);
+        }
+    }
+
+    private Object getRawValue(String fieldName) {
+        if (this.fieldSource != null) {
+            return this.fieldSource.getFieldValue(fieldName);
+        }
+        return this.itemMap.get(fieldName);
+    }
+
+    private static Bundle toBundle(FieldSource source) {
+        Bundle bundle = new Bundle();
+        for (String fieldName : source.getFieldNames()) {
+            Object value = source.getFieldValue(fieldName);
+            if (value == null || value instanceof String) {
+                bundle.putString(fieldName, (String) value);
+            } else if (value instanceof Boolean) {
+                bundle.putBoolean(fieldName, (Boolean) value);
+            } else if (value instanceof Integer) {
+                bundle.putInt(fieldName, (Integer) value);
+            } else if (value instanceof Long) {
+                bundle.putLong(fieldName, (Long) value);
+            } else if (value instanceof Double) {
+                bundle.putDouble(fieldName, (Double) value);
+            } else if (value instanceof Float) {
+                bundle.putFloat(fieldName, (Float) value);
+            } else if (value instanceof Parcelable) {
+                bundle.putParcelable(fieldName, (Parcelable) value);
+            } else if (value instanceof ArrayList) {
+                bundle.putStringArrayList(fieldName, (ArrayList<String>) value);
+            } else {
+                Log.w(TAG, "Dropping field \"" + fieldName + "\" of unsupported type "
+                        + value.getClass().getSimpleName());
+            }
+        }
+        return bundle;
+    }
+
     /**
      * Get the value of a field in the item.
      *
@@ -92,8 +498,8 @@ public class Item implements Parcelable {
      * @return the field value
      */
     public <TValue> TValue getValueByField(String fieldName) {
-        if (itemMap.containsKey(fieldName)) {
-            return cast(fieldName, itemMap.get(fieldName));
+        if (containsField(fieldName)) {
+            return cast(fieldName, getRawValue(fieldName));
         }
         Log.e(TAG, "Unknown field: \"" + fieldName + "\" in " + this.toString());
         return null;
@@ -166,7 +572,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, String value) {
-        this.itemMap.putString(fieldName, value);
+        this.getMutableBundle().putString(fieldName, value);
     }
 
     /**
@@ -176,7 +582,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, boolean value) {
-        this.itemMap.putBoolean(fieldName, value);
+        this.getMutableBundle().putBoolean(fieldName, value);
     }
 
     /**
@@ -186,7 +592,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, int value) {
-        this.itemMap.putInt(fieldName, value);
+        this.getMutableBundle().putInt(fieldName, value);
     }
 
     /**
@@ -196,7 +602,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, long value) {
-        this.itemMap.putLong(fieldName, value);
+        this.getMutableBundle().putLong(fieldName, value);
     }
 
     /**
@@ -206,7 +612,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, double value) {
-        this.itemMap.putDouble(fieldName, value);
+        this.getMutableBundle().putDouble(fieldName, value);
     }
 
     /**
@@ -216,7 +622,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, float value) {
-        this.itemMap.putFloat(fieldName, value);
+        this.getMutableBundle().putFloat(fieldName, value);
     }
 
     /**
@@ -226,7 +632,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setFieldValue(String fieldName, Parcelable value) {
-        this.itemMap.putParcelable(fieldName, value);
+        this.getMutableBundle().putParcelable(fieldName, value);
     }
 
     /**
@@ -236,7 +642,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setStringArrayListFieldValue(String fieldName, ArrayList<String> value) {
-        this.itemMap.putStringArrayList(fieldName, value);
+        this.getMutableBundle().putStringArrayList(fieldName, value);
     }
 
     /**
@@ -246,7 +652,7 @@ public class Item implements Parcelable {
      * @param value     the value of the field
      */
     public void setParcelableArrayListFieldValue(String fieldName, ArrayList<? extends Parcelable> value) {
-        this.itemMap.putParcelableArrayList(fieldName, value);
+        this.getMutableBundle().putParcelableArrayList(fieldName, value);
     }
 
     /**
@@ -256,6 +662,9 @@ public class Item implements Parcelable {
      * @return true if the item contains the field, otherwise false
      */
     public boolean containsField(String fieldName) {
+        if (this.fieldSource != null) {
+            return this.fieldSource.containsField(fieldName);
+        }
         return this.itemMap.containsKey(fieldName);
     }
 
@@ -275,7 +684,7 @@ public class Item implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
-        out.writeParcelable(this.itemMap, 0);
+        out.writeParcelable(this.getOwnBundle(), 0);
     }
 
     @Override
@@ -31,6 +31,7 @@ import android.os.Bundle;
 import android.privatedata.ItemWrapper;
 import android.util.Log;
 
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -55,17 +56,68 @@ public abstract class ItemProvider<T extends Item> {
         mContext = context;
     }
 
+    /**
+     *  Called once when the provider is registered, before it serves any
+     *  request. Providers are long-lived and serve concurrent requests, so
+     *  this is where caches start watching their data.
+     */
+    public void onInit() {
+    }
+
+    /**
+     *  Called once on a background thread after all providers are
+     *  initialized, e.g. to read data or look up services ahead of the first
+     *  request.
+     */
+    public void onWarmUp() {
+    }
+
+    /**
+     *  Called when the system is low on memory. Providers should drop what
+     *  they can read again.
+     *  @param level the trim level, as in ComponentCallbacks2
+     */
+    public void onTrimMemory(int level) {
+    }
+
+    /**
+     *  Called once when the provider is unregistered; undoes onInit.
+     */
+    public void onShutdown() {
+    }
+
+    /**
+     *  Check if this provider serves a request, for data types offered by
+     *  several providers, e.g. single and continuous location updates.
+     *  @param params Paramaters of the request, may be null.
+     *  @return true if this provider should serve the request
+     */
+    public boolean handles(Bundle params) {
+        return true;
+    }
+
     /**
      *  Get private data from the platform.
      *  @param params Paramaters used in acquiring private data.
      *  @return Item-wrapped private data.
      */
     public final ItemWrapper<T> getPrivateData(Bundle params) throws IllegalArgumentException {
+        return getPrivateData(params, AcquisitionOptions.DEFAULT);
+    }
+
+    /**
+     *  Get private data from the platform, limited to a set of fields and
+     *  possibly streamed in chunks.
+     *  @param params Paramaters used in acquiring private data.
+     *  @param options The fields to acquire and how to deliver them.
+     *  @return Item-wrapped private data. When streaming, only the last chunk.
+     */
+    public final ItemWrapper<T> getPrivateData(Bundle params, AcquisitionOptions options) throws IllegalArgumentException {
         ParamStatus checkResult = checkParams(params);
         Log.i(TAG, "Got param check result " + checkResult.name());
 
         if(checkResult == ParamStatus.GOOD) {
-            return acquirePrivateData(params);
+            return acquirePrivateData(params, options);
         }
 
         throw new IllegalArgumentException(checkResult.name());
@@ -78,7 +130,44 @@ public abstract class ItemProvider<T extends Item> {
      */
     public abstract Bundle getParams();
 
-    protected abstract ItemWrapper<T> acquirePrivateData(Bundle params);
+    /**
+     *  Get the keys of optional parameters, which may be left out of the
+     *  params. Such parameters usually narrow down the acquired data, e.g. a
+     *  filter on the call type.
+     *  @return the optional keys
+     */
+    protected Set<String> getOptionalParamKeys() {
+        return Collections.emptySet();
+    }
+
+    /**
+     *  Check if this provider can stream its data in chunks.
+     *  @return true if acquirePrivateData honours streaming options
+     */
+    public boolean supportsStreaming() {
+        return false;
+    }
+
+    /**
+     *  Check if this provider keeps acquiring data over time, e.g. location
+     *  updates. Such a provider hands batches of data to the chunk sink of the
+     *  options as they come, and returns the last batch.
+     *  @return true if acquirePrivateData delivers data continuously
+     */
+    public boolean isContinuous() {
+        return false;
+    }
+
+    /**
+     *  Acquire private data from the platform. Fields outside the projection
+     *  should neither be queried nor set on the returned items. Providers that
+     *  support streaming set up their list builders with
+     *  {@link AcquisitionOptions#prepare}.
+     *  @param params Checked paramaters used in acquiring private data.
+     *  @param options The fields to acquire and how to deliver them.
+     *  @return Item-wrapped private data.
+     */
+    protected abstract ItemWrapper<T> acquirePrivateData(Bundle params, AcquisitionOptions options);
 
     protected ParamStatus checkParams(Bundle params) {
         Log.i(TAG, "Param checK: Starting basic ItemProvider param check");
@@ -135,6 +224,7 @@ public abstract class ItemProvider<T extends Item> {
 
         expectedKeys = new HashSet<>(expected.keySet());
         receivedKeys.removeAll(expectedKeys);
+        receivedKeys.removeAll(getOptionalParamKeys());
         for(String key : receivedKeys) {
             Log.w(TAG, "Received unnecessary key " + key);
         }
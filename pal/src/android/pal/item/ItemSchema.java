@@ -0,0 +1,117 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The ordered list of fields of a typed Item. The position of a field in the
+ * schema is the order it is parcelled in, and its column when the item is
+ * stored in a {@link ColumnarListItem}. Every schema ends with
+ * {@link Item#TIME_CREATED}, which all items carry.
+ */
+public final class ItemSchema {
+
+    /** The most fields a schema can have, so that their presence fits in a long bitmap. */
+    public static final int MAX_FIELDS = 64;
+
+    private final String[] mFieldNames;
+    private final HashMap<String, Integer> mPositions;
+    private final Set<String> mFieldNameSet;
+
+    /**
+     * @param fieldNames the names of the fields, in positional order, without
+     *                   {@link Item#TIME_CREATED}
+     */
+    public ItemSchema(String... fieldNames) {
+        if (fieldNames.length >= MAX_FIELDS) {
+            throw new IllegalArgumentException("Too many fields in schema: " + fieldNames.length);
+        }
+        mFieldNames = Arrays.copyOf(fieldNames, fieldNames.length + 1);
+        mFieldNames[fieldNames.length] = Item.TIME_CREATED;
+        mPositions = new HashMap<>();
+        for (int i = 0; i < mFieldNames.length; i++) {
+            mPositions.put(mFieldNames[i], i);
+        }
+        mFieldNameSet = Collections.unmodifiableSet(new LinkedHashSet<>(Arrays.asList(mFieldNames)));
+    }
+
+    /**
+     * Get the number of fields in the schema.
+     * @return the number of fields
+     */
+    public int size() {
+        return mFieldNames.length;
+    }
+
+    /**
+     * Get the name of the field at a position.
+     * @param position the position of the field
+     * @return the field name
+     */
+    public String getFieldName(int position) {
+        return mFieldNames[position];
+    }
+
+    /**
+     * Get the position of a field.
+     * @param fieldName the name of the field
+     * @return the position of the field, or -1 if it is not in the schema
+     */
+    public int getPosition(String fieldName) {
+        Integer position = mPositions.get(fieldName);
+        return (position != null) ? position : -1;
+    }
+
+    /**
+     * Get the position of {@link Item#TIME_CREATED}, which is the last field.
+     * @return the position
+     */
+    public int getTimeCreatedPosition() {
+        return mFieldNames.length - 1;
+    }
+
+    /**
+     * Get the presence bitmap of an item that contains every field.
+     * @return the bitmap, with the bit of each position set
+     */
+    public long getAllFieldsMask() {
+        return (mFieldNames.length == MAX_FIELDS) ? -1L : (1L << mFieldNames.length) - 1;
+    }
+
+    /**
+     * Get the names of all fields, in positional order.
+     * @return the field names
+     */
+    public Set<String> getFieldNames() {
+        return mFieldNameSet;
+    }
+}
@@ -30,6 +30,12 @@ import android.os.Parcel;
 import android.os.Parcelable;
 import android.pal.item.Item;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
 
 /**
  * An list item stores a list of other items
@@ -42,10 +48,151 @@ public class ListItem<T extends Item> extends Item {
         this.setParcelableArrayListFieldValue(STORED_ITEMS, itemList);
     }
 
+    protected ListItem() {
+        super();
+    }
+
     public ArrayList<T> getStoredItems() {
         return this.getValueByField(STORED_ITEMS);
     }
 
+    /**
+     * Get the number of items in the list.
+     * @return the number of stored items
+     */
+    public int size() {
+        ArrayList<T> items = getStoredItems();
+        return (items != null) ? items.size() : 0;
+    }
+
+    /**
+     * Get a single item from the list.
+     * @param index the position of the item in the list
+     * @return the item at the given position
+     */
+    public T get(int index) {
+        return getStoredItems().get(index);
+    }
+
+    /**
+     * Freeze the list together with every stored item. The stored list is
+     * replaced by one that rejects modifications, so that the content hash
+     * cannot go stale.
+     *
+     * @return this item
+     */
+    @Override
+    public ListItem<T> freeze() {
+        if (!this.isFrozen()) {
+            this.freezeStoredItems();
+        }
+        super.freeze();
+        return this;
+    }
+
+    /**
+     * Freeze the stored items and make the stored list unmodifiable. Called by
+     * {@link #freeze()} before the content hash is computed. Subclasses that
+     * do not keep their items in the stored list may override it.
+     */
+    protected void freezeStoredItems() {
+        ArrayList<T> items = this.getStoredItems();
+        if (items == null || items instanceof FrozenList) {
+            return;
+        }
+        for (T item : items) {
+            if (item != null) {
+                item.freeze();
+            }
+        }
+        this.setParcelableArrayListFieldValue(STORED_ITEMS, new FrozenList<>(items));
+    }
+
+    /**
+     * The stored list of a frozen ListItem. It is still an ArrayList, as
+     * callers of {@link #getStoredItems()} expect, but rejects modifications.
+     */
+    private static final class FrozenList<T> extends ArrayList<T> {
+        FrozenList(Collection<? extends T> items) {
+            super(items);
+        }
+
+        @Override
+        public boolean add(T item) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public void add(int index, T item) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends T> items) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public boolean addAll(int index, Collection<? extends T> items) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public T set(int index, T item) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public T remove(int index) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public boolean remove(Object item) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> items) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public boolean retainAll(Collection<?> items) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public boolean removeIf(Predicate<? super T> filter) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public void replaceAll(UnaryOperator<T> operator) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public void sort(Comparator<? super T> comparator) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        protected void removeRange(int fromIndex, int toIndex) {
+            throw new UnsupportedOperationException("ListItem is frozen");
+        }
+
+        @Override
+        public List<T> subList(int fromIndex, int toIndex) {
+            return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+        }
+    }
+
     public static final Parcelable.Creator<ListItem> CREATOR = new Parcelable.Creator<ListItem>() {
         public ListItem createFromParcel(Parcel in) {
             return new ListItem(in);
@@ -56,7 +203,7 @@ public class ListItem<T extends Item> extends Item {
         }
     };
 
-    private ListItem (Parcel in) {
+    protected ListItem (Parcel in) {
         super(in);
     }
 
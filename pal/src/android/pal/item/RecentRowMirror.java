@@ -0,0 +1,465 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * An in-memory copy of the recent rows of a content provider table, e.g. the
+ * call log, kept up to date incrementally, so that time range requests on
+ * recent data are answered without scanning the table again.
+ *
+ * The copy covers rows dated within a window before it was built. A
+ * ContentObserver marks it dirty when the table changes, and the next read
+ * brings it up to date with two queries: one for the IDs (and check column)
+ * of the rows it already holds, to drop deleted rows and detect changed ones,
+ * and one for the rows with an ID above the highest ID seen so far. While the
+ * table does not change, reads run no query at all.
+ *
+ * This relies on the table assigning increasing IDs to new rows, as SQLite
+ * row IDs are.
+ *
+ * @param <R> the type of the copied rows
+ */
+public abstract class RecentRowMirror<R extends RecentRowMirror.Row> {
+    private static final String TAG = RecentRowMirror.class.getSimpleName();
+
+    /** Default length of the covered window, a week. */
+    public static final long DEFAULT_WINDOW_MILLIS = 7L * 24 * 60 * 60 * 1000;
+
+    /* Beyond this many rows the table is read directly instead of being copied */
+    private static final int MAX_ROWS = 20000;
+    /* Rows read between checks for cancellation */
+    private static final int CANCEL_CHECK_ROWS = 256;
+
+    /**
+     * A copied row. Subclasses add the columns they need.
+     */
+    public static abstract class Row {
+        private final long mId;
+        private final long mDate;
+
+        protected Row(long id, long date) {
+            mId = id;
+            mDate = date;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getDate() {
+            return mDate;
+        }
+
+        /**
+         * Get the value of the check column, see {@link #getCheckColumn()}.
+         * @return the value of the check column when the row was read
+         */
+        protected int getCheckValue() {
+            return 0;
+        }
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final String mIdColumn;
+    private final String mDateColumn;
+    private final long mWindowMillis;
+    private final ContentObserver mObserver;
+
+    /* Sorted by date, then ID */
+    private final ArrayList<R> mRows = new ArrayList<>();
+    private final HashMap<Long, R> mRowsById = new HashMap<>();
+    /* Rows that readRow rejected, with their check value, so that updates do not mistake them for new rows */
+    private final HashMap<Long, Integer> mSkippedRows = new HashMap<>();
+    private boolean mBuilt;
+    private volatile boolean mDirty;
+    private long mCoverageStart;
+    private long mLastSeenId;
+    private long mDisabledUntil;
+
+    /**
+     * @param context      the context used to query the table
+     * @param uri          the content URI of the table
+     * @param idColumn     the name of the ID column
+     * @param dateColumn   the name of the date column, in UTC millis since epoch
+     * @param windowMillis how far back from the time it is built the copy reaches
+     */
+    protected RecentRowMirror(Context context, Uri uri, String idColumn, String dateColumn, long windowMillis) {
+        mContext = context;
+        mUri = uri;
+        mIdColumn = idColumn;
+        mDateColumn = dateColumn;
+        mWindowMillis = windowMillis;
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mDirty = true;
+            }
+        };
+    }
+
+    /**
+     * Get the columns to copy. They must include the ID and date columns.
+     * @return the column names, in the order {@link #readRow} expects them
+     */
+    protected abstract String[] getColumns();
+
+    /**
+     * Read the current row of a cursor over {@link #getColumns()}.
+     * @param reader  the reader of the cursor
+     * @param columns the indices of the columns, in the order of {@link #getColumns()}
+     * @return the row
+     * @throws IllegalArgumentException if a column has an unexpected type; the row is then skipped
+     */
+    protected abstract R readRow(CursorReader reader, int[] columns) throws IllegalArgumentException;
+
+    /**
+     * Get an integer column whose value can change after a row is inserted,
+     * e.g. the type of an SMS going from queued to sent. Rows whose value
+     * changed are read again.
+     * @return the column name, or null if rows never change
+     */
+    protected String getCheckColumn() {
+        return null;
+    }
+
+    /**
+     * Add the conditions that rows must meet to be copied.
+     * @param query the query to add the conditions to
+     */
+    protected void addFilters(ContentQuery query) {
+    }
+
+    /**
+     * Start watching the table for changes.
+     */
+    public void register() {
+        mContext.getContentResolver().registerContentObserver(mUri, true, mObserver);
+    }
+
+    /**
+     * Stop watching the table and drop the copied rows.
+     */
+    public synchronized void unregister() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        clear();
+    }
+
+    /**
+     * Copy the rows ahead of the first request, unless they are copied already.
+     */
+    public synchronized void prefetch() {
+        long now = System.currentTimeMillis();
+        if (mBuilt || now < mDisabledUntil) {
+            return;
+        }
+        try {
+            rebuild(now, null);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to copy " + mUri, e);
+            clear();
+        }
+    }
+
+    /**
+     * Drop the copied rows to free memory. They are copied again on the next request.
+     */
+    public synchronized void trim() {
+        clear();
+    }
+
+    /**
+     * Get the rows dated within a time range, bringing the copy up to date first.
+     * @param startMillis        the start of the range, inclusive
+     * @param endMillis          the end of the range, inclusive
+     * @param cancellationSignal cancels the queries that bring the copy up to date, or null
+     * @return the rows, sorted by date, or null if the range is not covered and
+     *         the table must be queried directly
+     * @throws OperationCanceledException if the request was cancelled
+     */
+    public List<R> getRows(long startMillis, long endMillis, CancellationSignal cancellationSignal) {
+        // Give up before waiting behind another request's update
+        throwIfCanceled(cancellationSignal);
+        synchronized (this) {
+            return getRowsLocked(startMillis, endMillis, cancellationSignal);
+        }
+    }
+
+    private List<R> getRowsLocked(long startMillis, long endMillis, CancellationSignal cancellationSignal) {
+        long now = System.currentTimeMillis();
+        if (startMillis < now - mWindowMillis || now < mDisabledUntil) {
+            return null;
+        }
+
+        try {
+            throwIfCanceled(cancellationSignal);
+            // Rebuild once the copy holds rows from well outside the window
+            if (!mBuilt || now - mCoverageStart > 2 * mWindowMillis) {
+                rebuild(now, cancellationSignal);
+            } else if (mDirty && !update(cancellationSignal)) {
+                rebuild(now, cancellationSignal);
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Failed to update the copy of " + mUri, e);
+            clear();
+        } catch (OperationCanceledException e) {
+            // An interrupted rebuild starts over next time, and an interrupted update resumes
+            if (mBuilt) {
+                mDirty = true;
+            } else {
+                clear();
+            }
+            throw e;
+        }
+        if (!mBuilt || startMillis < mCoverageStart) {
+            return null;
+        }
+
+        return new ArrayList<>(mRows.subList(search(startMillis, false), search(endMillis, true)));
+    }
+
+    private void rebuild(long now, CancellationSignal cancellationSignal) {
+        clear();
+        mDirty = false;
+        mCoverageStart = now - mWindowMillis;
+
+        Cursor cursor = newQuery(getColumns())
+                .query(mContext.getContentResolver(), mUri, mDateColumn + " ASC, " + mIdColumn + " ASC",
+                       cancellationSignal);
+        if (cursor == null) {
+            return;
+        }
+        try {
+            if (cursor.getCount() > MAX_ROWS) {
+                Log.i(TAG, "Not copying " + cursor.getCount() + " rows of " + mUri);
+                mDisabledUntil = now + mWindowMillis;
+                return;
+            }
+            readRows(cursor, cancellationSignal);
+            mBuilt = true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /* Drop deleted rows and add new ones; returns false if rows changed and the copy must be rebuilt */
+    private boolean update(CancellationSignal cancellationSignal) {
+        mDirty = false;
+        ContentResolver cr = mContext.getContentResolver();
+        String checkColumn = getCheckColumn();
+
+        ContentQuery knownRows = newQuery(new String[]{mIdColumn})
+                .addColumnIf(checkColumn != null, checkColumn)
+                .where(mIdColumn, "<=", mLastSeenId);
+        Cursor cursor = knownRows.query(cr, mUri, null, cancellationSignal);
+        if (cursor != null) {
+            try {
+                CursorReader reader = new CursorReader(cursor);
+                int idColumn = reader.getColumnIndex(mIdColumn);
+                int checkValueColumn = (checkColumn != null) ? reader.getColumnIndex(checkColumn) : -1;
+                HashSet<Long> remainingIds = new HashSet<>(cursor.getCount());
+                HashSet<Long> remainingSkippedIds = new HashSet<>();
+                while (cursor.moveToNext()) {
+                    if (cursor.getPosition() % CANCEL_CHECK_ROWS == 0) {
+                        throwIfCanceled(cancellationSignal);
+                    }
+                    long id = reader.getLong(idColumn);
+                    R row = mRowsById.get(id);
+                    if (row == null) {
+                        // A row skipped before stays skipped, unless it changed
+                        Integer skippedCheckValue = mSkippedRows.get(id);
+                        if (skippedCheckValue == null
+                                || skippedCheckValue != readCheckValue(reader, checkValueColumn)) {
+                            return false;
+                        }
+                        remainingSkippedIds.add(id);
+                        continue;
+                    }
+                    if (checkColumn != null && reader.getInt(checkValueColumn) != row.getCheckValue()) {
+                        return false;
+                    }
+                    remainingIds.add(id);
+                }
+                if (remainingIds.size() < mRows.size()) {
+                    removeRowsExcept(remainingIds);
+                }
+                mSkippedRows.keySet().retainAll(remainingSkippedIds);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        cursor = newQuery(getColumns())
+                .where(mIdColumn, ">", mLastSeenId)
+                .query(cr, mUri, mIdColumn + " ASC", cancellationSignal);
+        if (cursor != null) {
+            try {
+                if (mRows.size() + cursor.getCount() > MAX_ROWS) {
+                    return false;
+                }
+                readRows(cursor, cancellationSignal);
+            } finally {
+                cursor.close();
+            }
+        }
+        return true;
+    }
+
+    private ContentQuery newQuery(String[] columns) {
+        ContentQuery query = new ContentQuery();
+        for (String column : columns) {
+            query.addColumn(column);
+        }
+        addFilters(query);
+        return query.where(mDateColumn, ">=", mCoverageStart);
+    }
+
+    private void readRows(Cursor cursor, CancellationSignal cancellationSignal) {
+        CursorReader reader = new CursorReader(cursor);
+        String[] columnNames = getColumns();
+        int[] columns = new int[columnNames.length];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = reader.getColumnIndex(columnNames[i]);
+        }
+        int idColumn = reader.getColumnIndex(mIdColumn);
+        int checkValueColumn = (getCheckColumn() != null) ? reader.getColumnIndex(getCheckColumn()) : -1;
+
+        while (cursor.moveToNext()) {
+            if (cursor.getPosition() % CANCEL_CHECK_ROWS == 0) {
+                throwIfCanceled(cancellationSignal);
+            }
+            R row;
+            try {
+                row = readRow(reader, columns);
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Skipping a row of " + mUri + ": " + e.getMessage());
+                skip(reader, idColumn, checkValueColumn);
+                continue;
+            }
+            insert(row);
+            mLastSeenId = Math.max(mLastSeenId, row.getId());
+        }
+    }
+
+    /* Remember a rejected row, unless even its ID cannot be read */
+    private void skip(CursorReader reader, int idColumn, int checkValueColumn) {
+        long id;
+        try {
+            id = reader.getLong(idColumn);
+        } catch (IllegalArgumentException e) {
+            return;
+        }
+        mSkippedRows.put(id, readCheckValue(reader, checkValueColumn));
+        mLastSeenId = Math.max(mLastSeenId, id);
+    }
+
+    /* The check value of the current row, 0 without a check column or if it cannot be read */
+    private static int readCheckValue(CursorReader reader, int checkValueColumn) {
+        if (checkValueColumn < 0) {
+            return 0;
+        }
+        try {
+            return reader.getInt(checkValueColumn);
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /* New rows are usually the most recent ones, so this is an append in the common case */
+    private void insert(R row) {
+        int position = mRows.size();
+        while (position > 0 && compare(mRows.get(position - 1), row) > 0) {
+            position--;
+        }
+        mRows.add(position, row);
+        mRowsById.put(row.getId(), row);
+    }
+
+    private static int compare(Row row1, Row row2) {
+        if (row1.getDate() != row2.getDate()) {
+            return (row1.getDate() < row2.getDate()) ? -1 : 1;
+        }
+        return Long.compare(row1.getId(), row2.getId());
+    }
+
+    private void removeRowsExcept(HashSet<Long> remainingIds) {
+        ArrayList<R> remainingRows = new ArrayList<>(remainingIds.size());
+        for (R row : mRows) {
+            if (remainingIds.contains(row.getId())) {
+                remainingRows.add(row);
+            } else {
+                mRowsById.remove(row.getId());
+            }
+        }
+        mRows.clear();
+        mRows.addAll(remainingRows);
+    }
+
+    /* Index of the first row dated after the given time, or at it unless inclusive */
+    private int search(long millis, boolean inclusive) {
+        int low = 0;
+        int high = mRows.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            long date = mRows.get(middle).getDate();
+            if (date < millis || (inclusive && date == millis)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    private void clear() {
+        mRows.clear();
+        mRowsById.clear();
+        mSkippedRows.clear();
+        mBuilt = false;
+        mLastSeenId = -1;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caches the rows of a content provider table over the time ranges that have
+ * been requested, so that a range overlapping earlier ones, e.g. "last 24
+ * hours" after "last 7 days", is answered by stitching together the cached
+ * rows and querying only the parts of the range not covered yet.
+ *
+ * Rows span an interval of time, and a fetch over a range returns every row
+ * overlapping it. Rows are cached per partition, e.g. per calendar, along with
+ * the covered ranges of that partition. A ContentObserver drops everything as
+ * soon as the table changes.
+ *
+ * @param <R> the type of the cached rows
+ */
+public abstract class TimeSegmentCache<R> {
+    /* Once this many rows are cached, everything is dropped before caching more */
+    private static final int MAX_ROWS = 10000;
+
+    /**
+     * Reads the rows of a partition over a time range.
+     */
+    public interface Fetcher<R> {
+        /**
+         * @param startMillis the start of the range, inclusive
+         * @param endMillis   the end of the range, inclusive
+         * @return every row overlapping the range, with all cached fields
+         * @throws OperationCanceledException if the request was cancelled
+         */
+        List<R> fetch(long startMillis, long endMillis);
+    }
+
+    private final Context mContext;
+    private final Uri mUri;
+    private final ContentObserver mObserver;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final HashMap<String, Partition> mPartitions = new HashMap<>();
+    private int mCachedGeneration;
+    private int mRowCount;
+
+    private final Comparator<R> mStartComparator = new Comparator<R>() {
+        @Override
+        public int compare(R row1, R row2) {
+            int result = Long.compare(getStart(row1), getStart(row2));
+            return (result != 0) ? result : Long.compare(getId(row1), getId(row2));
+        }
+    };
+
+    /**
+     * @param context the context used to watch the table
+     * @param uri     the content URI whose changes invalidate the cache
+     */
+    protected TimeSegmentCache(Context context, Uri uri) {
+        mContext = context;
+        mUri = uri;
+        mObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                mGeneration.incrementAndGet();
+            }
+        };
+    }
+
+    /** Get the unique ID of a row. */
+    protected abstract long getId(R row);
+
+    /** Get the start of the interval of a row, in UTC millis since epoch. */
+    protected abstract long getStart(R row);
+
+    /** Get the end of the interval of a row, in UTC millis since epoch. */
+    protected abstract long getEnd(R row);
+
+    /**
+     * Start watching the table for changes.
+     */
+    public void register() {
+        mContext.getContentResolver().registerContentObserver(mUri, true, mObserver);
+    }
+
+    /**
+     * Stop watching the table and drop the cached rows.
+     */
+    public synchronized void unregister() {
+        mContext.getContentResolver().unregisterContentObserver(mObserver);
+        clear();
+    }
+
+    /**
+     * Drop the cached rows to free memory. Later requests fetch their ranges again.
+     */
+    public synchronized void trim() {
+        clear();
+    }
+
+    /**
+     * Get the rows of a partition overlapping a time range, fetching only the
+     * parts of the range that are not cached yet.
+     * @param partition   the partition key, e.g. the filters the rows were fetched with
+     * @param startMillis the start of the range, inclusive
+     * @param endMillis   the end of the range, inclusive
+     * @param fetcher     reads the rows of the partition over a range
+     * @param cancellationSignal checked before each fetch, and passed by the
+     *                    fetcher to its queries; or null
+     * @return the rows, sorted by start, then ID
+     * @throws OperationCanceledException if the request was cancelled; nothing
+     *         fetched for it is cached
+     */
+    public List<R> getRows(String partition, long startMillis, long endMillis, Fetcher<R> fetcher,
+                           CancellationSignal cancellationSignal) {
+        // Give up before waiting behind another request's fetch
+        throwIfCanceled(cancellationSignal);
+        synchronized (this) {
+            return getRowsLocked(partition, startMillis, endMillis, fetcher, cancellationSignal);
+        }
+    }
+
+    private List<R> getRowsLocked(String partition, long startMillis, long endMillis, Fetcher<R> fetcher,
+                                  CancellationSignal cancellationSignal) {
+        int generation = mGeneration.get();
+        if (generation != mCachedGeneration) {
+            clear();
+            mCachedGeneration = generation;
+        }
+
+        Partition cached = mPartitions.get(partition);
+        if (cached == null) {
+            cached = new Partition();
+            mPartitions.put(partition, cached);
+        }
+
+        // Fetch the gaps, then keep them only if the table did not change in the meantime
+        HashMap<Long, R> rows = new HashMap<>(cached.mRows);
+        List<long[]> gaps = cached.findGaps(startMillis, endMillis);
+        ArrayList<R> fetched = new ArrayList<>();
+        for (long[] gap : gaps) {
+            throwIfCanceled(cancellationSignal);
+            fetched.addAll(fetcher.fetch(gap[0], gap[1]));
+        }
+        for (R row : fetched) {
+            rows.put(getId(row), row);
+        }
+        if (mGeneration.get() == generation) {
+            if (mRowCount + fetched.size() > MAX_ROWS) {
+                clear();
+                cached = new Partition();
+                mPartitions.put(partition, cached);
+            }
+            for (R row : fetched) {
+                if (cached.mRows.put(getId(row), row) == null) {
+                    mRowCount++;
+                }
+            }
+            for (long[] gap : gaps) {
+                cached.addSegment(gap[0], gap[1]);
+            }
+        }
+
+        ArrayList<R> result = new ArrayList<>();
+        for (R row : rows.values()) {
+            if (getStart(row) <= endMillis && getEnd(row) >= startMillis) {
+                result.add(row);
+            }
+        }
+        Collections.sort(result, mStartComparator);
+        return result;
+    }
+
+    private static void throwIfCanceled(CancellationSignal cancellationSignal) {
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+    }
+
+    private void clear() {
+        mPartitions.clear();
+        mRowCount = 0;
+    }
+
+    private class Partition {
+        /* Covered ranges, disjoint and not adjacent, by start; both ends inclusive */
+        final TreeMap<Long, Long> mSegments = new TreeMap<>();
+        final HashMap<Long, R> mRows = new HashMap<>();
+
+        List<long[]> findGaps(long startMillis, long endMillis) {
+            ArrayList<long[]> gaps = new ArrayList<>();
+            long next = startMillis;
+            Map.Entry<Long, Long> floor = mSegments.floorEntry(startMillis);
+            if (floor != null && floor.getValue() >= startMillis) {
+                if (floor.getValue() >= endMillis) {
+                    return gaps;
+                }
+                next = floor.getValue() + 1;
+            }
+            for (Map.Entry<Long, Long> segment : mSegments.subMap(startMillis, false, endMillis, true).entrySet()) {
+                if (segment.getKey() > next) {
+                    gaps.add(new long[]{next, segment.getKey() - 1});
+                }
+                if (segment.getValue() >= endMillis) {
+                    return gaps;
+                }
+                next = Math.max(next, segment.getValue() + 1);
+            }
+            gaps.add(new long[]{next, endMillis});
+            return gaps;
+        }
+
+        void addSegment(long startMillis, long endMillis) {
+            long start = startMillis;
+            long end = endMillis;
+            Map.Entry<Long, Long> floor = mSegments.floorEntry(start);
+            if (floor != null && floor.getValue() >= start - 1) {
+                start = floor.getKey();
+                end = Math.max(end, floor.getValue());
+                mSegments.remove(floor.getKey());
+            }
+            Map.Entry<Long, Long> next = mSegments.ceilingEntry(start);
+            while (next != null && (end == Long.MAX_VALUE || next.getKey() <= end + 1)) {
+                end = Math.max(end, next.getValue());
+                mSegments.remove(next.getKey());
+                next = mSegments.ceilingEntry(start);
+            }
+            mSegments.put(start, end);
+        }
+    }
+}
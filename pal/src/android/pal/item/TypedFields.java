@@ -0,0 +1,113 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item;
+
+import android.os.Parcel;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Base class for the field storage of typed Items. Typed Items keep their
+ * values in plain Java fields and expose them to {@link Item} through the
+ * FieldSource interface, so the Bundle view is only built if a caller asks
+ * for it.
+ * <p>
+ * A presence bitmap records which fields the item contains. Fields that were
+ * left out, e.g. by a {@link FieldProjection}, read back as absent rather
+ * than as 0 or null. {@link Item#TIME_CREATED} is always present.
+ */
+public abstract class TypedFields implements FieldSource {
+
+    private final ItemSchema mSchema;
+    private final long mPresentFields;
+    private final long mTimeCreated;
+    private Set<String> mFieldNames;
+
+    protected TypedFields(ItemSchema schema) {
+        mSchema = schema;
+        mPresentFields = schema.getAllFieldsMask();
+        mTimeCreated = System.currentTimeMillis();
+    }
+
+    /**
+     * Create the fields of an item read from a parcel. Reads the header written
+     * by {@link Item#writeFieldsHeader}; the subclass then reads its values.
+     *
+     * @param schema the schema of the item
+     * @param in     the parcel to read from
+     */
+    protected TypedFields(ItemSchema schema, Parcel in) {
+        mSchema = schema;
+        mPresentFields = in.readLong() | (1L << schema.getTimeCreatedPosition());
+        mTimeCreated = in.readLong();
+    }
+
+    /**
+     * Get the value of the field at a position in the schema.
+     *
+     * @param position the position of the field
+     * @return the (boxed) field value
+     */
+    protected abstract Object getFieldValue(int position);
+
+    private boolean isPresent(int position) {
+        return position >= 0 && (mPresentFields & (1L << position)) != 0;
+    }
+
+    @Override
+    public final boolean containsField(String fieldName) {
+        return isPresent(mSchema.getPosition(fieldName));
+    }
+
+    @Override
+    public final Object getFieldValue(String fieldName) {
+        int position = mSchema.getPosition(fieldName);
+        if (!isPresent(position)) {
+            return null;
+        }
+        return (position == mSchema.getTimeCreatedPosition()) ? mTimeCreated : getFieldValue(position);
+    }
+
+    @Override
+    public final Set<String> getFieldNames() {
+        if (mPresentFields == mSchema.getAllFieldsMask()) {
+            return mSchema.getFieldNames();
+        }
+        if (mFieldNames == null) {
+            LinkedHashSet<String> fieldNames = new LinkedHashSet<>();
+            for (int position = 0; position < mSchema.size(); position++) {
+                if (isPresent(position)) {
+                    fieldNames.add(mSchema.getFieldName(position));
+                }
+            }
+            mFieldNames = Collections.unmodifiableSet(fieldNames);
+        }
+        return mFieldNames;
+    }
+}
@@ -28,7 +28,12 @@ package android.pal.item.calendar;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
+import android.pal.item.FieldSource;
 import android.pal.item.Item;
+import android.pal.item.ItemSchema;
+import android.pal.item.TypedFields;
 
 import java.util.Comparator;
 
@@ -43,12 +48,73 @@ public class CalendarEventItem extends Item {
     public static final String END_TIME = "end_time";
     public static final String EVENT_LOCATION = "event_location";
 
+    /* Positions of the fields; also their columns when stored in a ColumnarListItem */
+    static final int COLUMN_ID = 0;
+    static final int COLUMN_TITLE = 1;
+    static final int COLUMN_START_TIME = 2;
+    static final int COLUMN_END_TIME = 3;
+    static final int COLUMN_EVENT_LOCATION = 4;
+
+    static final ItemSchema SCHEMA = new ItemSchema(ID, TITLE, START_TIME, END_TIME, EVENT_LOCATION);
+
+    private static final class Fields extends TypedFields {
+        String id;
+        String title;
+        long startTime;
+        long endTime;
+        String eventLocation;
+
+        Fields(String id, String title, long startTime, long endTime, String eventLocation) {
+            super(SCHEMA);
+            this.id = id;
+            this.title = title;
+            this.startTime = startTime;
+            this.endTime = endTime;
+            this.eventLocation = eventLocation;
+        }
+
+        Fields(Parcel in) {
+            super(SCHEMA, in);
+            this.id = in.readString();
+            this.title = in.readString();
+            this.startTime = in.readLong();
+            this.endTime = in.readLong();
+            this.eventLocation = in.readString();
+        }
+
+        @Override
+        protected Object getFieldValue(int position) {
+            switch (position) {
+                case COLUMN_ID:
+                    return id;
+                case COLUMN_TITLE:
+                    return title;
+                case COLUMN_START_TIME:
+                    return startTime;
+                case COLUMN_END_TIME:
+                    return endTime;
+                case COLUMN_EVENT_LOCATION:
+                    return eventLocation;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Fields mFields;
+
     CalendarEventItem(String id, String title, long startTime, long endTime, String eventLocation) {
-        this.setFieldValue(ID, id);
-        this.setFieldValue(TITLE, title);
-        this.setFieldValue(START_TIME, startTime);
-        this.setFieldValue(END_TIME, endTime);
-        this.setFieldValue(EVENT_LOCATION, eventLocation);
+        this(new Fields(id, title, startTime, endTime, eventLocation));
+    }
+
+    private CalendarEventItem(Fields fields) {
+        super(fields);
+        mFields = fields;
+    }
+
+    private CalendarEventItem(FieldSource row) {
+        super(row);
+        mFields = null;
     }
 
     /**
@@ -56,7 +122,7 @@ public class CalendarEventItem extends Item {
      * @return the event id
      */
     public String getId() {
-        return this.getValueByField(ID);
+        return isBackedBy(mFields) ? mFields.id : this.<String>getOptionalValue(ID);
     }
 
     /**
@@ -64,7 +130,7 @@ public class CalendarEventItem extends Item {
      * @return the event title
      */
     public String getTitle() {
-        return this.getValueByField(TITLE);
+        return isBackedBy(mFields) ? mFields.title : this.<String>getOptionalValue(TITLE);
     }
 
     /**
@@ -72,7 +138,7 @@ public class CalendarEventItem extends Item {
      * @return the start time of the event, in UTC millis since epoch
      */
     public long getStartTime() {
-        return this.getValueByField(START_TIME);
+        return isBackedBy(mFields) ? mFields.startTime : getLongValue(START_TIME);
     }
 
     /**
@@ -80,7 +146,7 @@ public class CalendarEventItem extends Item {
      * @return the end time of the event, in UTC millis since epoch
      */
     public long getEndTime() {
-        return this.getValueByField(END_TIME);
+        return isBackedBy(mFields) ? mFields.endTime : getLongValue(END_TIME);
     }
 
     /**
@@ -88,12 +154,14 @@ public class CalendarEventItem extends Item {
      * @return the event location
      */
     public String getLocation() {
-        return this.getValueByField(EVENT_LOCATION);
+        return isBackedBy(mFields) ? mFields.eventLocation : this.<String>getOptionalValue(EVENT_LOCATION);
     }
 
     public static final Parcelable.Creator<CalendarEventItem> CREATOR = new Parcelable.Creator<CalendarEventItem>() {
         public CalendarEventItem createFromParcel(Parcel in) {
-            return new CalendarEventItem(in);
+            CalendarEventItem item = new CalendarEventItem(new Fields(in));
+            item.readExtraFields(in);
+            return item;
         }
 
         public CalendarEventItem[] newArray(int size) {
@@ -101,8 +169,36 @@ public class CalendarEventItem extends Item {
         }
     };
 
-    private CalendarEventItem (Parcel in) {
-        super(in);
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        writeFieldsHeader(out, SCHEMA);
+        out.writeString(getId());
+        out.writeString(getTitle());
+        out.writeLong(getStartTime());
+        out.writeLong(getEndTime());
+        out.writeString(getLocation());
+        writeExtraFields(out, SCHEMA);
+    }
+
+    public static final ColumnarListItem.RowCreator<CalendarEventItem> ROW_CREATOR = new ColumnarListItem.RowCreator<CalendarEventItem>() {
+        public CalendarEventItem createRow(FieldSource row) {
+            return new CalendarEventItem(row);
+        }
+    };
+
+    /**
+     * Create a builder for a columnar list of calendar events.
+     * @param expectedRows the expected number of items
+     * @param projection   the fields to store
+     * @return the builder, with one column per field; columns outside the projection are not stored
+     */
+    static ColumnarListItem.Builder<CalendarEventItem> newListBuilder(int expectedRows, FieldProjection projection) {
+        return new ColumnarListItem.Builder<>(CalendarEventItem.class, expectedRows, projection)
+                .addColumn(ID, ColumnarListItem.COLUMN_STRING)
+                .addColumn(TITLE, ColumnarListItem.COLUMN_STRING)
+                .addColumn(START_TIME, ColumnarListItem.COLUMN_LONG)
+                .addColumn(END_TIME, ColumnarListItem.COLUMN_LONG)
+                .addColumn(EVENT_LOCATION, ColumnarListItem.COLUMN_STRING);
     }
 
     public static class StartTimeComparator implements Comparator<CalendarEventItem> {
@@ -26,20 +26,32 @@
 
 package android.pal.item.calendar;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.privatedata.DataRequest;
-import android.pal.item.CursorHelper;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.ContentQuery;
+import android.pal.item.CursorReader;
+import android.pal.item.FieldProjection;
 import android.pal.item.ItemProvider;
 import android.pal.item.ListItem;
+import android.pal.item.TimeSegmentCache;
 import android.provider.CalendarContract;
 import android.privatedata.ItemWrapper;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
 
+import static android.privatedata.DataRequest.CalendarParamsBuilder.CALENDAR_ID;
 import static android.privatedata.DataRequest.CalendarParamsBuilder.START_UTC_MILLIS;
 import static android.privatedata.DataRequest.CalendarParamsBuilder.END_UTC_MILLIS;
 
@@ -47,50 +59,160 @@ public class CalendarEventItemProvider extends ItemProvider<ListItem<CalendarEve
     private static final String TAG = CalendarEventItemProvider.class.getSimpleName();
     private static final long DEFAULT_UTC_MILLIS = -1l;
 
+    private final CalendarInstanceCache mCache;
+
     public CalendarEventItemProvider(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context the context used to query the calendar
+     * @param cache   a cache of the instances over earlier requested ranges, or null
+     */
+    public CalendarEventItemProvider(Context context, CalendarInstanceCache cache) {
         super(context);
+        mCache = cache;
+    }
+
+    @Override
+    public void onInit() {
+        if(mCache != null) {
+            mCache.register();
+        }
     }
 
     @Override
-    protected ItemWrapper<ListItem<CalendarEventItem>> acquirePrivateData(Bundle params) {
+    public void onTrimMemory(int level) {
+        if(mCache != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCache.trim();
+        }
+    }
+
+    @Override
+    public void onShutdown() {
+        if(mCache != null) {
+            mCache.unregister();
+        }
+    }
+
+    @Override
+    protected ItemWrapper<ListItem<CalendarEventItem>> acquirePrivateData(Bundle params, final AcquisitionOptions options) {
+        FieldProjection projection = options.getProjection();
         long startMillis = params.getLong(START_UTC_MILLIS);
         long endMillis = params.getLong(END_UTC_MILLIS);
 
-        ContentResolver cr = getContext().getContentResolver();
-        Cursor cursor = CalendarContract.Instances.query(cr, null, startMillis, endMillis);
-
-        ArrayList<CalendarEventItem> eventsList = new ArrayList<>();
-        while(cursor != null && cursor.moveToNext()) {
-            try {
-                String id = "" + CursorHelper.getColumnAsInt(cursor, CalendarContract.Instances._ID);
-                String title = CursorHelper.getColumnAsString(cursor, CalendarContract.Instances.TITLE);
-                long instanceStart = CursorHelper.getColumnAsLong(cursor, CalendarContract.Instances.BEGIN);
-                long instanceEnd = CursorHelper.getColumnAsLong(cursor, CalendarContract.Instances.END);
-                String location = "";
+        final long calendarId = params.containsKey(CALENDAR_ID) ? params.getLong(CALENDAR_ID) : -1;
+
+        // Stitch the range together from cached instances, querying only the uncovered parts
+        if(mCache != null) {
+            List<CalendarInstanceCache.InstanceRow> rows = mCache.getRows(String.valueOf(calendarId), startMillis, endMillis,
+                    new TimeSegmentCache.Fetcher<CalendarInstanceCache.InstanceRow>() {
+                        @Override
+                        public List<CalendarInstanceCache.InstanceRow> fetch(long gapStartMillis, long gapEndMillis) {
+                            return CalendarInstanceCache.readRows(queryInstances(FieldProjection.ALL, calendarId,
+                                    gapStartMillis, gapEndMillis, options.getCancellationSignal()));
+                        }
+                    }, options.getCancellationSignal());
+            return toEventList(rows, options);
+        }
+
+        Cursor cursor = queryInstances(projection, calendarId, startMillis, endMillis, options.getCancellationSignal());
+
+        try {
+            int expectedRows = (cursor != null) ? cursor.getCount() : 0;
+            ColumnarListItem.Builder<CalendarEventItem> eventsList = options.prepare(CalendarEventItem.newListBuilder(expectedRows, projection))
+                                                                           .setSortedBy(CalendarEventItem.COLUMN_START_TIME);
+            CursorReader reader = new CursorReader(cursor);
+            int idColumn = reader.getColumnIndex(CalendarContract.Instances._ID);
+            int titleColumn = reader.getColumnIndex(CalendarContract.Instances.TITLE);
+            int beginColumn = reader.getColumnIndex(CalendarContract.Instances.BEGIN);
+            int endColumn = reader.getColumnIndex(CalendarContract.Instances.END);
+            int locationColumn = reader.getColumnIndex(CalendarContract.Instances.EVENT_LOCATION);
+            while(cursor != null && cursor.moveToNext()) {
                 try {
-                    location = CursorHelper.getColumnAsString(cursor, CalendarContract.Instances.EVENT_LOCATION);
-                } catch (IllegalArgumentException e) {
-                    // location column is probably empty
-                }
+                    String id = eventsList.isProjected(CalendarEventItem.COLUMN_ID) ?
+                            String.valueOf(reader.getInt(idColumn)) : null;
+                    String title = eventsList.isProjected(CalendarEventItem.COLUMN_TITLE) ? reader.getString(titleColumn) : null;
+                    long instanceStart = eventsList.isProjected(CalendarEventItem.COLUMN_START_TIME) ? reader.getLong(beginColumn) : 0;
+                    long instanceEnd = eventsList.isProjected(CalendarEventItem.COLUMN_END_TIME) ? reader.getLong(endColumn) : 0;
+                    String location = "";
+                    if (eventsList.isProjected(CalendarEventItem.COLUMN_EVENT_LOCATION)) {
+                        try {
+                            location = reader.getString(locationColumn);
+                        } catch (IllegalArgumentException e) {
+                            // location column is probably empty
+                        }
+                    }
+
+                    eventsList.newRow()
+                              .setString(CalendarEventItem.COLUMN_ID, id)
+                              .setString(CalendarEventItem.COLUMN_TITLE, title)
+                              .setLong(CalendarEventItem.COLUMN_START_TIME, instanceStart)
+                              .setLong(CalendarEventItem.COLUMN_END_TIME, instanceEnd)
+                              .setString(CalendarEventItem.COLUMN_EVENT_LOCATION, location);
 
-                CalendarEventItem event = new CalendarEventItem(id, title, instanceStart, instanceEnd, location);
-                eventsList.add(event);
+                } catch(IllegalArgumentException e) {
+                    e.printStackTrace();
+                    Log.e(TAG, "Failed to retrieve a column, skipping");
+                    continue;
+                }
+            }
 
-            } catch(IllegalArgumentException e) {
-                e.printStackTrace();
-                Log.e(TAG, "Failed to retrieve a column, skipping");
-                continue;
+            ListItem<CalendarEventItem> data = eventsList.build();
+            return new ItemWrapper<ListItem<CalendarEventItem>>(data){};
+        } finally {
+            if(cursor != null) {
+                cursor.close();
             }
         }
+    }
 
-        if(cursor != null) {
-            cursor.close();
+    private ItemWrapper<ListItem<CalendarEventItem>> toEventList(List<CalendarInstanceCache.InstanceRow> rows, AcquisitionOptions options) {
+        ColumnarListItem.Builder<CalendarEventItem> eventsList = options.prepare(CalendarEventItem.newListBuilder(rows.size(), options.getProjection()))
+                                                                       .setSortedBy(CalendarEventItem.COLUMN_START_TIME);
+        for(CalendarInstanceCache.InstanceRow row : rows) {
+            eventsList.newRow()
+                      .setString(CalendarEventItem.COLUMN_ID, String.valueOf(row.mId))
+                      .setString(CalendarEventItem.COLUMN_TITLE, row.mTitle)
+                      .setLong(CalendarEventItem.COLUMN_START_TIME, row.mBegin)
+                      .setLong(CalendarEventItem.COLUMN_END_TIME, row.mEnd)
+                      .setString(CalendarEventItem.COLUMN_EVENT_LOCATION, row.mLocation);
         }
 
-        ListItem<CalendarEventItem> data = new ListItem<>(eventsList);
+        ListItem<CalendarEventItem> data = eventsList.build();
         return new ItemWrapper<ListItem<CalendarEventItem>>(data){};
     }
 
+    /* Query the instances overlapping a time range, in visible calendars or the given one (if >= 0) */
+    private Cursor queryInstances(FieldProjection projection, long calendarId, long startMillis, long endMillis,
+                                  CancellationSignal cancellationSignal) {
+        // Only read the needed columns, and let the calendar provider filter by calendar.
+        // Like CalendarContract.Instances.query(), only visible calendars are included.
+        ContentQuery query = new ContentQuery()
+                .addColumnIf(projection.contains(CalendarEventItem.ID), CalendarContract.Instances._ID)
+                .addColumnIf(projection.contains(CalendarEventItem.TITLE), CalendarContract.Instances.TITLE)
+                .addColumnIf(projection.contains(CalendarEventItem.START_TIME), CalendarContract.Instances.BEGIN)
+                .addColumnIf(projection.contains(CalendarEventItem.END_TIME), CalendarContract.Instances.END)
+                .addColumnIf(projection.contains(CalendarEventItem.EVENT_LOCATION), CalendarContract.Instances.EVENT_LOCATION)
+                .where(CalendarContract.Instances.VISIBLE, "=", 1);
+        if(calendarId >= 0) {
+            query.where(CalendarContract.Instances.CALENDAR_ID, "=", calendarId);
+        }
+
+        // Same time range URI as CalendarContract.Instances.query()
+        Uri.Builder uriBuilder = CalendarContract.Instances.CONTENT_URI.buildUpon();
+        ContentUris.appendId(uriBuilder, startMillis);
+        ContentUris.appendId(uriBuilder, endMillis);
+
+        ContentResolver cr = getContext().getContentResolver();
+        return query.query(cr, uriBuilder.build(), CalendarContract.Instances.DEFAULT_SORT_ORDER, cancellationSignal);
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
+    }
+
     @Override
     public Bundle getParams() {
         Bundle params = new DataRequest.CalendarParamsBuilder()
@@ -100,6 +222,11 @@ public class CalendarEventItemProvider extends ItemProvider<ListItem<CalendarEve
         return params;
     }
 
+    @Override
+    protected Set<String> getOptionalParamKeys() {
+        return Collections.singleton(CALENDAR_ID);
+    }
+
     @Override
     protected ParamStatus checkParams(Bundle params) {
         // Run the basic checks defined in the superclass
@@ -0,0 +1,123 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.calendar;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.pal.item.CursorReader;
+import android.pal.item.TimeSegmentCache;
+import android.provider.CalendarContract;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Caches the calendar event instances over the time ranges requested so far,
+ * so that {@link CalendarEventItemProvider} only queries the parts of a new
+ * range that earlier requests did not cover.
+ */
+public class CalendarInstanceCache extends TimeSegmentCache<CalendarInstanceCache.InstanceRow> {
+    private static final String TAG = CalendarInstanceCache.class.getSimpleName();
+
+    static class InstanceRow {
+        final long mId;
+        final String mTitle;
+        final long mBegin;
+        final long mEnd;
+        final String mLocation;
+
+        InstanceRow(long id, String title, long begin, long end, String location) {
+            mId = id;
+            mTitle = title;
+            mBegin = begin;
+            mEnd = end;
+            mLocation = location;
+        }
+    }
+
+    public CalendarInstanceCache(Context context) {
+        super(context, CalendarContract.CONTENT_URI);
+    }
+
+    @Override
+    protected long getId(InstanceRow row) {
+        return row.mId;
+    }
+
+    @Override
+    protected long getStart(InstanceRow row) {
+        return row.mBegin;
+    }
+
+    @Override
+    protected long getEnd(InstanceRow row) {
+        return row.mEnd;
+    }
+
+    /**
+     * Read all the instances of a cursor with every instance column, skipping
+     * malformed rows the same way the provider does. The cursor is closed.
+     * @param cursor the cursor, may be null
+     * @return the instances
+     */
+    static List<InstanceRow> readRows(Cursor cursor) {
+        try {
+            ArrayList<InstanceRow> rows = new ArrayList<>((cursor != null) ? cursor.getCount() : 0);
+            CursorReader reader = new CursorReader(cursor);
+            int idColumn = reader.getColumnIndex(CalendarContract.Instances._ID);
+            int titleColumn = reader.getColumnIndex(CalendarContract.Instances.TITLE);
+            int beginColumn = reader.getColumnIndex(CalendarContract.Instances.BEGIN);
+            int endColumn = reader.getColumnIndex(CalendarContract.Instances.END);
+            int locationColumn = reader.getColumnIndex(CalendarContract.Instances.EVENT_LOCATION);
+            while(cursor != null && cursor.moveToNext()) {
+                try {
+                    long id = reader.getLong(idColumn);
+                    String title = reader.getString(titleColumn);
+                    long begin = reader.getLong(beginColumn);
+                    long end = reader.getLong(endColumn);
+                    String location = "";
+                    try {
+                        location = reader.getString(locationColumn);
+                    } catch (IllegalArgumentException e) {
+                        // location column is probably empty
+                    }
+                    rows.add(new InstanceRow(id, title, begin, end, location));
+
+                } catch(IllegalArgumentException e) {
+                    Log.e(TAG, "Failed to retrieve a column, skipping", e);
+                }
+            }
+
+            return rows;
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -28,7 +28,12 @@ package android.pal.item.communication;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
+import android.pal.item.FieldSource;
 import android.pal.item.Item;
+import android.pal.item.ItemSchema;
+import android.pal.item.TypedFields;
 
 import java.util.Comparator;
 
@@ -46,11 +51,67 @@ public class CallItem extends Item {
     public static final String TYPE_OUTGOING = "outgoing";
     public static final String TYPE_MISSED = "missed";
 
-    CallItem(String id, Long timestamp, String phone_number, Long duration, String call_type) {
-        this.setFieldValue(TIMESTAMP, timestamp);
-        this.setFieldValue(CONTACT, phone_number);
-        this.setFieldValue(DURATION, duration);
-        this.setFieldValue(TYPE, call_type);
+    /* Positions of the fields; also their columns when stored in a ColumnarListItem */
+    static final int COLUMN_TIMESTAMP = 0;
+    static final int COLUMN_CONTACT = 1;
+    static final int COLUMN_DURATION = 2;
+    static final int COLUMN_TYPE = 3;
+
+    static final ItemSchema SCHEMA = new ItemSchema(TIMESTAMP, CONTACT, DURATION, TYPE);
+
+    private static final class Fields extends TypedFields {
+        long timestamp;
+        String contact;
+        long duration;
+        String callType;
+
+        Fields(long timestamp, String contact, long duration, String callType) {
+            super(SCHEMA);
+            this.timestamp = timestamp;
+            this.contact = contact;
+            this.duration = duration;
+            this.callType = callType;
+        }
+
+        Fields(Parcel in) {
+            super(SCHEMA, in);
+            this.timestamp = in.readLong();
+            this.contact = in.readString();
+            this.duration = in.readLong();
+            this.callType = in.readString();
+        }
+
+        @Override
+        protected Object getFieldValue(int position) {
+            switch (position) {
+                case COLUMN_TIMESTAMP:
+                    return timestamp;
+                case COLUMN_CONTACT:
+                    return contact;
+                case COLUMN_DURATION:
+                    return duration;
+                case COLUMN_TYPE:
+                    return callType;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Fields mFields;
+
+    CallItem(String id, long timestamp, String phone_number, long duration, String call_type) {
+        this(new Fields(timestamp, phone_number, duration, call_type));
+    }
+
+    private CallItem(Fields fields) {
+        super(fields);
+        mFields = fields;
+    }
+
+    private CallItem(FieldSource row) {
+        super(row);
+        mFields = null;
     }
 
     /**
@@ -58,7 +119,7 @@ public class CallItem extends Item {
      * @return the timestamp, in UTC millis since epoch
      */
     public long getTimestamp() {
-        return this.getValueByField(TIMESTAMP);
+        return isBackedBy(mFields) ? mFields.timestamp : getLongValue(TIMESTAMP);
     }
 
     /**
@@ -66,7 +127,7 @@ public class CallItem extends Item {
      * @return the name or phone number of the call
      */
     public String getContact() {
-        return this.getValueByField(CONTACT);
+        return isBackedBy(mFields) ? mFields.contact : this.<String>getOptionalValue(CONTACT);
     }
 
     /**
@@ -74,7 +135,7 @@ public class CallItem extends Item {
      * @return the duration of the phone call, in milliseconds
      */
     public long getDuration() {
-        return this.getValueByField(DURATION);
+        return isBackedBy(mFields) ? mFields.duration : getLongValue(DURATION);
     }
 
     /**
@@ -83,12 +144,14 @@ public class CallItem extends Item {
      *         {@value #TYPE_OUTGOING} or {@value @#TYPE_MISSED}
      */
     public String getCallType() {
-        return this.getValueByField(TYPE);
+        return isBackedBy(mFields) ? mFields.callType : this.<String>getOptionalValue(TYPE);
     }
 
     public static final Parcelable.Creator<CallItem> CREATOR = new Parcelable.Creator<CallItem>() {
         public CallItem createFromParcel(Parcel in) {
-            return new CallItem(in);
+            CallItem item = new CallItem(new Fields(in));
+            item.readExtraFields(in);
+            return item;
         }
 
         public CallItem[] newArray(int size) {
@@ -96,8 +159,34 @@ public class CallItem extends Item {
         }
     };
 
-    private CallItem (Parcel in) {
-        super(in);
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        writeFieldsHeader(out, SCHEMA);
+        out.writeLong(getTimestamp());
+        out.writeString(getContact());
+        out.writeLong(getDuration());
+        out.writeString(getCallType());
+        writeExtraFields(out, SCHEMA);
+    }
+
+    public static final ColumnarListItem.RowCreator<CallItem> ROW_CREATOR = new ColumnarListItem.RowCreator<CallItem>() {
+        public CallItem createRow(FieldSource row) {
+            return new CallItem(row);
+        }
+    };
+
+    /**
+     * Create a builder for a columnar list of calls.
+     * @param expectedRows the expected number of items
+     * @param projection   the fields to store
+     * @return the builder, with one column per field; columns outside the projection are not stored
+     */
+    static ColumnarListItem.Builder<CallItem> newListBuilder(int expectedRows, FieldProjection projection) {
+        return new ColumnarListItem.Builder<>(CallItem.class, expectedRows, projection)
+                .addColumn(TIMESTAMP, ColumnarListItem.COLUMN_LONG)
+                .addColumn(CONTACT, ColumnarListItem.COLUMN_STRING)
+                .addColumn(DURATION, ColumnarListItem.COLUMN_LONG)
+                .addColumn(TYPE, ColumnarListItem.COLUMN_STRING);
     }
 
     public static class TimestampComparator implements Comparator<CallItem> {
@@ -26,11 +26,16 @@
 
 package android.pal.item.communication;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.pal.item.CursorHelper;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.ContentQuery;
+import android.pal.item.CursorReader;
+import android.pal.item.FieldProjection;
 import android.pal.item.ItemProvider;
 import android.pal.item.ListItem;
 import android.privatedata.DataRequest;
@@ -38,8 +43,13 @@ import android.privatedata.ItemWrapper;
 import android.provider.CallLog;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import static android.privatedata.DataRequest.CallParamsBuilder.CALL_TYPE;
+import static android.privatedata.DataRequest.CallParamsBuilder.CONTACT_NUMBER;
 import static android.privatedata.DataRequest.MessageParamsBuilder.START_UTC_MILLIS;
 import static android.privatedata.DataRequest.MessageParamsBuilder.END_UTC_MILLIS;
 
@@ -47,68 +57,193 @@ public class CallItemProvider extends ItemProvider<ListItem<CallItem>> {
     private static final String TAG = CallItemProvider.class.getSimpleName();
     private static final long DEFAULT_UTC_MILLIS = -1l;
 
+    private final CallLogMirror mMirror;
+
     public CallItemProvider(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context the context used to query the call log
+     * @param mirror  a copy of the recent call log to answer recent time ranges from, or null
+     */
+    public CallItemProvider(Context context, CallLogMirror mirror) {
         super(context);
+        mMirror = mirror;
+    }
+
+    @Override
+    public void onInit() {
+        if(mMirror != null) {
+            mMirror.register();
+        }
+    }
+
+    @Override
+    public void onWarmUp() {
+        if(mMirror != null) {
+            mMirror.prefetch();
+        }
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if(mMirror != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMirror.trim();
+        }
     }
 
     @Override
-    protected ItemWrapper<ListItem<CallItem>> acquirePrivateData(Bundle params){
+    public void onShutdown() {
+        if(mMirror != null) {
+            mMirror.unregister();
+        }
+    }
+
+    @Override
+    protected ItemWrapper<ListItem<CallItem>> acquirePrivateData(Bundle params, AcquisitionOptions options) {
+        FieldProjection projection = options.getProjection();
         long startMillis = params.getLong(START_UTC_MILLIS);
         long endMillis = params.getLong(END_UTC_MILLIS);
 
+        String callType = params.getString(CALL_TYPE);
+        String contactNumber = params.getString(CONTACT_NUMBER);
+
+        // Answer recent time ranges from the copy of the call log, without querying it
+        if(mMirror != null) {
+            List<CallLogMirror.CallRow> rows = mMirror.getRows(startMillis, endMillis, options.getCancellationSignal());
+            if(rows != null) {
+                return toCallList(rows, callType, contactNumber, options);
+            }
+        }
+
+        // Only read the needed columns, and let the call log filter by time, type and number
+        ContentQuery query = new ContentQuery()
+                .addColumn(CallLog.Calls._ID)
+                .addColumn(CallLog.Calls.TYPE)
+                .addColumnIf(projection.contains(CallItem.TIMESTAMP), CallLog.Calls.DATE)
+                .addColumnIf(projection.contains(CallItem.CONTACT), CallLog.Calls.NUMBER)
+                .addColumnIf(projection.contains(CallItem.DURATION), CallLog.Calls.DURATION)
+                .where(CallLog.Calls.DATE, ">=", startMillis)
+                .where(CallLog.Calls.DATE, "<=", endMillis);
+        if(callType != null) {
+            query.whereIn(CallLog.Calls.TYPE, toCallLogType(callType));
+        } else {
+            query.whereIn(CallLog.Calls.TYPE, CallLog.Calls.INCOMING_TYPE, CallLog.Calls.OUTGOING_TYPE, CallLog.Calls.MISSED_TYPE);
+        }
+        if(contactNumber != null) {
+            query.where(CallLog.Calls.NUMBER, "=", contactNumber);
+        }
+
         ContentResolver cr = getContext().getContentResolver();
-        Cursor cursor = cr.query(CallLog.Calls.CONTENT_URI,
-                                 null,
-                                 String.format("%s>=? AND %s<=?",
-                                               CallLog.Calls.DATE, CallLog.Calls.DATE),
-                                 new String[]{""+startMillis,
-                                              ""+endMillis},
-                                 null);
-
-        ArrayList<CallItem> callsList = new ArrayList<>();
-        while(cursor != null && cursor.moveToNext()) {
-            try {
-                String id = "" + CursorHelper.getColumnAsInt(cursor, CallLog.Calls._ID);
-                long timestamp = CursorHelper.getColumnAsLong(cursor, CallLog.Calls.DATE);
-                String number = CursorHelper.getColumnAsString(cursor, CallLog.Calls.NUMBER);
-                long duration = CursorHelper.getColumnAsLong(cursor, CallLog.Calls.DURATION);
-                int type = CursorHelper.getColumnAsInt(cursor, CallLog.Calls.TYPE);
-
-                String typeStr = "";
-                switch(type) {
-                    case CallLog.Calls.INCOMING_TYPE:
-                        typeStr = CallItem.TYPE_INCOMING;
-                        break;
-
-                    case CallLog.Calls.OUTGOING_TYPE:
-                        typeStr = CallItem.TYPE_OUTGOING;
-                        break;
-
-                    case CallLog.Calls.MISSED_TYPE:
-                        typeStr = CallItem.TYPE_MISSED;
-                        break;
-
-                    default:
-                        Log.w(TAG, String.format("Skipping call log ID %d because it has invalid type %d", id, type));
+        // Calls are listed newest first, in the call log's default order
+        Cursor cursor = query.query(cr, CallLog.Calls.CONTENT_URI, CallLog.Calls.DEFAULT_SORT_ORDER, options.getCancellationSignal());
+
+        try {
+            int expectedRows = (cursor != null) ? cursor.getCount() : 0;
+            ColumnarListItem.Builder<CallItem> callsList = options.prepare(CallItem.newListBuilder(expectedRows, projection));
+            CursorReader reader = new CursorReader(cursor);
+            int idColumn = reader.getColumnIndex(CallLog.Calls._ID);
+            int dateColumn = reader.getColumnIndex(CallLog.Calls.DATE);
+            int numberColumn = reader.getColumnIndex(CallLog.Calls.NUMBER);
+            int durationColumn = reader.getColumnIndex(CallLog.Calls.DURATION);
+            int typeColumn = reader.getColumnIndex(CallLog.Calls.TYPE);
+            while(cursor != null && cursor.moveToNext()) {
+                try {
+                    long timestamp = callsList.isProjected(CallItem.COLUMN_TIMESTAMP) ? reader.getLong(dateColumn) : 0;
+                    String number = callsList.isProjected(CallItem.COLUMN_CONTACT) ? reader.getString(numberColumn) : null;
+                    long duration = callsList.isProjected(CallItem.COLUMN_DURATION) ? reader.getLong(durationColumn) : 0;
+
+                    // Type is always read, since it decides which rows are kept
+                    int type = reader.getInt(typeColumn);
+
+                    String typeStr = toCallItemType(type);
+                    if(typeStr == null) {
+                        Log.w(TAG, String.format("Skipping call log ID %d because it has invalid type %d", reader.getInt(idColumn), type));
                         continue;
+                    }
+
+                    callsList.newRow()
+                             .setLong(CallItem.COLUMN_TIMESTAMP, timestamp)
+                             .setString(CallItem.COLUMN_CONTACT, number)
+                             .setLong(CallItem.COLUMN_DURATION, duration)
+                             .setString(CallItem.COLUMN_TYPE, typeStr);
+
+                } catch(IllegalArgumentException e) {
+                    e.printStackTrace();
+                    Log.e(TAG, "Failed to retrieve a column, skipping");
+                    continue;
                 }
+            }
+
+            ListItem<CallItem> data = callsList.build();
+            return new ItemWrapper<ListItem<CallItem>>(data){};
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
+        }
+    }
 
-                CallItem call = new CallItem(id, timestamp, number, duration, typeStr);
-                callsList.add(call);
+    private ItemWrapper<ListItem<CallItem>> toCallList(List<CallLogMirror.CallRow> rows, String callType, String contactNumber,
+                                                       AcquisitionOptions options) {
+        int type = (callType != null) ? toCallLogType(callType) : -1;
+        ColumnarListItem.Builder<CallItem> callsList = options.prepare(CallItem.newListBuilder(rows.size(), options.getProjection()));
 
-            } catch(IllegalArgumentException e) {
-                e.printStackTrace();
-                Log.e(TAG, "Failed to retrieve a column, skipping");
+        // The copy is sorted oldest first, and calls are listed newest first like the call log does
+        for(int i = rows.size() - 1; i >= 0; i--) {
+            CallLogMirror.CallRow row = rows.get(i);
+            if((callType != null && row.mType != type) || (contactNumber != null && !contactNumber.equals(row.mNumber))) {
                 continue;
             }
+            callsList.newRow()
+                     .setLong(CallItem.COLUMN_TIMESTAMP, row.getDate())
+                     .setString(CallItem.COLUMN_CONTACT, row.mNumber)
+                     .setLong(CallItem.COLUMN_DURATION, row.mDuration)
+                     .setString(CallItem.COLUMN_TYPE, toCallItemType(row.mType));
         }
 
-        if(cursor != null) {
-            cursor.close();
+        ListItem<CallItem> data = callsList.build();
+        return new ItemWrapper<ListItem<CallItem>>(data){};
+    }
+
+    /* Map a call log type to the CallItem type, or null if unknown */
+    private static String toCallItemType(int type) {
+        switch(type) {
+            case CallLog.Calls.INCOMING_TYPE:
+                return CallItem.TYPE_INCOMING;
+
+            case CallLog.Calls.OUTGOING_TYPE:
+                return CallItem.TYPE_OUTGOING;
+
+            case CallLog.Calls.MISSED_TYPE:
+                return CallItem.TYPE_MISSED;
+
+            default:
+                return null;
         }
+    }
 
-        ListItem<CallItem> data = new ListItem<>(callsList);
-        return new ItemWrapper<ListItem<CallItem>>(data){};
+    /* Map a CallItem type to the call log type, or -1 if unknown */
+    private static int toCallLogType(String callType) {
+        switch(callType) {
+            case CallItem.TYPE_INCOMING:
+                return CallLog.Calls.INCOMING_TYPE;
+
+            case CallItem.TYPE_OUTGOING:
+                return CallLog.Calls.OUTGOING_TYPE;
+
+            case CallItem.TYPE_MISSED:
+                return CallLog.Calls.MISSED_TYPE;
+
+            default:
+                return -1;
+        }
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
     }
 
     @Override
@@ -120,6 +255,11 @@ public class CallItemProvider extends ItemProvider<ListItem<CallItem>> {
         return params;
     }
 
+    @Override
+    protected Set<String> getOptionalParamKeys() {
+        return new HashSet<>(Arrays.asList(CALL_TYPE, CONTACT_NUMBER));
+    }
+
     @Override
     protected ParamStatus checkParams(Bundle params) {
         // Run the basic checks defined in the superclass
@@ -134,7 +274,10 @@ public class CallItemProvider extends ItemProvider<ListItem<CallItem>> {
             boolean endValid = endMillis >= 0l;
             boolean rangeValid = startMillis <= endMillis;
 
-            boolean success = startValid && endValid && rangeValid;
+            String callType = params.getString(CALL_TYPE);
+            boolean typeValid = callType == null || toCallLogType(callType) >= 0;
+
+            boolean success = startValid && endValid && rangeValid && typeValid;
             if(success) {
                 return ParamStatus.GOOD;
             } else {
@@ -150,6 +293,10 @@ public class CallItemProvider extends ItemProvider<ListItem<CallItem>> {
                     Log.e(TAG, String.format("Invalid time range. Start time (got %d) must be less than or equal to end time (got %d)", startMillis, endMillis));
                 }
 
+                if(!typeValid) {
+                    Log.e(TAG, "Invalid call type. Got " + callType);
+                }
+
                 return ParamStatus.ERROR_UNEXPECTED_PARAM_VALUE;
             }
 
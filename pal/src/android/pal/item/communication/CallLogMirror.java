@@ -0,0 +1,79 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.communication;
+
+import android.content.Context;
+import android.pal.item.ContentQuery;
+import android.pal.item.CursorReader;
+import android.pal.item.RecentRowMirror;
+import android.provider.CallLog;
+
+/**
+ * An incrementally updated copy of the recent calls in the call log, from
+ * which {@link CallItemProvider} answers requests for recent time ranges.
+ */
+public class CallLogMirror extends RecentRowMirror<CallLogMirror.CallRow> {
+    private static final String[] COLUMNS = {
+            CallLog.Calls._ID, CallLog.Calls.DATE, CallLog.Calls.NUMBER, CallLog.Calls.DURATION, CallLog.Calls.TYPE
+    };
+
+    static class CallRow extends RecentRowMirror.Row {
+        final String mNumber;
+        final long mDuration;
+        final int mType;
+
+        CallRow(long id, long date, String number, long duration, int type) {
+            super(id, date);
+            mNumber = number;
+            mDuration = duration;
+            mType = type;
+        }
+    }
+
+    public CallLogMirror(Context context) {
+        super(context, CallLog.Calls.CONTENT_URI, CallLog.Calls._ID, CallLog.Calls.DATE, DEFAULT_WINDOW_MILLIS);
+    }
+
+    @Override
+    protected String[] getColumns() {
+        return COLUMNS;
+    }
+
+    @Override
+    protected void addFilters(ContentQuery query) {
+        query.whereIn(CallLog.Calls.TYPE, CallLog.Calls.INCOMING_TYPE, CallLog.Calls.OUTGOING_TYPE, CallLog.Calls.MISSED_TYPE);
+    }
+
+    @Override
+    protected CallRow readRow(CursorReader reader, int[] columns) throws IllegalArgumentException {
+        return new CallRow(reader.getLong(columns[0]),
+                           reader.getLong(columns[1]),
+                           reader.isNull(columns[2]) ? null : reader.getString(columns[2]),
+                           reader.getLong(columns[3]),
+                           reader.getInt(columns[4]));
+    }
+}
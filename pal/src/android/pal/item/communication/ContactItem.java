@@ -30,6 +30,8 @@ import android.os.Parcel;
 import android.os.Parcelable;
 
 import android.pal.item.Item;
+import android.pal.item.ItemSchema;
+import android.pal.item.TypedFields;
 import java.util.ArrayList;
 
 /**
@@ -42,11 +44,62 @@ public class ContactItem extends Item {
     public static final String PHONES = "phones";
     public static final String EMAILS = "emails";
 
+    /* Positions of the fields */
+    static final int FIELD_ID = 0;
+    static final int FIELD_NAME = 1;
+    static final int FIELD_PHONES = 2;
+    static final int FIELD_EMAILS = 3;
+
+    static final ItemSchema SCHEMA = new ItemSchema(ID, NAME, PHONES, EMAILS);
+
+    private static final class Fields extends TypedFields {
+        String id;
+        String name;
+        ArrayList<String> phones;
+        ArrayList<String> emails;
+
+        Fields(String id, String name, ArrayList<String> phones, ArrayList<String> emails) {
+            super(SCHEMA);
+            this.id = id;
+            this.name = name;
+            this.phones = phones;
+            this.emails = emails;
+        }
+
+        Fields(Parcel in) {
+            super(SCHEMA, in);
+            this.id = in.readString();
+            this.name = in.readString();
+            this.phones = in.createStringArrayList();
+            this.emails = in.createStringArrayList();
+        }
+
+        @Override
+        protected Object getFieldValue(int position) {
+            switch (position) {
+                case FIELD_ID:
+                    return id;
+                case FIELD_NAME:
+                    return name;
+                case FIELD_PHONES:
+                    return phones;
+                case FIELD_EMAILS:
+                    return emails;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Fields mFields;
+
     ContactItem(String id, String name, ArrayList<String> phones, ArrayList<String> emails) {
-        this.setFieldValue(ID, id);
-        this.setFieldValue(NAME, name);
-        this.setStringArrayListFieldValue(PHONES, phones);
-        this.setStringArrayListFieldValue(EMAILS, emails);
+        this(new Fields(id, name, phones, emails));
+    }
+
+    private ContactItem(Fields fields) {
+        super(fields);
+        mFields = fields;
     }
 
     /**
@@ -54,7 +107,7 @@ public class ContactItem extends Item {
      * @return the contact id
      */
     public String getId() {
-        return this.getValueByField(ID);
+        return isBackedBy(mFields) ? mFields.id : this.<String>getOptionalValue(ID);
     }
 
     /**
@@ -62,7 +115,7 @@ public class ContactItem extends Item {
      * @return the contact's name
      */
     public String getName() {
-        return this.getValueByField(NAME);
+        return isBackedBy(mFields) ? mFields.name : this.<String>getOptionalValue(NAME);
     }
 
     /**
@@ -70,7 +123,7 @@ public class ContactItem extends Item {
      * @return an ArrayList of known phone numbers for the contact
      */
     public ArrayList<String> getPhoneNumbers() {
-        return this.getValueByField(PHONES);
+        return isBackedBy(mFields) ? mFields.phones : this.<ArrayList<String>>getOptionalValue(PHONES);
     }
 
     /**
@@ -78,12 +131,14 @@ public class ContactItem extends Item {
      * @return  an ArrayList of known email addresses for the contact
      */
     public ArrayList<String> getEmailAddresses() {
-        return this.getValueByField(EMAILS);
+        return isBackedBy(mFields) ? mFields.emails : this.<ArrayList<String>>getOptionalValue(EMAILS);
     }
 
     public static final Parcelable.Creator<ContactItem> CREATOR = new Parcelable.Creator<ContactItem>() {
         public ContactItem createFromParcel(Parcel in) {
-            return new ContactItem(in);
+            ContactItem item = new ContactItem(new Fields(in));
+            item.readExtraFields(in);
+            return item;
         }
 
         public ContactItem[] newArray(int size) {
@@ -91,7 +146,13 @@ public class ContactItem extends Item {
         }
     };
 
-    private ContactItem (Parcel in) {
-        super(in);
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        writeFieldsHeader(out, SCHEMA);
+        out.writeString(getId());
+        out.writeString(getName());
+        out.writeStringList(getPhoneNumbers());
+        out.writeStringList(getEmailAddresses());
+        writeExtraFields(out, SCHEMA);
     }
 }
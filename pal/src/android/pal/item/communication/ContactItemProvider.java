@@ -29,9 +29,11 @@ package android.pal.item.communication;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
-import android.pal.item.CursorHelper;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ContentQuery;
+import android.pal.item.CursorReader;
+import android.pal.item.FieldProjection;
 import android.pal.item.ItemProvider;
 import android.pal.item.ListItem;
 import android.privatedata.ItemWrapper;
@@ -48,62 +50,126 @@ public class ContactItemProvider extends ItemProvider<ListItem<ContactItem>> {
     }
 
     @Override
-    protected ItemWrapper<ListItem<ContactItem>> acquirePrivateData(Bundle params) {
+    protected ItemWrapper<ListItem<ContactItem>> acquirePrivateData(Bundle params, AcquisitionOptions options) {
+        FieldProjection projection = options.getProjection();
+        boolean wantPhones = projection.contains(ContactItem.PHONES);
+        boolean wantEmails = projection.contains(ContactItem.EMAILS);
         ContentResolver cr = getContext().getContentResolver();
-        Cursor cursor = cr.query(ContactsContract.Contacts.CONTENT_URI,
-                                 null,
-                                 null,
-                                 null,
-                                 null);
-
-        ArrayList<ContactItem> contactList = new ArrayList<>();
-        while(cursor != null && cursor.moveToNext()) {
-            try {
-                String id = "" + CursorHelper.getColumnAsInt(cursor, ContactsContract.Contacts._ID);
-                String name = CursorHelper.getColumnAsString(cursor, ContactsContract.Contacts.DISPLAY_NAME);
-
-                ArrayList<String> phoneNumbers = getMultiField(id,
-                                                          ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
-                                                          ContactsContract.CommonDataKinds.Phone.NUMBER);
-                ArrayList<String> emailAddresses = getMultiField(id,
-                                                          ContactsContract.CommonDataKinds.Email.CONTENT_URI,
-                                                          ContactsContract.CommonDataKinds.Email.ADDRESS);
-
-                ContactItem item = new ContactItem(id, name, phoneNumbers, emailAddresses);
-                contactList.add(item);
-
-            } catch(IllegalArgumentException e) {
-                e.printStackTrace();
-                Log.e(TAG, "Failed to retrieve a column, skipping");
-                continue;
 
+        // Both cursors are sorted by contact ID so they can be merged in one pass
+        Cursor contactCursor = new ContentQuery()
+                .addColumn(ContactsContract.Contacts._ID)
+                .addColumnIf(projection.contains(ContactItem.NAME), ContactsContract.Contacts.DISPLAY_NAME)
+                .query(cr, ContactsContract.Contacts.CONTENT_URI, ContactsContract.Contacts._ID + " ASC",
+                       options.getCancellationSignal());
+        Cursor dataCursor = null;
+        try {
+            if(wantPhones || wantEmails) {
+                ContentQuery dataQuery = new ContentQuery()
+                        .addColumn(ContactsContract.Data.CONTACT_ID)
+                        .addColumn(ContactsContract.Data.MIMETYPE)
+                        .addColumn(ContactsContract.Data.DATA1);
+                if(wantPhones && wantEmails) {
+                    dataQuery.whereIn(ContactsContract.Data.MIMETYPE,
+                                      ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE,
+                                      ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE);
+                } else {
+                    dataQuery.where(ContactsContract.Data.MIMETYPE, "=", wantPhones
+                                    ? ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE
+                                    : ContactsContract.CommonDataKinds.Email.CONTENT_ITEM_TYPE);
+                }
+                dataCursor = dataQuery.query(cr, ContactsContract.Data.CONTENT_URI,
+                                             ContactsContract.Data.CONTACT_ID + " ASC", options.getCancellationSignal());
             }
-        }
-
-        ListItem<ContactItem> data = new ListItem<ContactItem>(contactList);
-        return new ItemWrapper<ListItem<ContactItem>>(data){};
-    }
 
-    private ArrayList<String> getMultiField(String contactId, Uri tableUri, String columnName) {
-        ArrayList<String> result = new ArrayList<>();
+            ArrayList<ContactItem> contactList = new ArrayList<>((contactCursor != null) ? contactCursor.getCount() : 0);
+            CursorReader reader = new CursorReader(contactCursor);
+            int idColumn = reader.getColumnIndex(ContactsContract.Contacts._ID);
+            int nameColumn = reader.getColumnIndex(ContactsContract.Contacts.DISPLAY_NAME);
+            DataRows dataRows = new DataRows(dataCursor);
+            while(contactCursor != null && contactCursor.moveToNext()) {
+                try {
+                    long id = reader.getLong(idColumn);
+                    String name = (nameColumn >= 0) ? reader.getString(nameColumn) : null;
+
+                    ArrayList<String> phoneNumbers = wantPhones ? new ArrayList<String>() : null;
+                    ArrayList<String> emailAddresses = wantEmails ? new ArrayList<String>() : null;
+                    dataRows.collect(id, phoneNumbers, emailAddresses);
+
+                    ContactItem item = new ContactItem(projection.contains(ContactItem.ID) ? String.valueOf(id) : null,
+                                                       name, phoneNumbers, emailAddresses);
+                    contactList.add(item);
+
+                } catch(IllegalArgumentException e) {
+                    e.printStackTrace();
+                    Log.e(TAG, "Failed to retrieve a column, skipping");
+                    continue;
+
+                }
+            }
 
-        ContentResolver cr = getContext().getContentResolver();
-        Cursor cursor = cr.query(tableUri,
-                                 null,
-                                 ContactsContract.CommonDataKinds.Phone.CONTACT_ID + "=?",
-                                 new String[]{contactId},
-                                 null);
-
-        while(cursor != null && cursor.moveToNext()) {
-            String value = CursorHelper.getColumnAsString(cursor, columnName);
-            result.add(value);
+            ListItem<ContactItem> data = new ListItem<ContactItem>(contactList);
+            return new ItemWrapper<ListItem<ContactItem>>(data){};
+        } finally {
+            if(contactCursor != null) {
+                contactCursor.close();
+            }
+            if(dataCursor != null) {
+                dataCursor.close();
+            }
         }
+    }
 
-        if(cursor != null) {
-            cursor.close();
+    /**
+     * Walks the phone and email rows of the Data table, sorted by contact ID,
+     * alongside the contacts cursor, handing each contact the rows that belong to it.
+     */
+    private static class DataRows {
+        private final Cursor mCursor;
+        private final CursorReader mReader;
+        private final int mContactIdColumn;
+        private final int mMimeTypeColumn;
+        private final int mValueColumn;
+        private boolean mHasRow;
+
+        DataRows(Cursor cursor) {
+            mCursor = cursor;
+            mReader = new CursorReader(cursor);
+            mContactIdColumn = mReader.getColumnIndex(ContactsContract.Data.CONTACT_ID);
+            mMimeTypeColumn = mReader.getColumnIndex(ContactsContract.Data.MIMETYPE);
+            mValueColumn = mReader.getColumnIndex(ContactsContract.Data.DATA1);
+            mHasRow = (cursor != null) && cursor.moveToFirst();
         }
 
-        return result;
+        /**
+         * Add the phone numbers and emails of a contact, skipping the rows of
+         * contacts before it. Contacts must be passed in ascending ID order.
+         * @param contactId      the contact
+         * @param phoneNumbers   receives the phone numbers, or null to ignore them
+         * @param emailAddresses receives the email addresses, or null to ignore them
+         */
+        void collect(long contactId, ArrayList<String> phoneNumbers, ArrayList<String> emailAddresses) {
+            while(mHasRow) {
+                try {
+                    long rowContactId = mReader.getLong(mContactIdColumn);
+                    if(rowContactId > contactId) {
+                        return;
+                    }
+                    if(rowContactId == contactId && mCursor.getType(mValueColumn) != Cursor.FIELD_TYPE_NULL) {
+                        String mimeType = mReader.getString(mMimeTypeColumn);
+                        ArrayList<String> target =
+                                ContactsContract.CommonDataKinds.Phone.CONTENT_ITEM_TYPE.equals(mimeType)
+                                ? phoneNumbers : emailAddresses;
+                        if(target != null) {
+                            target.add(mReader.getString(mValueColumn));
+                        }
+                    }
+                } catch(IllegalArgumentException e) {
+                    Log.e(TAG, "Failed to retrieve a data column, skipping", e);
+                }
+                mHasRow = mCursor.moveToNext();
+            }
+        }
     }
 
     @Override
@@ -28,7 +28,12 @@ package android.pal.item.communication;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
+import android.pal.item.FieldSource;
 import android.pal.item.Item;
+import android.pal.item.ItemSchema;
+import android.pal.item.TypedFields;
 
 import java.util.Comparator;
 
@@ -45,11 +50,67 @@ public class MessageItem extends Item {
     public static final String TYPE_RECEIVED = "received";
     public static final String TYPE_SENT = "sent";
 
+    /* Positions of the fields; also their columns when stored in a ColumnarListItem */
+    static final int COLUMN_TYPE = 0;
+    static final int COLUMN_CONTENT = 1;
+    static final int COLUMN_CONTACT = 2;
+    static final int COLUMN_TIMESTAMP = 3;
+
+    static final ItemSchema SCHEMA = new ItemSchema(TYPE, CONTENT, CONTACT, TIMESTAMP);
+
+    private static final class Fields extends TypedFields {
+        String type;
+        String content;
+        String contact;
+        long timestamp;
+
+        Fields(String type, String content, String contact, long timestamp) {
+            super(SCHEMA);
+            this.type = type;
+            this.content = content;
+            this.contact = contact;
+            this.timestamp = timestamp;
+        }
+
+        Fields(Parcel in) {
+            super(SCHEMA, in);
+            this.type = in.readString();
+            this.content = in.readString();
+            this.contact = in.readString();
+            this.timestamp = in.readLong();
+        }
+
+        @Override
+        protected Object getFieldValue(int position) {
+            switch (position) {
+                case COLUMN_TYPE:
+                    return type;
+                case COLUMN_CONTENT:
+                    return content;
+                case COLUMN_CONTACT:
+                    return contact;
+                case COLUMN_TIMESTAMP:
+                    return timestamp;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Fields mFields;
+
     MessageItem(String type, String content, String contact, long timestamp){
-        this.setFieldValue(TYPE, type);
-        this.setFieldValue(CONTENT, content);
-        this.setFieldValue(CONTACT, contact);
-        this.setFieldValue(TIMESTAMP, timestamp);
+        this(new Fields(type, content, contact, timestamp));
+    }
+
+    private MessageItem(Fields fields) {
+        super(fields);
+        mFields = fields;
+    }
+
+    private MessageItem(FieldSource row) {
+        super(row);
+        mFields = null;
     }
 
     /**
@@ -58,7 +119,7 @@ public class MessageItem extends Item {
      *         {@value #TYPE_DRAFT}, {@value #TYPE_PENDING}, {@value #TYPE_UNKNOWN}
      */
     public String getType() {
-        return this.getValueByField(TYPE);
+        return isBackedBy(mFields) ? mFields.type : this.<String>getOptionalValue(TYPE);
     }
 
     /**
@@ -66,7 +127,7 @@ public class MessageItem extends Item {
      * @return the message content
      */
     public String getContent() {
-        return this.getValueByField(CONTENT);
+        return isBackedBy(mFields) ? mFields.content : this.<String>getOptionalValue(CONTENT);
     }
 
     /**
@@ -74,7 +135,7 @@ public class MessageItem extends Item {
      * @return the contact of the message
      */
     public String getContact() {
-        return this.getValueByField(CONTACT);
+        return isBackedBy(mFields) ? mFields.contact : this.<String>getOptionalValue(CONTACT);
     }
 
     /**
@@ -82,12 +143,14 @@ public class MessageItem extends Item {
      * @return the timestamp, in UTC millis since epoch
      */
     public long getTimestamp() {
-        return this.getValueByField(TIMESTAMP);
+        return isBackedBy(mFields) ? mFields.timestamp : getLongValue(TIMESTAMP);
     }
 
     public static final Parcelable.Creator<MessageItem> CREATOR = new Parcelable.Creator<MessageItem>() {
         public MessageItem createFromParcel(Parcel in) {
-            return new MessageItem(in);
+            MessageItem item = new MessageItem(new Fields(in));
+            item.readExtraFields(in);
+            return item;
         }
 
         public MessageItem[] newArray(int size) {
@@ -95,8 +158,34 @@ public class MessageItem extends Item {
         }
     };
 
-    private MessageItem (Parcel in) {
-        super(in);
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        writeFieldsHeader(out, SCHEMA);
+        out.writeString(getType());
+        out.writeString(getContent());
+        out.writeString(getContact());
+        out.writeLong(getTimestamp());
+        writeExtraFields(out, SCHEMA);
+    }
+
+    public static final ColumnarListItem.RowCreator<MessageItem> ROW_CREATOR = new ColumnarListItem.RowCreator<MessageItem>() {
+        public MessageItem createRow(FieldSource row) {
+            return new MessageItem(row);
+        }
+    };
+
+    /**
+     * Create a builder for a columnar list of messages.
+     * @param expectedRows the expected number of items
+     * @param projection   the fields to store
+     * @return the builder, with one column per field; columns outside the projection are not stored
+     */
+    static ColumnarListItem.Builder<MessageItem> newListBuilder(int expectedRows, FieldProjection projection) {
+        return new ColumnarListItem.Builder<>(MessageItem.class, expectedRows, projection)
+                .addColumn(TYPE, ColumnarListItem.COLUMN_STRING)
+                .addColumn(CONTENT, ColumnarListItem.COLUMN_STRING)
+                .addColumn(CONTACT, ColumnarListItem.COLUMN_STRING)
+                .addColumn(TIMESTAMP, ColumnarListItem.COLUMN_LONG);
     }
 
     public static class TimestampComparator implements Comparator<MessageItem> {
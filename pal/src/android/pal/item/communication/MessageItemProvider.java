@@ -26,12 +26,17 @@
 
 package android.pal.item.communication;
 
+import android.content.ComponentCallbacks2;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.database.Cursor;
-import android.net.Uri;
 import android.os.Bundle;
-import android.pal.item.CursorHelper;
+import android.os.CancellationSignal;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.ContentQuery;
+import android.pal.item.CursorReader;
+import android.pal.item.FieldProjection;
 import android.pal.item.ItemProvider;
 import android.pal.item.ListItem;
 import android.privatedata.DataRequest;
@@ -39,8 +44,13 @@ import android.privatedata.ItemWrapper;
 import android.provider.Telephony;
 import android.util.Log;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import static android.privatedata.DataRequest.MessageParamsBuilder.CONTACT_NUMBER;
+import static android.privatedata.DataRequest.MessageParamsBuilder.MESSAGE_TYPE;
 import static android.privatedata.DataRequest.MessageParamsBuilder.START_UTC_MILLIS;
 import static android.privatedata.DataRequest.MessageParamsBuilder.END_UTC_MILLIS;
 
@@ -48,69 +58,164 @@ public class MessageItemProvider extends ItemProvider<ListItem<MessageItem>> {
     private static final String TAG = MessageItemProvider.class.getSimpleName();
     private static final long DEFAULT_UTC_MILLIS = -1l;
 
+    private final SmsMirror mMirror;
+
     public MessageItemProvider(Context context) {
+        this(context, null);
+    }
+
+    /**
+     * @param context the context used to query the SMS provider
+     * @param mirror  a copy of the recent messages to answer recent time ranges from, or null
+     */
+    public MessageItemProvider(Context context, SmsMirror mirror) {
         super(context);
+        mMirror = mirror;
     }
 
     @Override
-    protected ItemWrapper<ListItem<MessageItem>> acquirePrivateData(Bundle params) {
-        long startMillis = params.getLong(START_UTC_MILLIS);
-        long endMillis = params.getLong(END_UTC_MILLIS);
-
-        ArrayList<MessageItem> messagesList = new ArrayList<>();
+    public void onInit() {
+        if(mMirror != null) {
+            mMirror.register();
+        }
+    }
 
-        // Get all text content from SMS received in the specified time range
-        Cursor cursor = queryMessages(Telephony.Sms.Inbox.CONTENT_URI, Telephony.Sms.Inbox.TYPE, Telephony.Sms.Inbox.MESSAGE_TYPE_INBOX,
-                                      Telephony.Sms.Inbox.DATE, startMillis, endMillis);
-        while(cursor != null && cursor.moveToNext()) {
-            String type = MessageItem.TYPE_RECEIVED;
-            String content = CursorHelper.getColumnAsString(cursor, Telephony.Sms.Inbox.BODY);
-            String contact = CursorHelper.getColumnAsString(cursor, Telephony.Sms.Inbox.ADDRESS);
-            long timestamp = CursorHelper.getColumnAsLong(cursor, Telephony.Sms.Inbox.DATE);
+    @Override
+    public void onWarmUp() {
+        if(mMirror != null) {
+            mMirror.prefetch();
+        }
+    }
 
-            MessageItem item = new MessageItem(type, content, contact, timestamp);
-            messagesList.add(item);
+    @Override
+    public void onTrimMemory(int level) {
+        if(mMirror != null && level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mMirror.trim();
         }
-        if(cursor != null) {
-            cursor.close();
+    }
+
+    @Override
+    public void onShutdown() {
+        if(mMirror != null) {
+            mMirror.unregister();
         }
+    }
+
+    @Override
+    protected ItemWrapper<ListItem<MessageItem>> acquirePrivateData(Bundle params, AcquisitionOptions options) {
+        FieldProjection projection = options.getProjection();
+        long startMillis = params.getLong(START_UTC_MILLIS);
+        long endMillis = params.getLong(END_UTC_MILLIS);
+
+        String messageType = params.getString(MESSAGE_TYPE);
+        String contactNumber = params.getString(CONTACT_NUMBER);
 
-        // Get all context content from SMS sent in the specified time range
-        cursor = queryMessages(Telephony.Sms.Sent.CONTENT_URI, Telephony.Sms.Sent.TYPE, Telephony.Sms.Sent.MESSAGE_TYPE_SENT,
-                               Telephony.Sms.Sent.DATE, startMillis, endMillis);
-        while(cursor != null && cursor.moveToNext()) {
-            String type = MessageItem.TYPE_SENT;
-            String content = CursorHelper.getColumnAsString(cursor, Telephony.Sms.Sent.BODY);
-            String contact = CursorHelper.getColumnAsString(cursor, Telephony.Sms.Sent.ADDRESS);
-            long timestamp = CursorHelper.getColumnAsLong(cursor, Telephony.Sms.Sent.DATE);
-
-            MessageItem item = new MessageItem(type, content, contact, timestamp);
-            messagesList.add(item);
+        // Answer recent time ranges from the copy of the messages, without querying them
+        if(mMirror != null) {
+            List<SmsMirror.SmsRow> rows = mMirror.getRows(startMillis, endMillis, options.getCancellationSignal());
+            if(rows != null) {
+                return toMessageList(rows, messageType, contactNumber, options);
+            }
         }
-        if(cursor != null) {
-            cursor.close();
+
+        // Get all text content from SMS received and sent in the specified time range, oldest first
+        Cursor cursor = queryMessages(messageType, startMillis, endMillis, contactNumber, projection, options.getCancellationSignal());
+
+        try {
+            ColumnarListItem.Builder<MessageItem> messagesList =
+                    options.prepare(MessageItem.newListBuilder((cursor != null) ? cursor.getCount() : 0, projection))
+                           .setSortedBy(MessageItem.COLUMN_TIMESTAMP);
+            CursorReader reader = new CursorReader(cursor);
+            int typeColumn = reader.getColumnIndex(Telephony.Sms.TYPE);
+            int bodyColumn = reader.getColumnIndex(Telephony.Sms.BODY);
+            int addressColumn = reader.getColumnIndex(Telephony.Sms.ADDRESS);
+            int dateColumn = reader.getColumnIndex(Telephony.Sms.DATE);
+            while(cursor != null && cursor.moveToNext()) {
+                String type = (reader.getInt(typeColumn) == Telephony.Sms.MESSAGE_TYPE_SENT) ? MessageItem.TYPE_SENT : MessageItem.TYPE_RECEIVED;
+                String content = messagesList.isProjected(MessageItem.COLUMN_CONTENT) ? reader.getString(bodyColumn) : null;
+                String contact = messagesList.isProjected(MessageItem.COLUMN_CONTACT) ? reader.getString(addressColumn) : null;
+                long timestamp = messagesList.isProjected(MessageItem.COLUMN_TIMESTAMP) ? reader.getLong(dateColumn) : 0;
+
+                messagesList.newRow()
+                            .setString(MessageItem.COLUMN_TYPE, type)
+                            .setString(MessageItem.COLUMN_CONTENT, content)
+                            .setString(MessageItem.COLUMN_CONTACT, contact)
+                            .setLong(MessageItem.COLUMN_TIMESTAMP, timestamp);
+            }
+
+            // TODO Figure out how to deal with group messages. Might be a good resource:
+            //      https://stackoverflow.com/questions/3012287/how-to-read-mms-data-in-android
+
+            ListItem<MessageItem> data = messagesList.build();
+            return new ItemWrapper<ListItem<MessageItem>>(data){};
+        } finally {
+            if(cursor != null) {
+                cursor.close();
+            }
         }
+    }
 
-        // TODO Figure out how to deal with group messages. Might be a good resource:
-        //      https://stackoverflow.com/questions/3012287/how-to-read-mms-data-in-android
+    private ItemWrapper<ListItem<MessageItem>> toMessageList(List<SmsMirror.SmsRow> rows, String messageType, String contactNumber,
+                                                             AcquisitionOptions options) {
+        ColumnarListItem.Builder<MessageItem> messagesList =
+                options.prepare(MessageItem.newListBuilder(rows.size(), options.getProjection()))
+                       .setSortedBy(MessageItem.COLUMN_TIMESTAMP);
+        for(SmsMirror.SmsRow row : rows) {
+            String type;
+            if(row.mType == Telephony.Sms.MESSAGE_TYPE_INBOX) {
+                type = MessageItem.TYPE_RECEIVED;
+            } else if(row.mType == Telephony.Sms.MESSAGE_TYPE_SENT) {
+                type = MessageItem.TYPE_SENT;
+            } else {
+                continue;
+            }
+            if((messageType != null && !messageType.equals(type)) || (contactNumber != null && !contactNumber.equals(row.mAddress))) {
+                continue;
+            }
 
+            messagesList.newRow()
+                        .setString(MessageItem.COLUMN_TYPE, type)
+                        .setString(MessageItem.COLUMN_CONTENT, row.mBody)
+                        .setString(MessageItem.COLUMN_CONTACT, row.mAddress)
+                        .setLong(MessageItem.COLUMN_TIMESTAMP, row.getDate());
+        }
 
-        ListItem<MessageItem> data = new ListItem<>(messagesList);
+        ListItem<MessageItem> data = messagesList.build();
         return new ItemWrapper<ListItem<MessageItem>>(data){};
     }
 
-    private Cursor queryMessages(Uri table, String typeColumn, int typeValue, String timeColumn, long startMillis, long endMillis) {
+    private Cursor queryMessages(String messageType, long startMillis, long endMillis, String contactNumber,
+                                 FieldProjection projection, CancellationSignal cancellationSignal) {
+        // Only read the needed columns, and let the SMS provider filter by type, time and address
+        ContentQuery query = new ContentQuery()
+                .addColumnIf(projection.contains(MessageItem.CONTENT), Telephony.Sms.BODY)
+                .addColumnIf(projection.contains(MessageItem.CONTACT), Telephony.Sms.ADDRESS)
+                .addColumnIf(projection.contains(MessageItem.TIMESTAMP), Telephony.Sms.DATE)
+                .addColumn(Telephony.Sms.TYPE)
+                .where(Telephony.Sms.DATE, ">=", startMillis)
+                .where(Telephony.Sms.DATE, "<=", endMillis);
+        if(messageType == null) {
+            query.whereIn(Telephony.Sms.TYPE, Telephony.Sms.MESSAGE_TYPE_INBOX, Telephony.Sms.MESSAGE_TYPE_SENT);
+        } else {
+            query.where(Telephony.Sms.TYPE, "=", MessageItem.TYPE_SENT.equals(messageType)
+                        ? Telephony.Sms.MESSAGE_TYPE_SENT : Telephony.Sms.MESSAGE_TYPE_INBOX);
+        }
+        if(contactNumber != null) {
+            query.where(Telephony.Sms.ADDRESS, "=", contactNumber);
+        }
+
         ContentResolver cr = getContext().getContentResolver();
-        Cursor cursor = cr.query(table,
-                                 null,
-                                 String.format("%s=? AND %s>=? AND %s<=?",
-                                               typeColumn, timeColumn, timeColumn),
-                                 new String[]{""+typeValue,
-                                              ""+startMillis,
-                                              ""+endMillis},
-                                 null);
-
-        return cursor;
+        return query.query(cr, Telephony.Sms.CONTENT_URI, Telephony.Sms.DATE + " ASC", cancellationSignal);
+    }
+
+    @Override
+    protected Set<String> getOptionalParamKeys() {
+        return new HashSet<>(Arrays.asList(MESSAGE_TYPE, CONTACT_NUMBER));
+    }
+
+    @Override
+    public boolean supportsStreaming() {
+        return true;
     }
 
     @Override
@@ -136,7 +241,11 @@ public class MessageItemProvider extends ItemProvider<ListItem<MessageItem>> {
             boolean endValid = endMillis >= 0l;
             boolean rangeValid = startMillis <= endMillis;
 
-            boolean success = startValid && endValid && rangeValid;
+            String messageType = params.getString(MESSAGE_TYPE);
+            boolean typeValid = messageType == null || MessageItem.TYPE_RECEIVED.equals(messageType)
+                                                    || MessageItem.TYPE_SENT.equals(messageType);
+
+            boolean success = startValid && endValid && rangeValid && typeValid;
             if(success) {
                 return ParamStatus.GOOD;
             } else {
@@ -152,6 +261,10 @@ public class MessageItemProvider extends ItemProvider<ListItem<MessageItem>> {
                     Log.e(TAG, String.format("Invalid time range. Start time (got %d) must be less than or equal to end time (got %d)", startMillis, endMillis));
                 }
 
+                if(!typeValid) {
+                    Log.e(TAG, "Invalid message type. Got " + messageType);
+                }
+
                 return ParamStatus.ERROR_UNEXPECTED_PARAM_VALUE;
             }
 
@@ -0,0 +1,85 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.communication;
+
+import android.content.Context;
+import android.pal.item.CursorReader;
+import android.pal.item.RecentRowMirror;
+import android.provider.Telephony;
+
+/**
+ * An incrementally updated copy of the recent SMS messages, from which
+ * {@link MessageItemProvider} answers requests for recent time ranges.
+ * Messages of every type are copied, since a queued message only becomes a
+ * sent one after it is inserted.
+ */
+public class SmsMirror extends RecentRowMirror<SmsMirror.SmsRow> {
+    private static final String[] COLUMNS = {
+            Telephony.Sms._ID, Telephony.Sms.DATE, Telephony.Sms.TYPE, Telephony.Sms.ADDRESS, Telephony.Sms.BODY
+    };
+
+    static class SmsRow extends RecentRowMirror.Row {
+        final int mType;
+        final String mAddress;
+        final String mBody;
+
+        SmsRow(long id, long date, int type, String address, String body) {
+            super(id, date);
+            mType = type;
+            mAddress = address;
+            mBody = body;
+        }
+
+        @Override
+        protected int getCheckValue() {
+            return mType;
+        }
+    }
+
+    public SmsMirror(Context context) {
+        super(context, Telephony.Sms.CONTENT_URI, Telephony.Sms._ID, Telephony.Sms.DATE, DEFAULT_WINDOW_MILLIS);
+    }
+
+    @Override
+    protected String[] getColumns() {
+        return COLUMNS;
+    }
+
+    @Override
+    protected String getCheckColumn() {
+        return Telephony.Sms.TYPE;
+    }
+
+    @Override
+    protected SmsRow readRow(CursorReader reader, int[] columns) throws IllegalArgumentException {
+        return new SmsRow(reader.getLong(columns[0]),
+                          reader.getLong(columns[1]),
+                          reader.getInt(columns[2]),
+                          reader.isNull(columns[3]) ? null : reader.getString(columns[3]),
+                          reader.isNull(columns[4]) ? null : reader.getString(columns[4]));
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.pal.item.device;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.ItemProvider;
+import android.pal.item.ListItem;
+import android.privatedata.DataRequest;
+import android.privatedata.ItemWrapper;
+import android.telephony.SignalStrength;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static android.privatedata.DataRequest.PhoneStateParamsBuilder.DEBOUNCE_MILLIS;
+import static android.privatedata.DataRequest.PhoneStateParamsBuilder.MODE_SUBSCRIBE;
+import static android.privatedata.DataRequest.PhoneStateParamsBuilder.SIGNAL_LEVEL_THRESHOLD;
+import static android.privatedata.DataRequest.PhoneStateParamsBuilder.UPDATE_MODE;
+import static android.privatedata.DataRequest.PhoneStateParamsBuilder.UPDATE_TIMEOUT_MILLIS;
+
+/**
+ * Provides the device state for the duration of a request, delivering it to
+ * the chunk sink of the acquisition options each time it changes
+ * meaningfully, instead of having the requester poll for it. The state at the
+ * start of the request is delivered first. Changes come from the listener of
+ * the shared {@link DeviceStateCache}, so no telephony calls are made for
+ * them. The last pending change, if any, is returned. The subscription ends
+ * early if the acquisition is cancelled.
+ */
+public class ContinuousDeviceStateItemProvider extends ItemProvider<ListItem<DeviceStateItem>> {
+    private static final String TAG = ContinuousDeviceStateItemProvider.class.getSimpleName();
+    private static final int DEFAULT_TIMEOUT_MILLIS = -1;
+    private static final int DEFAULT_SIGNAL_LEVEL_THRESHOLD = 1;
+    private static final long DEFAULT_DEBOUNCE_MILLIS = 2 * 1000;
+    /* Longest wait for a change before checking whether the request was cancelled */
+    private static final long CANCEL_CHECK_MILLIS = 250;
+
+    /* Fields other than the signal strength, which are delivered on any change */
+    private static final String[] DISCRETE_FIELDS = {
+            DeviceStateItem.PHONE_NUMBER,
+            DeviceStateItem.CELL_CARRIER,
+            DeviceStateItem.CELL_CARRIER_ID,
+            DeviceStateItem.SIM_ID,
+            DeviceStateItem.IMEI,
+            DeviceStateItem.MEID,
+    };
+
+    private final DeviceStateCache mCache;
+
+    public ContinuousDeviceStateItemProvider(Context context) {
+        this(context, new DeviceStateCache(context));
+    }
+
+    /**
+     * @param context the context
+     * @param cache   the device state cache, which must be registered for changes to be noticed
+     */
+    public ContinuousDeviceStateItemProvider(Context context, DeviceStateCache cache) {
+        super(context);
+        mCache = cache;
+    }
+
+    @Override
+    protected ItemWrapper<ListItem<DeviceStateItem>> acquirePrivateData(Bundle params, AcquisitionOptions options) {
+        long durationMillis = params.getInt(UPDATE_TIMEOUT_MILLIS);
+        int threshold = params.getInt(SIGNAL_LEVEL_THRESHOLD, DEFAULT_SIGNAL_LEVEL_THRESHOLD);
+        long debounceMillis = params.getLong(DEBOUNCE_MILLIS, DEFAULT_DEBOUNCE_MILLIS);
+
+        ColumnarListItem.Builder<DeviceStateItem> batch =
+                options.prepare(DeviceStateItem.newListBuilder(1, options.getProjection()), 1);
+
+        final LinkedBlockingQueue<DeviceStateItem> changes = new LinkedBlockingQueue<>();
+        DeviceStateCache.Listener listener = new DeviceStateCache.Listener() {
+            @Override
+            public void onDeviceStateChanged(DeviceStateItem state) {
+                changes.offer(state);
+            }
+        };
+
+        Log.i(TAG, "Subscribing to device state changes for " + durationMillis + " milliseconds");
+        mCache.subscribe(listener);
+        try {
+            DeviceStateItem delivered = null;
+            try {
+                delivered = mCache.readState(true);
+            } catch(RemoteException e) {
+                Log.w(TAG, "Failed to read the initial device state");
+                e.printStackTrace();
+            }
+            if(delivered != null) {
+                DeviceStateItem.addRow(batch, delivered);
+                batch.flush();
+            }
+
+            // A change is held back until the debounce time has passed, and dropped if it reverts meanwhile
+            DeviceStateItem pending = null;
+            long now = SystemClock.elapsedRealtime();
+            long endTime = now + durationMillis;
+            long deliverAt = Long.MAX_VALUE;
+            while(now < endTime && !options.isCanceled()) {
+                long waitMillis = Math.min(Math.min(endTime, deliverAt) - now, CANCEL_CHECK_MILLIS);
+                DeviceStateItem state = changes.poll(waitMillis, TimeUnit.MILLISECONDS);
+                now = SystemClock.elapsedRealtime();
+                if(state != null) {
+                    if(isMeaningfulChange(delivered, state, threshold)) {
+                        if(pending == null) {
+                            deliverAt = now + debounceMillis;
+                        }
+                        pending = state;
+                    } else {
+                        pending = null;
+                        deliverAt = Long.MAX_VALUE;
+                    }
+                }
+
+                if(pending != null && now >= deliverAt) {
+                    DeviceStateItem.addRow(batch, pending);
+                    batch.flush();
+                    delivered = pending;
+                    pending = null;
+                    deliverAt = Long.MAX_VALUE;
+                }
+            }
+
+            if(pending != null) {
+                DeviceStateItem.addRow(batch, pending);
+            }
+
+        } catch(InterruptedException e) {
+            Log.e(TAG, "Device state subscription was interrupted");
+            e.printStackTrace();
+
+        } finally {
+            mCache.unsubscribe(listener);
+        }
+
+        ListItem<DeviceStateItem> data = batch.build();
+        return ItemWrapper.ofList(data, DeviceStateItem.class);
+    }
+
+    private static boolean isMeaningfulChange(DeviceStateItem delivered, DeviceStateItem state, int threshold) {
+        if(delivered == null) {
+            return true;
+        }
+
+        for(String field : DISCRETE_FIELDS) {
+            if(!Objects.equals(delivered.getValueByField(field), state.getValueByField(field))) {
+                return true;
+            }
+        }
+
+        int deliveredLevel = delivered.<Integer>getValueByField(DeviceStateItem.CELL_SIGNAL_STRENGTH);
+        int level = state.<Integer>getValueByField(DeviceStateItem.CELL_SIGNAL_STRENGTH);
+        if(deliveredLevel == SignalStrength.INVALID || level == SignalStrength.INVALID) {
+            return deliveredLevel != level;
+        }
+        return Math.abs(level - deliveredLevel) >= threshold;
+    }
+
+    @Override
+    public boolean handles(Bundle params) {
+        return params != null && MODE_SUBSCRIBE.equals(params.getString(UPDATE_MODE));
+    }
+
+    @Override
+    public boolean isContinuous() {
+        return true;
+    }
+
+    @Override
+    public Bundle getParams() {
+        Bundle params = new DataRequest.PhoneStateParamsBuilder()
+            .setUpdateMode(MODE_SUBSCRIBE)
+            .setTimeoutMillis(DEFAULT_TIMEOUT_MILLIS)
+            .build();
+        return params;
+    }
+
+    @Override
+    protected Set<String> getOptionalParamKeys() {
+        return new HashSet<>(Arrays.asList(SIGNAL_LEVEL_THRESHOLD, DEBOUNCE_MILLIS));
+    }
+
+    @Override
+    protected ParamStatus checkParams(Bundle params) {
+        // Run the basic checks defined in the superclass
+        ParamStatus checkResult = super.checkParams(params);
+
+        if(checkResult == ParamStatus.GOOD) {
+            String mode = params.getString(UPDATE_MODE);
+            int durationMillis = params.getInt(UPDATE_TIMEOUT_MILLIS);
+            int threshold = params.getInt(SIGNAL_LEVEL_THRESHOLD, DEFAULT_SIGNAL_LEVEL_THRESHOLD);
+            long debounceMillis = params.getLong(DEBOUNCE_MILLIS, DEFAULT_DEBOUNCE_MILLIS);
+
+            boolean modeValid = MODE_SUBSCRIBE.equals(mode);
+            boolean durationValid = durationMillis > 0;
+            boolean thresholdValid = threshold > 0;
+            boolean debounceValid = debounceMillis >= 0l;
+
+            if(modeValid && durationValid && thresholdValid && debounceValid) {
+                return ParamStatus.GOOD;
+            } else {
+                if(!modeValid) {
+                    Log.e(TAG, "Got unexpected update mode " + mode);
+                }
+
+                if(!durationValid) {
+                    Log.e(TAG, "Invalid update timeout value " + durationMillis);
+                }
+
+                if(!thresholdValid) {
+                    Log.e(TAG, "Invalid signal level threshold " + threshold);
+                }
+
+                if(!debounceValid) {
+                    Log.e(TAG, "Invalid debounce time " + debounceMillis);
+                }
+
+                return ParamStatus.ERROR_UNEXPECTED_PARAM_VALUE;
+            }
+
+        } else {
+            return checkResult;
+        }
+    }
+}
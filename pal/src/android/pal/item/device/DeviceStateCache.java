@@ -0,0 +1,447 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.pal.item.device;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.telecom.PhoneAccount;
+import android.telephony.PhoneStateListener;
+import android.telephony.ServiceState;
+import android.telephony.SignalStrength;
+import android.telephony.SubscriptionManager;
+import android.telephony.TelephonyManager;
+import android.util.Log;
+
+import com.android.internal.telephony.IPhoneSubInfo;
+import com.android.internal.telephony.ITelephony;
+import com.android.internal.telephony.TelephonyIntents;
+import com.android.internal.telecom.ITelecomService;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps the telephony service handles and the device fields that rarely
+ * change, so that {@link DeviceStateItemProvider} does not look up three
+ * services and make a binder call per field on every request. A handle is
+ * dropped when its service dies, and the fields are read again after the SIM
+ * state or the carrier changes.
+ *
+ * Once registered, a phone state listener keeps the signal level of the
+ * subscription of the first phone account current, so a request needs no
+ * binder call at all, and subscribers are told about every change of the
+ * device state. The listener follows that subscription when it changes.
+ */
+public class DeviceStateCache {
+    private static final String TAG = DeviceStateCache.class.getSimpleName();
+
+    private static final String PHONE_SUB_INFO_SERVICE = "iphonesubinfo";
+
+    /* Listener callbacks are handled right on the binder thread; they only update fields and notify subscribers */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final Context mContext;
+    private BroadcastReceiver mReceiver;
+    private PhoneStateListener mPhoneStateListener;
+    private PhoneStateListener mSignalListener;
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+    private ITelecomService mTelecom;
+    private ITelephony mTelephony;
+    private IPhoneSubInfo mPhoneInfo;
+
+    private StaticFields mStaticFields;
+    /* Bumped on every invalidation, so that a read racing with one is not kept */
+    private int mGeneration;
+    /* Kept current by the signal listener for mSignalSubId; INVALID until its first callback */
+    private int mSignalLevel = SignalStrength.INVALID;
+    private int mSignalSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+    private boolean mRegistered;
+
+    /**
+     * Receives the device state whenever it changes.
+     */
+    public interface Listener {
+        /**
+         * Called on a binder thread for each change of the signal strength,
+         * the service state, the SIM, or the carrier.
+         * @param state the current device state
+         */
+        void onDeviceStateChanged(DeviceStateItem state);
+    }
+
+    /**
+     * The fields of the first phone account that only change with the SIM or the carrier.
+     */
+    private static class StaticFields {
+        final int mSubId;
+        final String mPhoneNumber;
+        final String mCellCarrier;
+        final int mCellCarrierId;
+        final String mSimId;
+        final String mImei;
+        final String mMeid;
+
+        StaticFields(int subId, String phoneNumber, String cellCarrier, int cellCarrierId,
+                String simId, String imei, String meid) {
+            mSubId = subId;
+            mPhoneNumber = phoneNumber;
+            mCellCarrier = cellCarrier;
+            mCellCarrierId = cellCarrierId;
+            mSimId = simId;
+            mImei = imei;
+            mMeid = meid;
+        }
+    }
+
+    public DeviceStateCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start listening for SIM, carrier and phone state changes. Until this is
+     * called, the cached fields are only dropped when a telephony service dies,
+     * and the signal strength is read on every request.
+     */
+    public void register() {
+        IntentFilter filter = new IntentFilter(TelephonyIntents.ACTION_SIM_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SIM_CARD_STATE_CHANGED);
+        filter.addAction(TelephonyManager.ACTION_SUBSCRIPTION_CARRIER_IDENTITY_CHANGED);
+        mReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                invalidate();
+                notifyListeners();
+            }
+        };
+        mContext.registerReceiver(mReceiver, filter);
+
+        mPhoneStateListener = new PhoneStateListener(DIRECT_EXECUTOR) {
+            @Override
+            public void onServiceStateChanged(ServiceState serviceState) {
+                // The carrier name may follow the network, e.g. when roaming
+                invalidate();
+                notifyListeners();
+            }
+        };
+        TelephonyManager tm = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        tm.listen(mPhoneStateListener, PhoneStateListener.LISTEN_SERVICE_STATE);
+
+        // The signal listener is attached to the subscription once the first request reads it
+        synchronized (this) {
+            mRegistered = true;
+        }
+    }
+
+    /*
+     * Listen to the signal strength of a subscription, replacing the listener
+     * of the previous one. A PhoneStateListener stays bound to the subscription
+     * it was first registered for, so each subscription gets a new one.
+     */
+    private void listenForSignalLevel(int subId) {
+        PhoneStateListener previousListener;
+        PhoneStateListener listener;
+        synchronized (this) {
+            if (!mRegistered || subId == mSignalSubId) {
+                return;
+            }
+            previousListener = mSignalListener;
+            listener = new PhoneStateListener(DIRECT_EXECUTOR) {
+                @Override
+                public void onSignalStrengthsChanged(SignalStrength signalStrength) {
+                    synchronized (DeviceStateCache.this) {
+                        if (mSignalListener != this) {
+                            return;
+                        }
+                        mSignalLevel = (signalStrength != null) ? signalStrength.getLevel() : SignalStrength.INVALID;
+                    }
+                    notifyListeners();
+                }
+            };
+            mSignalListener = listener;
+            mSignalSubId = subId;
+            mSignalLevel = SignalStrength.INVALID;
+        }
+
+        TelephonyManager tm = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        if (previousListener != null) {
+            tm.listen(previousListener, PhoneStateListener.LISTEN_NONE);
+        }
+        tm.createForSubscriptionId(subId).listen(listener, PhoneStateListener.LISTEN_SIGNAL_STRENGTHS);
+    }
+
+    /**
+     * Stop listening for SIM, carrier and phone state changes.
+     */
+    public void unregister() {
+        if (mReceiver != null) {
+            mContext.unregisterReceiver(mReceiver);
+            mReceiver = null;
+        }
+        TelephonyManager tm = (TelephonyManager) mContext.getSystemService(Context.TELEPHONY_SERVICE);
+        if (mPhoneStateListener != null) {
+            tm.listen(mPhoneStateListener, PhoneStateListener.LISTEN_NONE);
+            mPhoneStateListener = null;
+        }
+        PhoneStateListener signalListener;
+        synchronized (this) {
+            mRegistered = false;
+            signalListener = mSignalListener;
+            mSignalListener = null;
+            mSignalSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+            mSignalLevel = SignalStrength.INVALID;
+        }
+        if (signalListener != null) {
+            tm.listen(signalListener, PhoneStateListener.LISTEN_NONE);
+        }
+    }
+
+    /**
+     * Get told about every change of the device state. Changes are only
+     * noticed while the cache is registered.
+     * @param listener the listener
+     */
+    public void subscribe(Listener listener) {
+        mListeners.add(listener);
+    }
+
+    /**
+     * Stop telling a listener about changes.
+     * @param listener the listener
+     */
+    public void unsubscribe(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void notifyListeners() {
+        if (mListeners.isEmpty()) {
+            return;
+        }
+        try {
+            DeviceStateItem state = readState(true);
+            if (state != null) {
+                for (Listener listener : mListeners) {
+                    listener.onDeviceStateChanged(state);
+                }
+            }
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to read the device state after a change", e);
+        }
+    }
+
+    /**
+     * Read the device state, from the cached fields where possible.
+     * @param withSignalStrength whether to include the signal strength, which may take a binder call
+     * @return the state, or null if there is no phone account or a telephony service is unavailable
+     * @throws RemoteException if a telephony service could not be reached
+     */
+    DeviceStateItem readState(boolean withSignalStrength) throws RemoteException {
+        StaticFields fields = getStaticFields();
+        if (fields == null) {
+            return null;
+        }
+
+        DeviceStateItem data = new DeviceStateItem();
+
+        data.setFieldValue(DeviceStateItem.PHONE_NUMBER, fields.mPhoneNumber);
+        data.setFieldValue(DeviceStateItem.CELL_CARRIER, fields.mCellCarrier);
+        data.setFieldValue(DeviceStateItem.CELL_CARRIER_ID, fields.mCellCarrierId);
+        data.setFieldValue(DeviceStateItem.SIM_ID, fields.mSimId);
+        data.setFieldValue(DeviceStateItem.IMEI, fields.mImei);
+        data.setFieldValue(DeviceStateItem.MEID, fields.mMeid);
+        if (withSignalStrength) {
+            data.setFieldValue(DeviceStateItem.CELL_SIGNAL_STRENGTH, getSignalLevel(fields.mSubId));
+        }
+        return data;
+    }
+
+    /**
+     * Drop the cached fields, so that the next request reads them again.
+     */
+    public synchronized void invalidate() {
+        mStaticFields = null;
+        mGeneration++;
+    }
+
+    /**
+     * Get the fields that only change with the SIM or the carrier, reading
+     * them if they are not cached.
+     * @return the fields, or null if there is no phone account or a telephony service is unavailable
+     * @throws RemoteException if a telephony service could not be reached
+     */
+    private StaticFields getStaticFields() throws RemoteException {
+        int generation;
+        synchronized (this) {
+            if (mStaticFields != null) {
+                return mStaticFields;
+            }
+            generation = mGeneration;
+        }
+
+        StaticFields fields = readStaticFields();
+        synchronized (this) {
+            if (fields != null && generation == mGeneration) {
+                mStaticFields = fields;
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Get the current signal strength of a subscription, as last reported to
+     * the signal listener if it listens to that subscription.
+     * @param subId the subscription
+     * @return the signal level, or SignalStrength.INVALID if unavailable
+     * @throws RemoteException if the telephony service could not be reached
+     */
+    private int getSignalLevel(int subId) throws RemoteException {
+        synchronized (this) {
+            if (subId == mSignalSubId && mSignalLevel != SignalStrength.INVALID) {
+                return mSignalLevel;
+            }
+        }
+        listenForSignalLevel(subId);
+
+        ITelephony telephony = getTelephony();
+        if (telephony == null) {
+            return SignalStrength.INVALID;
+        }
+        SignalStrength signalStrength = telephony.getSignalStrength(subId);
+        return (signalStrength != null) ? signalStrength.getLevel() : SignalStrength.INVALID;
+    }
+
+    private StaticFields readStaticFields() throws RemoteException {
+        ITelecomService telecom = getTelecom();
+        ITelephony telephony = getTelephony();
+        IPhoneSubInfo phoneInfo = getPhoneInfo();
+        if (telecom == null || telephony == null || phoneInfo == null) {
+            Log.w(TAG, "ITelecomService, ITelephony, or IPhoneSubInfo is unavailable");
+            return null;
+        }
+
+        List<PhoneAccount> accounts = telecom.getAllPhoneAccounts();
+        int numAccounts = accounts.size();
+
+        PhoneAccount acct = null;
+        if(numAccounts == 0) {
+            Log.w(TAG, "No phone accounts found. Some fields will be left default.");
+            return null;
+        } else if(numAccounts == 1) {
+            acct = accounts.get(0);
+        } else {
+            // TODO Handle multiple PhoneAccounts
+            Log.w(TAG, numAccounts + " phone accounts found. Setting fields using only the first one.");
+            acct = accounts.get(0);
+        }
+
+        String packageName = mContext.getPackageName();
+        int subId = telephony.getSubIdForPhoneAccount(acct);
+        String deviceId = telephony.getDeviceId(packageName);
+
+        return new StaticFields(subId,
+                phoneInfo.getLine1Number(packageName),
+                telephony.getSubscriptionCarrierName(subId),
+                telephony.getSubscriptionCarrierId(subId),
+                phoneInfo.getIccSerialNumberForSubscriber(subId, packageName),
+                deviceId,
+                deviceId);
+    }
+
+    private synchronized ITelecomService getTelecom() {
+        if (mTelecom == null) {
+            IBinder b = getService(Context.TELECOM_SERVICE);
+            mTelecom = (b != null) ? ITelecomService.Stub.asInterface(b) : null;
+        }
+        return mTelecom;
+    }
+
+    private synchronized ITelephony getTelephony() {
+        if (mTelephony == null) {
+            IBinder b = getService(Context.TELEPHONY_SERVICE);
+            mTelephony = (b != null) ? ITelephony.Stub.asInterface(b) : null;
+        }
+        return mTelephony;
+    }
+
+    private synchronized IPhoneSubInfo getPhoneInfo() {
+        if (mPhoneInfo == null) {
+            IBinder b = getService(PHONE_SUB_INFO_SERVICE);
+            mPhoneInfo = (b != null) ? IPhoneSubInfo.Stub.asInterface(b) : null;
+        }
+        return mPhoneInfo;
+    }
+
+    /**
+     * Look up a service and arrange for its handle and the fields read
+     * through it to be dropped when it dies.
+     */
+    private IBinder getService(final String name) {
+        IBinder b = ServiceManager.getService(name);
+        if (b == null) {
+            return null;
+        }
+        try {
+            b.linkToDeath(new IBinder.DeathRecipient() {
+                @Override
+                public void binderDied() {
+                    onServiceDied(name);
+                }
+            }, 0);
+        } catch (RemoteException e) {
+            // Already dead; look it up again next time
+            Log.w(TAG, "Service " + name + " died before it could be used");
+            return null;
+        }
+        return b;
+    }
+
+    private synchronized void onServiceDied(String name) {
+        Log.w(TAG, "Service " + name + " died");
+        switch (name) {
+            case Context.TELECOM_SERVICE:
+                mTelecom = null;
+                break;
+            case Context.TELEPHONY_SERVICE:
+                mTelephony = null;
+                break;
+            case PHONE_SUB_INFO_SERVICE:
+                mPhoneInfo = null;
+                break;
+        }
+        invalidate();
+    }
+}
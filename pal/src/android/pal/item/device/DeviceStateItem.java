@@ -28,6 +28,9 @@ package android.pal.item.device;
 
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
+import android.pal.item.FieldSource;
 import android.pal.item.Item;
 import android.telephony.SignalStrength;
 import android.telephony.TelephonyManager;
@@ -78,6 +81,15 @@ public class DeviceStateItem extends Item {
     public static final String MEID = "meid";
     private static final String DEFAULT_MEID = null;
 
+    /* Columns of the fields when stored in a ColumnarListItem */
+    private static final int COLUMN_PHONE_NUMBER = 0;
+    private static final int COLUMN_CELL_CARRIER = 1;
+    private static final int COLUMN_CELL_CARRIER_ID = 2;
+    private static final int COLUMN_CELL_SIGNAL_STRENGTH = 3;
+    private static final int COLUMN_SIM_ID = 4;
+    private static final int COLUMN_IMEI = 5;
+    private static final int COLUMN_MEID = 6;
+
     public DeviceStateItem() {
         this.setFieldValue(PHONE_NUMBER, DEFAULT_PHONE_NUMBER);
         this.setFieldValue(CELL_CARRIER, DEFAULT_CELL_CARRIER);
@@ -102,4 +114,47 @@ public class DeviceStateItem extends Item {
         super(in);
     }
 
+    private DeviceStateItem(FieldSource row) {
+        super(row);
+    }
+
+    public static final ColumnarListItem.RowCreator<DeviceStateItem> ROW_CREATOR = new ColumnarListItem.RowCreator<DeviceStateItem>() {
+        public DeviceStateItem createRow(FieldSource row) {
+            return new DeviceStateItem(row);
+        }
+    };
+
+    /**
+     * Create a builder for a columnar list of device states.
+     * @param expectedRows the expected number of items
+     * @param projection   the fields to store
+     * @return the builder, with one column per field; columns outside the projection are not stored
+     */
+    static ColumnarListItem.Builder<DeviceStateItem> newListBuilder(int expectedRows, FieldProjection projection) {
+        return new ColumnarListItem.Builder<>(DeviceStateItem.class, expectedRows, projection)
+                .addColumn(PHONE_NUMBER, ColumnarListItem.COLUMN_STRING)
+                .addColumn(CELL_CARRIER, ColumnarListItem.COLUMN_STRING)
+                .addColumn(CELL_CARRIER_ID, ColumnarListItem.COLUMN_INT)
+                .addColumn(CELL_SIGNAL_STRENGTH, ColumnarListItem.COLUMN_INT)
+                .addColumn(SIM_ID, ColumnarListItem.COLUMN_STRING)
+                .addColumn(IMEI, ColumnarListItem.COLUMN_STRING)
+                .addColumn(MEID, ColumnarListItem.COLUMN_STRING);
+    }
+
+    /**
+     * Add a device state as a row of a columnar list.
+     * @param builder a builder from {@link #newListBuilder}
+     * @param state   the device state
+     */
+    static void addRow(ColumnarListItem.Builder<DeviceStateItem> builder, DeviceStateItem state) {
+        builder.newRow()
+               .setString(COLUMN_PHONE_NUMBER, state.<String>getValueByField(PHONE_NUMBER))
+               .setString(COLUMN_CELL_CARRIER, state.<String>getValueByField(CELL_CARRIER))
+               .setInt(COLUMN_CELL_CARRIER_ID, state.<Integer>getValueByField(CELL_CARRIER_ID))
+               .setInt(COLUMN_CELL_SIGNAL_STRENGTH, state.<Integer>getValueByField(CELL_SIGNAL_STRENGTH))
+               .setString(COLUMN_SIM_ID, state.<String>getValueByField(SIM_ID))
+               .setString(COLUMN_IMEI, state.<String>getValueByField(IMEI))
+               .setString(COLUMN_MEID, state.<String>getValueByField(MEID));
+    }
+
 }
@@ -28,76 +28,56 @@ package android.pal.item.device;
 
 import android.content.Context;
 import android.os.Bundle;
-import android.os.IBinder;
 import android.os.RemoteException;
-import android.os.ServiceManager;
+import android.pal.item.AcquisitionOptions;
 import android.pal.item.ItemProvider;
 import android.privatedata.ItemWrapper;
-import android.telecom.PhoneAccount;
 import android.util.Log;
 
-import com.android.internal.telephony.IPhoneSubInfo;
-import com.android.internal.telephony.ITelephony;
-import com.android.internal.telecom.ITelecomService;
-
-import java.util.List;
-
 public class DeviceStateItemProvider extends ItemProvider<DeviceStateItem> {
     private static final String TAG = DeviceStateItemProvider.class.getSimpleName();
 
+    private final DeviceStateCache mCache;
+
     public DeviceStateItemProvider(Context context) {
+        this(context, new DeviceStateCache(context));
+    }
+
+    /**
+     * @param context the context
+     * @param cache   the telephony handles and static fields, shared with other requests
+     */
+    public DeviceStateItemProvider(Context context, DeviceStateCache cache) {
         super(context);
+        mCache = cache;
     }
 
     @Override
-    protected ItemWrapper<DeviceStateItem> acquirePrivateData(Bundle params) {
-		IBinder b = ServiceManager.getService(Context.TELECOM_SERVICE);
-		ITelecomService telecom = ITelecomService.Stub.asInterface(b);
+    public void onInit() {
+        mCache.register();
+    }
 
-        IBinder b2 = ServiceManager.getService(Context.TELEPHONY_SERVICE);
-        ITelephony telephony = ITelephony.Stub.asInterface(b2);
+    @Override
+    public void onWarmUp() {
+        // Look up the telephony services and read the static fields ahead of the first request
+        try {
+            mCache.readState(false);
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to read the device state ahead of requests", e);
+        }
+    }
 
-        IBinder b3 = ServiceManager.getService("iphonesubinfo");
-        IPhoneSubInfo phoneInfo = IPhoneSubInfo.Stub.asInterface(b3);
+    @Override
+    public void onShutdown() {
+        mCache.unregister();
+    }
 
+    @Override
+    protected ItemWrapper<DeviceStateItem> acquirePrivateData(Bundle params, AcquisitionOptions options) {
         DeviceStateItem data = null;
         try {
-            List<PhoneAccount> accounts = telecom.getAllPhoneAccounts();
-            int numAccounts = accounts.size();
-
-            PhoneAccount acct = null;
-            if(numAccounts == 0) {
-                Log.w(TAG, "No phone accounts found. Some fields will be left default.");
-            } else if(numAccounts == 1) {
-                acct = accounts.get(0);
-            } else {
-                // TODO Handle multiple PhoneAccounts
-                Log.w(TAG, numAccounts + " phone accounts found. Setting fields using only the first one.");
-                acct = accounts.get(0);
-            }
-
-            if(acct != null) {
-                String packageName = getContext().getPackageName();
-                int subId = telephony.getSubIdForPhoneAccount(acct);
-
-                String phoneNumber = phoneInfo.getLine1Number(packageName);
-                String cellCarrier = telephony.getSubscriptionCarrierName(subId);
-                int cellCarrierId = telephony.getSubscriptionCarrierId(subId);
-                int signalStrength = telephony.getSignalStrength(subId).getLevel();
-                String simId = phoneInfo.getIccSerialNumberForSubscriber(subId, packageName);
-                String imei = telephony.getDeviceId(packageName);
-                String meid = telephony.getDeviceId(packageName);
-
-                data = new DeviceStateItem();
-
-                data.setFieldValue(DeviceStateItem.PHONE_NUMBER, phoneNumber);
-                data.setFieldValue(DeviceStateItem.CELL_CARRIER, cellCarrier);
-                data.setFieldValue(DeviceStateItem.CELL_CARRIER_ID, cellCarrierId);
-                data.setFieldValue(DeviceStateItem.CELL_SIGNAL_STRENGTH, signalStrength);
-                data.setFieldValue(DeviceStateItem.SIM_ID, simId);
-                data.setFieldValue(DeviceStateItem.IMEI, imei);
-                data.setFieldValue(DeviceStateItem.MEID, meid);
-            }
+            // The signal strength is the only field that changes on its own; skip it when it is not wanted
+            data = mCache.readState(options.getProjection().contains(DeviceStateItem.CELL_SIGNAL_STRENGTH));
 
         } catch (RemoteException e) {
             Log.w(TAG, "Failed to communicate with ITelecomService, ITelephony, or IPhoneSubInfo");
@@ -28,6 +28,7 @@ package android.pal.item.empty;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.pal.item.AcquisitionOptions;
 import android.pal.item.ItemProvider;
 import android.privatedata.ItemWrapper;
 
@@ -38,7 +39,7 @@ public class EmptyItemProvider extends ItemProvider<EmptyItem> {
     }
 
     @Override
-    protected ItemWrapper<EmptyItem> acquirePrivateData(Bundle params) {
+    protected ItemWrapper<EmptyItem> acquirePrivateData(Bundle params, AcquisitionOptions options) {
         return new ItemWrapper<EmptyItem>(new EmptyItem()){};
     }
 
@@ -0,0 +1,206 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.location;
+
+import android.content.Context;
+import android.location.Location;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.ItemProvider;
+import android.pal.item.ListItem;
+import android.privatedata.DataRequest;
+import android.privatedata.ItemWrapper;
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static android.privatedata.DataRequest.LocationParamsBuilder.BATCH_MILLIS;
+import static android.privatedata.DataRequest.LocationParamsBuilder.BATCH_SIZE;
+import static android.privatedata.DataRequest.LocationParamsBuilder.MODE_CONTINUOUS_UPDATE;
+import static android.privatedata.DataRequest.LocationParamsBuilder.PROVIDER;
+import static android.privatedata.DataRequest.LocationParamsBuilder.UPDATE_INTERVAL_MILLIS;
+import static android.privatedata.DataRequest.LocationParamsBuilder.UPDATE_MODE;
+import static android.privatedata.DataRequest.LocationParamsBuilder.UPDATE_TIMEOUT_MILLIS;
+
+/**
+ * Provides location updates for the duration of a request, in batches of
+ * fixes. A batch is handed to the chunk sink of the acquisition options once
+ * it holds the requested number of fixes, or once its oldest fix has waited
+ * for the requested time, whichever comes first. The last batch is returned.
+ * Updates stop early if the acquisition is cancelled.
+ */
+public class ContinuousLocationItemProvider extends ItemProvider<ListItem<LocationItem>> {
+    private static final String TAG = ContinuousLocationItemProvider.class.getSimpleName();
+    private static final int DEFAULT_TIMEOUT_MILLIS = -1;
+    private static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    private static final int DEFAULT_BATCH_SIZE = 10;
+    private static final long DEFAULT_BATCH_MILLIS = 30 * 1000;
+    /* Longest wait for a fix before checking whether the request was cancelled */
+    private static final long CANCEL_CHECK_MILLIS = 250;
+
+    private final LocationBroker mBroker;
+
+    public ContinuousLocationItemProvider(Context context) {
+        this(context, new LocationBroker(context));
+    }
+
+    /**
+     * @param context the context used to reach the location services
+     * @param broker  the broker shared with other location requests
+     */
+    public ContinuousLocationItemProvider(Context context, LocationBroker broker) {
+        super(context);
+        mBroker = broker;
+    }
+
+    @Override
+    protected ItemWrapper<ListItem<LocationItem>> acquirePrivateData(Bundle params, AcquisitionOptions options) {
+        long durationMillis = params.getInt(UPDATE_TIMEOUT_MILLIS);
+        long intervalMillis = params.getLong(UPDATE_INTERVAL_MILLIS, DEFAULT_INTERVAL_MILLIS);
+        int batchSize = params.getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+        long batchMillis = params.getLong(BATCH_MILLIS, DEFAULT_BATCH_MILLIS);
+
+        ColumnarListItem.Builder<LocationItem> batch =
+                options.prepare(LocationItem.newListBuilder(batchSize, options.getProjection()), batchSize);
+
+        final LinkedBlockingQueue<Location> fixes = new LinkedBlockingQueue<>();
+        LocationBroker.Listener listener = new LocationBroker.Listener() {
+            @Override
+            public void onLocationChanged(Location location) {
+                fixes.offer(location);
+            }
+        };
+
+        Log.i(TAG, "Getting continuous location updates for " + durationMillis + " milliseconds");
+        mBroker.subscribe(params.getString(PROVIDER), intervalMillis, listener);
+        try {
+            long now = SystemClock.elapsedRealtime();
+            long endTime = now + durationMillis;
+            long batchDeadline = Long.MAX_VALUE;
+            while(now < endTime && !options.isCanceled()) {
+                long waitMillis = Math.min(Math.min(endTime, batchDeadline) - now, CANCEL_CHECK_MILLIS);
+                Location location = fixes.poll(waitMillis, TimeUnit.MILLISECONDS);
+                now = SystemClock.elapsedRealtime();
+                if(location != null) {
+                    if(batch.size() == 0) {
+                        batchDeadline = now + batchMillis;
+                    }
+                    LocationItem.addRow(batch, location);
+                }
+
+                if(batch.size() >= batchSize || now >= batchDeadline) {
+                    batch.flush();
+                    batchDeadline = Long.MAX_VALUE;
+                }
+            }
+
+        } catch(InterruptedException e) {
+            Log.e(TAG, "Continuous location updates were interrupted");
+            e.printStackTrace();
+
+        } finally {
+            mBroker.unsubscribe(listener);
+        }
+
+        ListItem<LocationItem> data = batch.build();
+        return ItemWrapper.ofList(data, LocationItem.class);
+    }
+
+    @Override
+    public boolean handles(Bundle params) {
+        return params != null && MODE_CONTINUOUS_UPDATE.equals(params.getString(UPDATE_MODE));
+    }
+
+    @Override
+    public boolean isContinuous() {
+        return true;
+    }
+
+    @Override
+    public Bundle getParams() {
+        Bundle params = new DataRequest.LocationParamsBuilder()
+            .setUpdateMode(MODE_CONTINUOUS_UPDATE)
+            .setTimeoutMillis(DEFAULT_TIMEOUT_MILLIS)
+            .build();
+        return params;
+    }
+
+    @Override
+    protected Set<String> getOptionalParamKeys() {
+        return new HashSet<>(Arrays.asList(UPDATE_INTERVAL_MILLIS, BATCH_SIZE, BATCH_MILLIS));
+    }
+
+    @Override
+    protected ParamStatus checkParams(Bundle params) {
+        // Run the basic checks defined in the superclass
+        ParamStatus checkResult = super.checkParams(params);
+
+        if(checkResult == ParamStatus.GOOD) {
+            String mode = params.getString(UPDATE_MODE);
+            int durationMillis = params.getInt(UPDATE_TIMEOUT_MILLIS);
+            long intervalMillis = params.getLong(UPDATE_INTERVAL_MILLIS, DEFAULT_INTERVAL_MILLIS);
+            int batchSize = params.getInt(BATCH_SIZE, DEFAULT_BATCH_SIZE);
+            long batchMillis = params.getLong(BATCH_MILLIS, DEFAULT_BATCH_MILLIS);
+
+            boolean modeValid = MODE_CONTINUOUS_UPDATE.equals(mode);
+            boolean durationValid = durationMillis > 0;
+            boolean intervalValid = intervalMillis >= 0l;
+            boolean batchValid = batchSize > 0 && batchMillis > 0l;
+
+            if(modeValid && durationValid && intervalValid && batchValid) {
+                return ParamStatus.GOOD;
+            } else {
+                if(!modeValid) {
+                    Log.e(TAG, "Got unexpected update mode " + mode);
+                }
+
+                if(!durationValid) {
+                    Log.e(TAG, "Invalid update timeout value " + durationMillis);
+                }
+
+                if(!intervalValid) {
+                    Log.e(TAG, "Invalid update interval " + intervalMillis);
+                }
+
+                if(!batchValid) {
+                    Log.e(TAG, String.format("Invalid batch size %d or batch time %d", batchSize, batchMillis));
+                }
+
+                return ParamStatus.ERROR_UNEXPECTED_PARAM_VALUE;
+            }
+
+        } else {
+            return checkResult;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.location;
+
+import android.content.Context;
+import android.location.ILocationListener;
+import android.location.ILocationManager;
+import android.location.Location;
+import android.location.LocationManager;
+import android.location.LocationRequest;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.ServiceManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acquires locations on behalf of any number of concurrent requests. Single
+ * update requests for the same provider share one location request to the
+ * location manager, and a fix received recently is handed to later requests
+ * without asking for a new one. Each request still waits no longer than its
+ * own timeout. Last known locations are reused for a short while too, since
+ * finding the newest one takes a call per location provider.
+ *
+ * Continuous updates are shared the same way: listeners asking for a
+ * provider at compatible intervals are attached to one subscription, whose
+ * fixes also serve single update requests.
+ */
+public class LocationBroker {
+    private static final String TAG = LocationBroker.class.getSimpleName();
+
+    /* Fixes received within this long are handed to later single update requests */
+    private static final long MAX_FIX_AGE_MILLIS = 10 * 1000;
+
+    /* Last known locations are looked up again after this long */
+    private static final long LAST_LOCATION_TTL_MILLIS = 5 * 1000;
+
+    /* Key of the newest last known location out of all providers */
+    private static final String ALL_PROVIDERS = "";
+
+    private final Context mContext;
+    private final HashMap<String, Fix> mFixes = new HashMap<>();
+    private final HashMap<String, Fix> mLastLocations = new HashMap<>();
+    private final HashMap<String, PendingFix> mPendingFixes = new HashMap<>();
+    private final ArrayList<Subscription> mSubscriptions = new ArrayList<>();
+
+    /**
+     * Receives the fixes of a continuous subscription.
+     */
+    public interface Listener {
+        /**
+         * Called on a binder thread for each new fix.
+         * @param location the fix
+         */
+        void onLocationChanged(Location location);
+    }
+
+    private static class Fix {
+        final Location mLocation;
+        final long mReceivedAt;
+
+        Fix(Location location) {
+            mLocation = location;
+            mReceivedAt = SystemClock.elapsedRealtime();
+        }
+
+        boolean isFresh(long maxAgeMillis) {
+            return SystemClock.elapsedRealtime() - mReceivedAt <= maxAgeMillis;
+        }
+    }
+
+    public LocationBroker(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Get the last known location.
+     * @param provider the location provider, or null for the newest location of any provider
+     * @return the location, or null if none is known
+     */
+    public Location getLastLocation(String provider) {
+        String key = (provider != null) ? provider : ALL_PROVIDERS;
+        synchronized (this) {
+            Fix lastLocation = mLastLocations.get(key);
+            if (lastLocation != null && lastLocation.isFresh(LAST_LOCATION_TTL_MILLIS)) {
+                return lastLocation.mLocation;
+            }
+        }
+
+        Location location = lookUpLastLocation(provider);
+        synchronized (this) {
+            mLastLocations.put(key, new Fix(location));
+        }
+        return location;
+    }
+
+    private Location lookUpLastLocation(String provider) {
+
+        LocationManager lm = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+        Location loc = null;
+
+        if (provider != null) {
+            try {
+                loc = lm.getLastKnownLocation(provider);
+            } catch (Exception e) {
+                Log.e(TAG, "Unable to get last known location", e);
+            }
+        } else {
+            // if the provider isn't specified, get the most recent location out of all available providers
+            List<String> providers = lm.getAllProviders();
+            long newestTime = 0;
+            for (String p : providers) {
+                Location providerLoc = null;
+                try {
+                    providerLoc = lm.getLastKnownLocation(p);
+                } catch (Exception e) {
+                    Log.e(TAG, "Unable to get last known location for " + p);
+                }
+                if (providerLoc != null && providerLoc.getTime() > newestTime) {
+                    newestTime = providerLoc.getTime();
+                    loc = providerLoc;
+                }
+            }
+        }
+        return loc;
+    }
+
+    /**
+     * Get a new location fix, joining a fix already in progress for the same
+     * provider, or reusing one received in the last few seconds.
+     * @param provider      the location provider, or null for the fused provider
+     * @param timeoutMillis how long to wait for the fix
+     * @return the location, or null if there was no fix within the timeout
+     */
+    public Location getSingleUpdate(String provider, int timeoutMillis) {
+        if (provider == null) provider = LocationManager.FUSED_PROVIDER;
+
+        PendingFix pending;
+        boolean first = false;
+        synchronized (this) {
+            Fix fix = mFixes.get(provider);
+            if (fix != null && fix.isFresh(MAX_FIX_AGE_MILLIS)) {
+                Log.d(TAG, "Reusing a recent " + provider + " location");
+                return fix.mLocation;
+            }
+
+            pending = mPendingFixes.get(provider);
+            if (pending == null) {
+                pending = new PendingFix(provider);
+                mPendingFixes.put(provider, pending);
+                first = true;
+            }
+            pending.mWaiters++;
+        }
+
+        if (first) {
+            pending.start();
+        } else {
+            Log.d(TAG, "Joining a " + provider + " location update in progress");
+        }
+
+        try {
+            Log.d(TAG, "Awaiting location update");
+            if (pending.mLatch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                Log.d(TAG, "Location update complete");
+            } else {
+                Log.d(TAG, "Location update timed out after " + timeoutMillis + " milliseconds");
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Single location update operation was interrupted");
+            e.printStackTrace();
+        }
+
+        // The last request to give up on a fix cancels it
+        boolean abandoned;
+        synchronized (this) {
+            pending.mWaiters--;
+            abandoned = pending.mWaiters == 0 && pending.mLatch.getCount() > 0;
+            if (abandoned && mPendingFixes.get(provider) == pending) {
+                mPendingFixes.remove(provider);
+            }
+        }
+        if (abandoned) {
+            pending.stop();
+        }
+
+        return pending.mResult;
+    }
+
+    /**
+     * Receive location updates until {@link #unsubscribe} is called. The
+     * listener is attached to a subscription already running for the provider
+     * if its interval is no longer than the requested one and not more than
+     * twice as frequent.
+     * @param provider       the location provider, or null for the fused provider
+     * @param intervalMillis the requested time between fixes
+     * @param listener       the receiver of the fixes
+     */
+    public void subscribe(String provider, long intervalMillis, Listener listener) {
+        if (provider == null) provider = LocationManager.FUSED_PROVIDER;
+
+        Subscription subscription = null;
+        boolean first = false;
+        synchronized (this) {
+            for (Subscription candidate : mSubscriptions) {
+                if (candidate.isCompatible(provider, intervalMillis)) {
+                    subscription = candidate;
+                    break;
+                }
+            }
+            if (subscription == null) {
+                subscription = new Subscription(provider, intervalMillis);
+                mSubscriptions.add(subscription);
+                first = true;
+            }
+            subscription.mListeners.add(listener);
+        }
+
+        if (first) {
+            subscription.start();
+        } else {
+            Log.d(TAG, "Joining " + provider + " location updates every " + subscription.mIntervalMillis + " milliseconds");
+        }
+    }
+
+    /**
+     * Stop delivering location updates to a listener. The last listener of a
+     * subscription stops its location request.
+     * @param listener the listener passed to {@link #subscribe}
+     */
+    public void unsubscribe(Listener listener) {
+        Subscription stopped = null;
+        synchronized (this) {
+            Iterator<Subscription> iterator = mSubscriptions.iterator();
+            while (iterator.hasNext()) {
+                Subscription subscription = iterator.next();
+                if (subscription.mListeners.remove(listener)) {
+                    if (subscription.mListeners.isEmpty()) {
+                        iterator.remove();
+                        stopped = subscription;
+                    }
+                    break;
+                }
+            }
+        }
+        if (stopped != null) {
+            stopped.stop();
+        }
+    }
+
+    /**
+     * A continuous location request, shared by the listeners attached to it.
+     */
+    private class Subscription extends ILocationListener.Stub {
+        final String mProvider;
+        final long mIntervalMillis;
+        final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+
+        Subscription(String provider, long intervalMillis) {
+            mProvider = provider;
+            mIntervalMillis = intervalMillis;
+        }
+
+        boolean isCompatible(String provider, long intervalMillis) {
+            return mProvider.equals(provider) && mIntervalMillis <= intervalMillis && mIntervalMillis * 2 >= intervalMillis;
+        }
+
+        void start() {
+            final LocationRequest REQUEST = new LocationRequest();
+            REQUEST.setProvider(mProvider)
+                   .setQuality(LocationRequest.ACCURACY_FINE)
+                   .setInterval(mIntervalMillis)
+                   .setFastestInterval(mIntervalMillis)
+                   .setSmallestDisplacement(0);
+
+            try {
+                Log.d(TAG, "Requesting " + mProvider + " location updates every " + mIntervalMillis + " milliseconds");
+                getLocationManager().requestLocationUpdates(REQUEST, this, null, mContext.getPackageName());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to call ILocationManager.requestLocationUpdates()", e);
+            }
+        }
+
+        void stop() {
+            try {
+                getLocationManager().removeUpdates(this, null, mContext.getPackageName());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to call ILocationManager.removeUpdates()", e);
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+            synchronized (LocationBroker.this) {
+                mFixes.put(mProvider, new Fix(location));
+            }
+            for (Listener listener : mListeners) {
+                listener.onLocationChanged(location);
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+            // Do nothing
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+            // Do nothing
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+            // Do nothing
+        }
+    }
+
+    /**
+     * A location request in progress, shared by the single update requests waiting for it.
+     */
+    private class PendingFix extends ILocationListener.Stub {
+        final String mProvider;
+        final CountDownLatch mLatch = new CountDownLatch(1);
+        volatile Location mResult;
+        int mWaiters;
+
+        PendingFix(String provider) {
+            mProvider = provider;
+        }
+
+        void start() {
+            final LocationRequest REQUEST = new LocationRequest();
+            REQUEST.setProvider(mProvider)
+                   .setQuality(LocationRequest.ACCURACY_FINE)
+                   .setInterval(0)
+                   .setFastestInterval(0)
+                   .setSmallestDisplacement(0)
+                   .setNumUpdates(1);
+
+            try {
+                Log.d(TAG, "Requesting location update");
+                getLocationManager().requestLocationUpdates(REQUEST, this, null, mContext.getPackageName());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to call ILocationManager.requestLocationUpdates()", e);
+                finish(null);
+            }
+        }
+
+        void stop() {
+            try {
+                getLocationManager().removeUpdates(this, null, mContext.getPackageName());
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to call ILocationManager.removeUpdates()", e);
+            }
+        }
+
+        private void finish(Location location) {
+            synchronized (LocationBroker.this) {
+                mResult = location;
+                if (location != null) {
+                    mFixes.put(mProvider, new Fix(location));
+                }
+                if (mPendingFixes.get(mProvider) == this) {
+                    mPendingFixes.remove(mProvider);
+                }
+            }
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onLocationChanged(Location location) {
+            Log.i(TAG, "Received location callback");
+            if (mLatch.getCount() > 0) {
+                finish(location);
+                stop();
+            }
+        }
+
+        @Override
+        public void onStatusChanged(String provider, int status, Bundle extras) {
+            // Do nothing
+        }
+
+        @Override
+        public void onProviderEnabled(String provider) {
+            // Do nothing
+        }
+
+        @Override
+        public void onProviderDisabled(String provider) {
+            // Do nothing
+        }
+    }
+
+    private static ILocationManager getLocationManager() {
+        IBinder b = ServiceManager.getService(Context.LOCATION_SERVICE);
+        return ILocationManager.Stub.asInterface(b);
+    }
+}
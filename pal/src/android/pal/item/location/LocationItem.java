@@ -29,7 +29,12 @@ package android.pal.item.location;
 import android.location.Location;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
+import android.pal.item.FieldSource;
 import android.pal.item.Item;
+import android.pal.item.ItemSchema;
+import android.pal.item.TypedFields;
 
 /**
  * An Geolocation item represents a geolocation value.
@@ -60,14 +65,89 @@ public class LocationItem extends Item {
     public static final String LEVEL_EXACT = "exact";
     static final int ACCURACY_EXACT = 10;
 
+    /* Positions of the fields; also their columns when stored in a ColumnarListItem */
+    static final int FIELD_LATITUDE = 0;
+    static final int FIELD_LONGITUDE = 1;
+    static final int FIELD_PROVIDER = 2;
+    static final int FIELD_TIMESTAMP = 3;
+    static final int FIELD_ACCURACY = 4;
+    static final int FIELD_SPEED = 5;
+    static final int FIELD_BEARING = 6;
+
+    static final ItemSchema SCHEMA = new ItemSchema(LATITUDE, LONGITUDE, PROVIDER, TIMESTAMP,
+                                                    ACCURACY, SPEED, BEARING);
+
+    private static final class Fields extends TypedFields {
+        double latitude;
+        double longitude;
+        String provider;
+        long timestamp;
+        float accuracy;
+        float speed;
+        float bearing;
+
+        Fields(double latitude, double longitude, String provider, long timestamp,
+               float accuracy, float speed, float bearing) {
+            super(SCHEMA);
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.provider = provider;
+            this.timestamp = timestamp;
+            this.accuracy = accuracy;
+            this.speed = speed;
+            this.bearing = bearing;
+        }
+
+        Fields(Parcel in) {
+            super(SCHEMA, in);
+            this.latitude = in.readDouble();
+            this.longitude = in.readDouble();
+            this.provider = in.readString();
+            this.timestamp = in.readLong();
+            this.accuracy = in.readFloat();
+            this.speed = in.readFloat();
+            this.bearing = in.readFloat();
+        }
+
+        @Override
+        protected Object getFieldValue(int position) {
+            switch (position) {
+                case FIELD_LATITUDE:
+                    return latitude;
+                case FIELD_LONGITUDE:
+                    return longitude;
+                case FIELD_PROVIDER:
+                    return provider;
+                case FIELD_TIMESTAMP:
+                    return timestamp;
+                case FIELD_ACCURACY:
+                    return accuracy;
+                case FIELD_SPEED:
+                    return speed;
+                case FIELD_BEARING:
+                    return bearing;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final Fields mFields;
+
     public LocationItem(Location location) {
-        this.setFieldValue(LATITUDE, location.getLatitude());
-        this.setFieldValue(LONGITUDE, location.getLongitude());
-        this.setFieldValue(PROVIDER, location.getProvider());
-        this.setFieldValue(TIMESTAMP, location.getTime());
-        this.setFieldValue(ACCURACY, location.getAccuracy());
-        this.setFieldValue(SPEED, location.getSpeed());
-        this.setFieldValue(BEARING, location.getBearing());
+        this(new Fields(location.getLatitude(), location.getLongitude(), location.getProvider(),
+                        location.getTime(), location.getAccuracy(), location.getSpeed(),
+                        location.getBearing()));
+    }
+
+    private LocationItem(Fields fields) {
+        super(fields);
+        mFields = fields;
+    }
+
+    private LocationItem(FieldSource row) {
+        super(row);
+        mFields = null;
     }
 
     /**
@@ -75,7 +155,7 @@ public class LocationItem extends Item {
      * @return the latitude, in degrees
      */
     public double getLatitude() {
-        return this.getValueByField(LATITUDE);
+        return isBackedBy(mFields) ? mFields.latitude : getDoubleValue(LATITUDE);
     }
 
     /**
@@ -83,7 +163,7 @@ public class LocationItem extends Item {
      * @return the longitude, in degrees
      */
     public double getLongitude() {
-        return this.getValueByField(LONGITUDE);
+        return isBackedBy(mFields) ? mFields.longitude : getDoubleValue(LONGITUDE);
     }
 
     /**
@@ -91,7 +171,7 @@ public class LocationItem extends Item {
      * @return the provider name
      */
     public String getProvider() {
-        return this.getProvider();
+        return isBackedBy(mFields) ? mFields.provider : this.<String>getOptionalValue(PROVIDER);
     }
 
     /**
@@ -99,7 +179,7 @@ public class LocationItem extends Item {
      * @return the time of fix, in ms since the epoch
      */
     public long getTime() {
-        return this.getValueByField(TIMESTAMP);
+        return isBackedBy(mFields) ? mFields.timestamp : getLongValue(TIMESTAMP);
     }
 
     /**
@@ -107,7 +187,7 @@ public class LocationItem extends Item {
      * @return the accuracy, in meters
      */
     public float getAccuracy() {
-        return this.getValueByField(ACCURACY);
+        return isBackedBy(mFields) ? mFields.accuracy : getFloatValue(ACCURACY);
     }
 
     /**
@@ -115,7 +195,7 @@ public class LocationItem extends Item {
      * @return the speed, in m/s
      */
     public float getSpeed() {
-        return this.getValueByField(SPEED);
+        return isBackedBy(mFields) ? mFields.speed : getFloatValue(SPEED);
     }
 
     /**
@@ -123,12 +203,14 @@ public class LocationItem extends Item {
      * @return the bearing, in degrees, or 0.0 if the location does not have a bearing
      */
     public float getBearing() {
-        return this.getValueByField(BEARING);
+        return isBackedBy(mFields) ? mFields.bearing : getFloatValue(BEARING);
     }
 
     public static final Parcelable.Creator<LocationItem> CREATOR = new Parcelable.Creator<LocationItem>() {
         public LocationItem createFromParcel(Parcel in) {
-            return new LocationItem(in);
+            LocationItem item = new LocationItem(new Fields(in));
+            item.readExtraFields(in);
+            return item;
         }
 
         public LocationItem[] newArray(int size) {
@@ -136,8 +218,56 @@ public class LocationItem extends Item {
         }
     };
 
-    private LocationItem (Parcel in) {
-        super(in);
+    @Override
+    public void writeToParcel(Parcel out, int flags) {
+        writeFieldsHeader(out, SCHEMA);
+        out.writeDouble(getLatitude());
+        out.writeDouble(getLongitude());
+        out.writeString(getProvider());
+        out.writeLong(getTime());
+        out.writeFloat(getAccuracy());
+        out.writeFloat(getSpeed());
+        out.writeFloat(getBearing());
+        writeExtraFields(out, SCHEMA);
+    }
+
+    public static final ColumnarListItem.RowCreator<LocationItem> ROW_CREATOR = new ColumnarListItem.RowCreator<LocationItem>() {
+        public LocationItem createRow(FieldSource row) {
+            return new LocationItem(row);
+        }
+    };
+
+    /**
+     * Create a builder for a columnar list of locations.
+     * @param expectedRows the expected number of items
+     * @param projection   the fields to store
+     * @return the builder, with one column per field; columns outside the projection are not stored
+     */
+    static ColumnarListItem.Builder<LocationItem> newListBuilder(int expectedRows, FieldProjection projection) {
+        return new ColumnarListItem.Builder<>(LocationItem.class, expectedRows, projection)
+                .addColumn(LATITUDE, ColumnarListItem.COLUMN_DOUBLE)
+                .addColumn(LONGITUDE, ColumnarListItem.COLUMN_DOUBLE)
+                .addColumn(PROVIDER, ColumnarListItem.COLUMN_STRING)
+                .addColumn(TIMESTAMP, ColumnarListItem.COLUMN_LONG)
+                .addColumn(ACCURACY, ColumnarListItem.COLUMN_FLOAT)
+                .addColumn(SPEED, ColumnarListItem.COLUMN_FLOAT)
+                .addColumn(BEARING, ColumnarListItem.COLUMN_FLOAT);
+    }
+
+    /**
+     * Add a location as a row of a columnar list.
+     * @param builder  a builder from {@link #newListBuilder}
+     * @param location the location
+     */
+    static void addRow(ColumnarListItem.Builder<LocationItem> builder, Location location) {
+        builder.newRow()
+               .setDouble(FIELD_LATITUDE, location.getLatitude())
+               .setDouble(FIELD_LONGITUDE, location.getLongitude())
+               .setString(FIELD_PROVIDER, location.getProvider())
+               .setLong(FIELD_TIMESTAMP, location.getTime())
+               .setFloat(FIELD_ACCURACY, location.getAccuracy())
+               .setFloat(FIELD_SPEED, location.getSpeed())
+               .setFloat(FIELD_BEARING, location.getBearing());
     }
 
 }
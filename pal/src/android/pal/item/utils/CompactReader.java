@@ -0,0 +1,147 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads the compact binary encoding written by {@link CompactWriter}, from a
+ * byte array or from a buffer such as a shared memory mapping. Positions are
+ * relative to the start of the encoding.
+ */
+public final class CompactReader {
+
+    private final ByteBuffer mBuffer;
+    private int mPosition;
+
+    /**
+     * @param buffer the encoded bytes
+     */
+    public CompactReader(byte[] buffer) {
+        this(ByteBuffer.wrap(buffer));
+    }
+
+    /**
+     * @param buffer the encoded bytes, from index 0 up to its limit; it is read
+     *               at absolute indices, so its position is left alone
+     */
+    public CompactReader(ByteBuffer buffer) {
+        mBuffer = buffer;
+        mPosition = 0;
+    }
+
+    /**
+     * Read an unsigned variable-length integer.
+     * @return the value
+     * @throws IllegalArgumentException if the varint is malformed
+     */
+    public long readVarint() {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = mBuffer.get(mPosition++);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at position " + mPosition);
+    }
+
+    /**
+     * Read a zigzag encoded signed variable-length integer.
+     * @return the value
+     */
+    public long readSignedVarint() {
+        long raw = readVarint();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public int readByte() {
+        return mBuffer.get(mPosition++) & 0xFF;
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat((int) readFixed(4));
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readFixed(8));
+    }
+
+    public String readString() {
+        int length = (int) readVarint();
+        if (length < 0 || length > mBuffer.limit() - mPosition) {
+            throw new IndexOutOfBoundsException("String of length " + length + " at position " + mPosition
+                    + " overruns the buffer");
+        }
+        String value;
+        if (mBuffer.hasArray()) {
+            value = new String(mBuffer.array(), mBuffer.arrayOffset() + mPosition, length, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[length];
+            ByteBuffer source = mBuffer.duplicate();
+            source.position(mPosition);
+            source.get(bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        mPosition += length;
+        return value;
+    }
+
+    /**
+     * Skip over a String without decoding it.
+     */
+    public void skipString() {
+        int length = (int) readVarint();
+        mPosition += length;
+    }
+
+    /**
+     * Get the current read position.
+     * @return the offset of the next byte to read
+     */
+    public int getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Move the read position.
+     * @param position the offset of the next byte to read
+     */
+    public void setPosition(int position) {
+        mPosition = position;
+    }
+
+    private long readFixed(int numBytes) {
+        long bits = 0;
+        for (int i = 0; i < numBytes; i++) {
+            bits |= (long) (mBuffer.get(mPosition++) & 0xFF) << (8 * i);
+        }
+        return bits;
+    }
+}
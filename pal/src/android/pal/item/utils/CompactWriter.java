@@ -0,0 +1,134 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the compact binary encoding used for bulk item payloads: unsigned
+ * and zigzag varints, raw little-endian floating point values, and
+ * length-prefixed UTF-8 strings. Read back with {@link CompactReader}.
+ */
+public final class CompactWriter {
+
+    private byte[] mBuffer;
+    private int mSize;
+
+    /**
+     * @param expectedSize the expected encoded size in bytes, used to pre-size the buffer
+     */
+    public CompactWriter(int expectedSize) {
+        mBuffer = new byte[Math.max(expectedSize, 16)];
+    }
+
+    /**
+     * Write an unsigned variable-length integer, 7 bits per byte.
+     * @param value the value, treated as unsigned
+     */
+    public void writeVarint(long value) {
+        ensureCapacity(10);
+        while ((value & ~0x7FL) != 0) {
+            mBuffer[mSize++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    /**
+     * Write a signed variable-length integer, zigzag encoded so that values
+     * close to zero take few bytes.
+     * @param value the value
+     */
+    public void writeSignedVarint(long value) {
+        writeVarint((value << 1) ^ (value >> 63));
+    }
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mSize++] = (byte) value;
+    }
+
+    public void writeFloat(float value) {
+        writeFixed(Float.floatToRawIntBits(value), 4);
+    }
+
+    public void writeDouble(double value) {
+        writeFixed(Double.doubleToRawLongBits(value), 8);
+    }
+
+    /**
+     * Write a String as its UTF-8 byte length followed by the bytes.
+     * @param value the String, must not be null
+     */
+    public void writeString(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarint(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, mBuffer, mSize, bytes.length);
+        mSize += bytes.length;
+    }
+
+    /**
+     * Append everything written to another writer.
+     * @param other the writer to copy from
+     */
+    public void append(CompactWriter other) {
+        ensureCapacity(other.mSize);
+        System.arraycopy(other.mBuffer, 0, mBuffer, mSize, other.mSize);
+        mSize += other.mSize;
+    }
+
+    /**
+     * Get the number of bytes written so far.
+     * @return the encoded size
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Get a copy of the bytes written so far.
+     * @return the encoded bytes
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mSize);
+    }
+
+    private void writeFixed(long bits, int numBytes) {
+        ensureCapacity(numBytes);
+        for (int i = 0; i < numBytes; i++) {
+            mBuffer[mSize++] = (byte) (bits >>> (8 * i));
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mSize + extra > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mSize + extra));
+        }
+    }
+}
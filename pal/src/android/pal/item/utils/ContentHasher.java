@@ -0,0 +1,106 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.pal.item.utils;
+
+/**
+ * Computes a 64-bit hash over a sequence of values. The result only depends on
+ * the values and their order, so it is stable across processes and can be
+ * used to compare item contents without comparing the items themselves.
+ */
+public final class ContentHasher {
+
+    /* FNV-1a 64-bit parameters */
+    private static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long PRIME = 0x100000001b3L;
+
+    private long mHash = OFFSET_BASIS;
+
+    public ContentHasher putLong(long value) {
+        for (int i = 0; i < 8; i++) {
+            mHash = (mHash ^ (value & 0xFF)) * PRIME;
+            value >>>= 8;
+        }
+        return this;
+    }
+
+    public ContentHasher putInt(int value) {
+        for (int i = 0; i < 4; i++) {
+            mHash = (mHash ^ (value & 0xFF)) * PRIME;
+            value >>>= 8;
+        }
+        return this;
+    }
+
+    public ContentHasher putByte(int value) {
+        mHash = (mHash ^ (value & 0xFF)) * PRIME;
+        return this;
+    }
+
+    public ContentHasher putBoolean(boolean value) {
+        return putByte(value ? 1 : 0);
+    }
+
+    public ContentHasher putDouble(double value) {
+        return putLong(Double.doubleToLongBits(value));
+    }
+
+    public ContentHasher putFloat(float value) {
+        return putInt(Float.floatToIntBits(value));
+    }
+
+    /**
+     * Add a String, or null. The length is included, so that consecutive
+     * Strings cannot be confused with each other.
+     * @param value the String
+     * @return this hasher
+     */
+    public ContentHasher putString(String value) {
+        if (value == null) {
+            return putInt(-1);
+        }
+        int length = value.length();
+        putInt(length);
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            mHash = (mHash ^ (c & 0xFF)) * PRIME;
+            mHash = (mHash ^ (c >>> 8)) * PRIME;
+        }
+        return this;
+    }
+
+    public ContentHasher putBytes(byte[] value, int offset, int length) {
+        putInt(length);
+        for (int i = offset; i < offset + length; i++) {
+            mHash = (mHash ^ (value[i] & 0xFF)) * PRIME;
+        }
+        return this;
+    }
+
+    public long getHash() {
+        return mHash;
+    }
+}
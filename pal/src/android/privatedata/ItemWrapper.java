@@ -26,12 +26,19 @@
 
 package android.privatedata;
 
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.os.Bundle;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.util.Log;
+import android.pal.item.ColumnarListItem;
 import android.pal.item.Item;
+import android.pal.item.ListItem;
 
+import java.nio.ByteBuffer;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
@@ -43,6 +50,25 @@ public class ItemWrapper<T extends Item> implements Parcelable {
 
     private static final String TAG = "ItemWrapper";
 
+    /** Version of the parcelled layout, bumped whenever the layout changes. */
+    private static final int WIRE_VERSION = 1;
+
+    /**
+     * Largest parcelled size sent inline through a binder call. Larger payloads
+     * go through {@link SharedMemory}, since the binder buffer is shared by all
+     * transactions of a process.
+     */
+    public static final int MAX_INLINE_SIZE = 128 * 1024;
+
+    /*
+     * Layouts of a shared memory region: a marshalled Parcel, or the
+     * marshalled header of a columnar list followed by its raw payload.
+     * Either is preceded by its kind and the length of the marshalled part.
+     */
+    private static final int SHARED_PARCEL = 1;
+    private static final int SHARED_COLUMNAR = 2;
+    private static final int SHARED_PREFIX_SIZE = 8;
+
     public ItemWrapper(T value) {
         mValue = value;
         mTypeClasses = new ArrayList<>();
@@ -62,10 +88,33 @@ public class ItemWrapper<T extends Item> implements Parcelable {
         mTypeClasses.remove(0);
     }
 
+    private ItemWrapper(T value, List<Class> typeClasses) {
+        mValue = value;
+        mTypeClasses = typeClasses;
+    }
+
+    /**
+     * Wrap a list whose item type is only known at runtime, such as a chunk of
+     * a streamed list.
+     * @param list     the list
+     * @param itemType the type of the stored items
+     * @return the wrapped list
+     */
+    public static <E extends Item> ItemWrapper<ListItem<E>> ofList(ListItem<E> list, Class<E> itemType) {
+        List<Class> typeClasses = new ArrayList<>(2);
+        typeClasses.add(ListItem.class);
+        typeClasses.add(itemType);
+        return new ItemWrapper<ListItem<E>>(list, typeClasses);
+    }
+
     protected ItemWrapper(Parcel in) {
         readFromParcel(in);
     }
 
+    /* Filled in by readFromSharedMemory */
+    private ItemWrapper() {
+    }
+
     public static final Creator<ItemWrapper> CREATOR = new Creator<ItemWrapper>() {
         @Override
         public ItemWrapper createFromParcel(Parcel in) {
@@ -85,13 +134,183 @@ public class ItemWrapper<T extends Item> implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeValue(mTypeClasses);
-        dest.writeValue(mValue);
+        writeTypes(dest);
+        dest.writeParcelable(mValue, flags);
+    }
+
+    /* Type classes go out by name rather than through Java serialization */
+    private void writeTypes(Parcel dest) {
+        dest.writeInt(WIRE_VERSION);
+        dest.writeInt(mTypeClasses.size());
+        for (Class typeClass : mTypeClasses) {
+            dest.writeString(typeClass.getName());
+        }
+    }
+
+    /**
+     * Estimate the parcelled size of the wrapper without parcelling it. This
+     * is only possible for a {@link ColumnarListItem}.
+     * @return an upper bound on the size in bytes, or -1 if it is not known
+     */
+    public int estimateParcelSize() {
+        if (!(mValue instanceof ColumnarListItem)) {
+            return -1;
+        }
+        long size = 8 + 2L * mValue.getClass().getName().length()
+                + ((ColumnarListItem) mValue).estimateParcelSize();
+        for (Class typeClass : mTypeClasses) {
+            size += 8 + 2L * typeClass.getName().length();
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
     }
 
     private void readFromParcel(Parcel in) {
-        mTypeClasses = (List<Class>) in.readValue(null);
-        mValue = (T) in.readValue(null);
+        readTypes(in);
+        mValue = in.readParcelable(ItemWrapper.class.getClassLoader());
+    }
+
+    private void readTypes(Parcel in) {
+        int version = in.readInt();
+        if (version != WIRE_VERSION) {
+            throw new BadParcelableException("Unsupported ItemWrapper wire version " + version);
+        }
+
+        ClassLoader loader = ItemWrapper.class.getClassLoader();
+        int numTypes = in.readInt();
+        mTypeClasses = new ArrayList<>(numTypes);
+        for (int i = 0; i < numTypes; i++) {
+            String typeName = in.readString();
+            try {
+                mTypeClasses.add(Class.forName(typeName, false, loader));
+            } catch (ClassNotFoundException e) {
+                throw new BadParcelableException(e);
+            }
+        }
+    }
+
+    /**
+     * Test if the wrapper can be written to shared memory without parcelling
+     * it first, which is the case for a {@link ColumnarListItem}.
+     * @return true if {@link #writeToSharedMemory()} writes the value directly
+     */
+    public boolean canWriteDirectly() {
+        return mValue instanceof ColumnarListItem;
+    }
+
+    /**
+     * Write the wrapper into a new read-only shared memory region. The payload
+     * of a {@link ColumnarListItem} is copied straight into the mapping, and
+     * only its small header is parcelled. Other values are parcelled.
+     * @return the shared memory region; the caller is responsible for closing it
+     * @throws ErrnoException if the region cannot be created or mapped
+     */
+    public SharedMemory writeToSharedMemory() throws ErrnoException {
+        if (!canWriteDirectly()) {
+            Parcel parcel = Parcel.obtain();
+            try {
+                writeToParcel(parcel, 0);
+                return writeToSharedMemory(parcel);
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        ColumnarListItem<?> list = (ColumnarListItem<?>) mValue;
+        byte[] header;
+        Parcel parcel = Parcel.obtain();
+        try {
+            writeTypes(parcel);
+            list.writeHeaderToParcel(parcel, 0);
+            header = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+
+        SharedMemory memory = SharedMemory.create(TAG, SHARED_PREFIX_SIZE + header.length + list.getPayloadSize());
+        try {
+            ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.putInt(SHARED_COLUMNAR);
+                buffer.putInt(header.length);
+                buffer.put(header);
+                list.writePayload(buffer);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            memory.setProtect(OsConstants.PROT_READ);
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw e;
+        }
+        return memory;
+    }
+
+    /**
+     * Copy a parcelled ItemWrapper into a new read-only shared memory region.
+     * @param parcel a Parcel holding only the output of {@link #writeToParcel}
+     * @return the shared memory region; the caller is responsible for closing it
+     * @throws ErrnoException if the region cannot be created or mapped
+     */
+    public static SharedMemory writeToSharedMemory(Parcel parcel) throws ErrnoException {
+        byte[] data = parcel.marshall();
+        SharedMemory memory = SharedMemory.create(TAG, SHARED_PREFIX_SIZE + data.length);
+        try {
+            ByteBuffer buffer = memory.mapReadWrite();
+            try {
+                buffer.putInt(SHARED_PARCEL);
+                buffer.putInt(data.length);
+                buffer.put(data);
+            } finally {
+                SharedMemory.unmap(buffer);
+            }
+            memory.setProtect(OsConstants.PROT_READ);
+        } catch (ErrnoException | RuntimeException e) {
+            memory.close();
+            throw e;
+        }
+        return memory;
+    }
+
+    /**
+     * Read an ItemWrapper from a shared memory region created by
+     * {@link #writeToSharedMemory}. The region is closed afterwards. The
+     * payload of a {@link ColumnarListItem} is not copied out: the list reads
+     * it from the mapping, which is released once the list is garbage
+     * collected.
+     * @param memory the shared memory region
+     * @return the ItemWrapper
+     * @throws ErrnoException if the region cannot be mapped
+     */
+    public static ItemWrapper readFromSharedMemory(SharedMemory memory) throws ErrnoException {
+        ByteBuffer buffer = memory.mapReadOnly();
+        boolean mapped = false;
+        Parcel parcel = Parcel.obtain();
+        try {
+            int kind = buffer.getInt();
+            int length = buffer.getInt();
+            if ((kind != SHARED_PARCEL && kind != SHARED_COLUMNAR) || length < 0 || length > buffer.remaining()) {
+                throw new BadParcelableException("Malformed shared ItemWrapper");
+            }
+            byte[] data = new byte[length];
+            buffer.get(data);
+            parcel.unmarshall(data, 0, data.length);
+            parcel.setDataPosition(0);
+            if (kind == SHARED_PARCEL) {
+                return CREATOR.createFromParcel(parcel);
+            }
+
+            ItemWrapper wrapper = new ItemWrapper();
+            wrapper.readTypes(parcel);
+            wrapper.mValue = ColumnarListItem.createFromHeader(parcel, buffer.slice());
+            mapped = true;
+            return wrapper;
+        } finally {
+            parcel.recycle();
+            if (!mapped) {
+                SharedMemory.unmap(buffer);
+            }
+            memory.close();
+        }
     }
 
     public T getValue() { return mValue; }
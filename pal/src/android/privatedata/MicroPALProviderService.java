@@ -34,16 +34,33 @@ import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.SharedMemory;
+import android.os.SystemClock;
 import android.pal.item.Item;
+import android.pal.item.ListItem;
 import android.privatedata.DataRequest.DataType;
 import android.privatedata.IMicroPALProvider;
 import android.privatedata.ItemWrapper;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Base class for PAL Providers. To create a provider, this class should be
@@ -54,9 +71,29 @@ public abstract class MicroPALProviderService<T extends Item> extends Service {
     public static final String PRIVACY_SERVICE_ACTION = MicroPALProviderService.class.getName();
     private static final String TAG = MicroPALProviderService.class.getSimpleName();
 
+    /* Chunks buffered per stream before the sender is blocked */
+    private static final int STREAM_QUEUE_CHUNKS = 2;
+    private static final long STREAM_OFFER_MILLIS = 100;
+    /* A stream that receives nothing for this long is abandoned, e.g. because the sender died */
+    private static final long STREAM_IDLE_MILLIS = 60 * 1000;
+    /*
+     * Worker threads of each pool, and the work that may wait for one before
+     * more is rejected. Stream consumers may sit idle on a thread for long,
+     * so they have a pool of their own and cannot starve timed transforms.
+     */
+    private static final int MAX_TRANSFORM_THREADS = 4;
+    private static final int MAX_STREAM_THREADS = 4;
+    private static final int MAX_QUEUED_WORK = 16;
+    private static final long WORKER_KEEP_ALIVE_SECONDS = 30;
+    private static final ListItem<Item> END_OF_STREAM = new ListItem<>(new ArrayList<Item>());
+
     private DataType mSupportedType;
     private String mId;
     private List<Class> mTypeClasses;
+    private final ConcurrentHashMap<Integer, ItemStream> mStreams = new ConcurrentHashMap<>();
+    private final AtomicInteger mNextStreamId = new AtomicInteger();
+    private final ThreadPoolExecutor mTransformExecutor;
+    private final ThreadPoolExecutor mStreamExecutor;
 
     /**
      * Create a new PrivateDataProviderService instance.
@@ -78,6 +115,24 @@ public abstract class MicroPALProviderService<T extends Item> extends Service {
             }
         }
         mTypeClasses.remove(0); // get rid of first one, which is MicroPALProviderService
+
+        mTransformExecutor = newWorkerPool("transform", MAX_TRANSFORM_THREADS);
+        mStreamExecutor = newWorkerPool("stream", MAX_STREAM_THREADS);
+    }
+
+    private static ThreadPoolExecutor newWorkerPool(final String name, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                WORKER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_QUEUED_WORK), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, TAG + " " + name + " worker #" + mCount.incrementAndGet());
+            }
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
     }
 
     @Override
@@ -102,8 +157,21 @@ public abstract class MicroPALProviderService<T extends Item> extends Service {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        mTransformExecutor.shutdownNow();
+        mStreamExecutor.shutdownNow();
+        mStreams.clear();
+        super.onDestroy();
+    }
+
     /**
-     *  Implementation of the private data transform.
+     *  Implementation of the private data transform. When the request has a
+     *  timeout, it runs on a worker thread rather than the binder thread, and
+     *  is interrupted once the timeout passes; a transform that ignores the
+     *  interrupt keeps its worker thread busy until it returns, and its result
+     *  is dropped. Only a few transforms can be pending at a time, and
+     *  requests beyond that get a null result.
      *  @param privateData  An item containing the private data to transform
      *  @param palExtras    A bundle containing any additional parameters for the
      *                      transformation. May be empty or null, depending on how
@@ -112,19 +180,65 @@ public abstract class MicroPALProviderService<T extends Item> extends Service {
      */
     public abstract Bundle onReceive(T privateData, Bundle palExtras);
 
+    /**
+     *  Implementation of the private data transform over a stream of items,
+     *  used instead of {@link #onReceive} when this PAL supports streaming and
+     *  the data is a list. It runs on a worker thread while the data is still
+     *  being acquired, and {@code items.hasNext()} blocks until more items
+     *  arrive. If none arrive for a minute, the stream is abandoned and
+     *  hasNext() returns false. By default all items are collected and passed
+     *  to onReceive.
+     *  @param items        The items of the list, in order
+     *  @param palExtras    A bundle containing any additional parameters for the
+     *                      transformation.
+     *  @return A bundle containing transformed data derived from the private data.
+     */
+    public Bundle onReceiveStream(Iterator<Item> items, Bundle palExtras) {
+        ArrayList<Item> itemList = new ArrayList<>();
+        while (items.hasNext()) {
+            itemList.add(items.next());
+        }
+        return onReceive((T) new ListItem<>(itemList), palExtras);
+    }
+
+    /**
+     *  Whether list data should be streamed to {@link #onReceiveStream} in
+     *  chunks, rather than sent at once to {@link #onReceive}. Override
+     *  together with onReceiveStream.
+     *  @return true to receive lists as a stream
+     */
+    public boolean supportsStreaming() {
+        return false;
+    }
+
     /**
      *  Description of this PAL transform. Used by the Policy Manager.
      *  @return PAL description
      */
     public abstract String getDescription();
 
+    /**
+     *  Names of the item fields this PAL reads. Providers only acquire these
+     *  fields, and leave the others out of the data sent to the PAL. By default
+     *  every field is sent.
+     *  @return the required field names, or null for every field
+     */
+    public List<String> getRequiredFields() {
+        return null;
+    }
+
     private final IMicroPALProvider.Stub mBinder = new IMicroPALProvider.Stub() {
         @Override
-        public Bundle processData(ItemWrapper privateData, Bundle palExtras) {
-            if (checkType(privateData)) {
-                return MicroPALProviderService.this.onReceive(((ItemWrapper<T>) privateData).getValue(), palExtras);
-            } else {
-                Log.e(TAG, "Invalid data type to transform! Received: " + privateData.getTypeString() + ", " + "Expected: " + getTypeString());
+        public Bundle processData(ItemWrapper privateData, Bundle palExtras, long timeoutMillis) {
+            return process(privateData, palExtras, timeoutMillis);
+        }
+
+        @Override
+        public Bundle processSharedData(SharedMemory privateData, Bundle palExtras, long timeoutMillis) {
+            try {
+                return process(ItemWrapper.readFromSharedMemory(privateData), palExtras, timeoutMillis);
+            } catch (ErrnoException e) {
+                Log.e(TAG, "Unable to map shared private data", e);
             }
             return null;
         }
@@ -143,8 +257,223 @@ public abstract class MicroPALProviderService<T extends Item> extends Service {
         public String getDescription() {
             return MicroPALProviderService.this.getDescription();
         }
+
+        @Override
+        public List<String> getRequiredFields() {
+            return MicroPALProviderService.this.getRequiredFields();
+        }
+
+        @Override
+        public boolean supportsStreaming() {
+            return MicroPALProviderService.this.supportsStreaming();
+        }
+
+        @Override
+        public int beginStream(Bundle palExtras) {
+            removeStaleStreams();
+            int streamId = mNextStreamId.incrementAndGet();
+            ItemStream stream = new ItemStream(streamId, palExtras);
+            mStreams.put(streamId, stream);
+            try {
+                mStreamExecutor.execute(stream.mResult);
+            } catch (RejectedExecutionException e) {
+                // Chunks sent to the unknown stream are refused, and its result is null
+                Log.w(TAG, "Too much pending work, rejecting stream " + streamId);
+                mStreams.remove(streamId);
+            }
+            return streamId;
+        }
+
+        @Override
+        public boolean processChunk(int streamId, ItemWrapper chunk, long timeoutMillis) {
+            ItemStream stream = mStreams.get(streamId);
+            if (stream == null) {
+                Log.e(TAG, "Unknown stream " + streamId);
+                return false;
+            }
+            if (!checkType(chunk)) {
+                Log.e(TAG, "Invalid data type to transform! Received: " + chunk.getTypeString() + ", " + "Expected: " + getTypeString());
+                stream.fail();
+                return false;
+            }
+            long deadline = (timeoutMillis > 0) ? SystemClock.elapsedRealtime() + timeoutMillis : Long.MAX_VALUE;
+            return stream.offer((ListItem<?>) chunk.getValue(), deadline);
+        }
+
+        @Override
+        public Bundle endStream(int streamId, long timeoutMillis) {
+            ItemStream stream = mStreams.remove(streamId);
+            if (stream == null) {
+                Log.e(TAG, "Unknown stream " + streamId);
+                return null;
+            }
+            return stream.finish(timeoutMillis);
+        }
     };
 
+    /*
+     * Run the transform, or with a timeout (if > 0), run it on a worker thread
+     * and give up waiting for it once the timeout passes, so that the caller's
+     * binder thread is not held past the request's deadline. The worker pool is
+     * bounded, so transforms that never return cannot pile up threads.
+     */
+    private Bundle process(ItemWrapper privateData, final Bundle palExtras, long timeoutMillis) {
+        if (!checkType(privateData)) {
+            Log.e(TAG, "Invalid data type to transform! Received: " + privateData.getTypeString() + ", " + "Expected: " + getTypeString());
+            return null;
+        }
+
+        final T value = ((ItemWrapper<T>) privateData).getValue();
+        if (timeoutMillis <= 0) {
+            return onReceive(value, palExtras);
+        }
+
+        FutureTask<Bundle> result = new FutureTask<>(new Callable<Bundle>() {
+            @Override
+            public Bundle call() {
+                return onReceive(value, palExtras);
+            }
+        });
+        try {
+            mTransformExecutor.execute(result);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Too much pending work, rejecting transform");
+            return null;
+        }
+        return awaitResult(result, timeoutMillis);
+    }
+
+    /* Wait for the result of a transform, for at most the timeout (if > 0) */
+    private static Bundle awaitResult(FutureTask<Bundle> result, long timeoutMillis) {
+        try {
+            return (timeoutMillis > 0) ? result.get(timeoutMillis, TimeUnit.MILLISECONDS) : result.get();
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Transform did not finish within " + timeoutMillis + " ms, giving up on it");
+            result.cancel(true);
+        } catch (ExecutionException e) {
+            Log.e(TAG, "Failed to process data", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /* Drop streams whose transform is done but whose sender never came back to end them */
+    private void removeStaleStreams() {
+        long now = SystemClock.elapsedRealtime();
+        Iterator<ItemStream> streams = mStreams.values().iterator();
+        while (streams.hasNext()) {
+            ItemStream stream = streams.next();
+            if (stream.mResult.isDone() && now - stream.mLastActivity > STREAM_IDLE_MILLIS) {
+                Log.w(TAG, "Removing stream " + stream.mStreamId + ", which was never ended");
+                streams.remove();
+            }
+        }
+    }
+
+    /*
+     * A stream of items received in chunks. onReceiveStream reads it on a worker
+     * thread, and the sender is blocked while the PAL is more than a few chunks behind.
+     */
+    private final class ItemStream implements Iterator<Item> {
+        private final int mStreamId;
+        private final LinkedBlockingQueue<ListItem<?>> mChunks = new LinkedBlockingQueue<>(STREAM_QUEUE_CHUNKS);
+        private final FutureTask<Bundle> mResult;
+        private volatile boolean mFailed;
+        private volatile long mLastActivity = SystemClock.elapsedRealtime();
+        private ListItem<?> mChunk;
+        private int mIndex;
+        private boolean mEnded;
+
+        ItemStream(int streamId, final Bundle palExtras) {
+            mStreamId = streamId;
+            mResult = new FutureTask<Bundle>(new Callable<Bundle>() {
+                @Override
+                public Bundle call() {
+                    return onReceiveStream(ItemStream.this, palExtras);
+                }
+            }) {
+                @Override
+                protected void done() {
+                    // Chunks the PAL did not read are no longer needed
+                    mChunks.clear();
+                }
+            };
+        }
+
+        /* Queue a chunk, or return false once the PAL has stopped reading or the deadline has passed */
+        boolean offer(ListItem<?> chunk, long deadline) {
+            mLastActivity = SystemClock.elapsedRealtime();
+            try {
+                while (!mResult.isDone() && SystemClock.elapsedRealtime() < deadline) {
+                    if (mChunks.offer(chunk, STREAM_OFFER_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        void fail() {
+            mFailed = true;
+        }
+
+        /* Give up on a stream whose sender has gone quiet */
+        private void abandon() {
+            Log.w(TAG, "Stream " + mStreamId + " received nothing for " + STREAM_IDLE_MILLIS + " ms, abandoning it");
+            mFailed = true;
+            mStreams.remove(mStreamId, this);
+            mChunks.clear();
+        }
+
+        /* End the stream and wait for the result, for at most the timeout (if > 0) */
+        Bundle finish(long timeoutMillis) {
+            long deadline = (timeoutMillis > 0) ? SystemClock.elapsedRealtime() + timeoutMillis : Long.MAX_VALUE;
+            offer(END_OF_STREAM, deadline);
+
+            long remainingMillis = (timeoutMillis > 0) ? Math.max(deadline - SystemClock.elapsedRealtime(), 1) : 0;
+            Bundle result = awaitResult(mResult, remainingMillis);
+            return mFailed ? null : result;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while (!mEnded && (mChunk == null || mIndex >= mChunk.size())) {
+                    ListItem<?> chunk = mChunks.poll(STREAM_IDLE_MILLIS, TimeUnit.MILLISECONDS);
+                    if (chunk == null) {
+                        abandon();
+                        mEnded = true;
+                    } else if (chunk == END_OF_STREAM) {
+                        mEnded = true;
+                    } else {
+                        mChunk = chunk;
+                        mIndex = 0;
+                    }
+                }
+            } catch (InterruptedException e) {
+                mEnded = true;
+                Thread.currentThread().interrupt();
+            }
+            return !mEnded;
+        }
+
+        @Override
+        public Item next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return mChunk.get(mIndex++);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /* Check if the type of item contained in the ItemWrapper is compatible with this PAL */
     private boolean checkType(ItemWrapper wrappedItem) {
         List<Class> itemTypeClasses = wrappedItem.getTypes();
@@ -0,0 +1,195 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.privatedata.PrivateDataManager;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * The requests in progress, by the token of their handle in the app. Cancels
+ * the requests of a handle when the app cancels it or dies, and each request
+ * when its deadline passes, so that stuck requests give their threads back.
+ */
+class ActiveRequests {
+    private static final String TAG = ActiveRequests.class.getSimpleName();
+
+    private final HashMap<IBinder, ArrayList<RequestControl>> mByToken = new HashMap<>();
+    private final HashMap<IBinder, IBinder.DeathRecipient> mDeathRecipients = new HashMap<>();
+    private final HandlerThread mDeadlineThread;
+    private final Handler mDeadlineHandler;
+    private int mActive;
+    private long mCancelled;
+    private long mTimedOut;
+
+    ActiveRequests() {
+        mDeadlineThread = new HandlerThread("PDMS deadlines");
+        mDeadlineThread.start();
+        mDeadlineHandler = new Handler(mDeadlineThread.getLooper());
+    }
+
+    /**
+     * Start tracking a request.
+     * @param token         the token of the request's handle in the app, or null
+     * @param timeoutMillis the time the request may take, or 0 for no deadline
+     * @param receiver      the receiver of the request's results
+     * @return the request's control, to be closed once the request ends
+     */
+    RequestControl open(final IBinder token, long timeoutMillis, ResultReceiver receiver) {
+        final RequestControl control = new RequestControl(token, timeoutMillis, receiver);
+
+        boolean dead = false;
+        synchronized (this) {
+            mActive++;
+            if (token != null) {
+                ArrayList<RequestControl> controls = mByToken.get(token);
+                if (controls == null) {
+                    controls = new ArrayList<>();
+                    mByToken.put(token, controls);
+                    dead = !linkToDeath(token);
+                }
+                controls.add(control);
+            }
+        }
+        if (dead) {
+            cancel(token);
+        }
+
+        if (control.hasDeadline()) {
+            postDeadline(control, new Runnable() {
+                @Override
+                public void run() {
+                    if (control.getRemainingMillis() > 0) {
+                        postDeadline(control, this);
+                    } else if (control.cancel(PrivateDataManager.RESULT_TIMED_OUT)) {
+                        Log.w(TAG, "Request timed out");
+                        synchronized (ActiveRequests.this) {
+                            mTimedOut++;
+                        }
+                    }
+                }
+            });
+        }
+        return control;
+    }
+
+    /*
+     * Run the expiry of a request once its deadline is due. The handler runs on
+     * the uptime clock, while the deadline is on elapsedRealtime, so the expiry
+     * checks the deadline again and waits on if it fired early.
+     */
+    private void postDeadline(RequestControl control, Runnable expiry) {
+        long delayMillis = Math.max(control.getRemainingMillis(), 0);
+        mDeadlineHandler.postAtTime(expiry, control, SystemClock.uptimeMillis() + delayMillis);
+    }
+
+    /* Cancel the requests of a token when its app dies; false if it already has */
+    private boolean linkToDeath(final IBinder token) {
+        IBinder.DeathRecipient recipient = new IBinder.DeathRecipient() {
+            @Override
+            public void binderDied() {
+                Log.i(TAG, "App of a request handle died, cancelling its requests");
+                cancel(token);
+            }
+        };
+        try {
+            token.linkToDeath(recipient, 0);
+            mDeathRecipients.put(token, recipient);
+            return true;
+        } catch (RemoteException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop tracking a request that ended. Work of the request that may still
+     * run, e.g. the speculative acquisition of a denied request, is cancelled.
+     * @param control the request's control
+     */
+    void close(RequestControl control) {
+        mDeadlineHandler.removeCallbacksAndMessages(control);
+        control.getCancellationSignal().cancel();
+
+        IBinder token = control.getToken();
+        synchronized (this) {
+            mActive--;
+            ArrayList<RequestControl> controls = (token != null) ? mByToken.get(token) : null;
+            if (controls != null && controls.remove(control) && controls.isEmpty()) {
+                mByToken.remove(token);
+                IBinder.DeathRecipient recipient = mDeathRecipients.remove(token);
+                if (recipient != null) {
+                    token.unlinkToDeath(recipient, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the requests of a handle that are still in progress.
+     * @param token the token of the handle
+     */
+    void cancel(IBinder token) {
+        ArrayList<RequestControl> controls;
+        synchronized (this) {
+            controls = mByToken.get(token);
+            controls = (controls != null) ? new ArrayList<>(controls) : new ArrayList<RequestControl>();
+        }
+
+        int cancelled = 0;
+        for (RequestControl control : controls) {
+            if (control.cancel(PrivateDataManager.RESULT_CANCELLED)) {
+                cancelled++;
+            }
+        }
+        Log.d(TAG, "Cancelled " + cancelled + " requests");
+        synchronized (this) {
+            mCancelled += cancelled;
+        }
+    }
+
+    void shutdown() {
+        mDeadlineThread.quitSafely();
+    }
+
+    /**
+     * Write the number of requests in progress, cancelled and timed out, e.g. for dumpsys.
+     * @param pw the writer
+     */
+    synchronized void dump(PrintWriter pw) {
+        pw.println(TAG + ":");
+        pw.println("  active: " + mActive + ", handles: " + mByToken.size()
+                + ", cancelled: " + mCancelled + ", timed out: " + mTimedOut);
+    }
+}
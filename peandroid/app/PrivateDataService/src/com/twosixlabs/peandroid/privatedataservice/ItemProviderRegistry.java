@@ -0,0 +1,146 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.Bundle;
+import android.pal.item.ItemProvider;
+import android.privatedata.DataRequest;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Holds the item providers that serve each data type. Providers are created
+ * once and serve every request for their data types, so they can keep caches
+ * and service handles between requests. A data type may be served by several
+ * providers, e.g. single and continuous location updates; the first one
+ * registered that handles the request params serves it.
+ *
+ * The registry drives the lifecycle of its providers: each one is initialized
+ * when registered, warmed up in the background, told to trim its memory, and
+ * shut down along with the registry.
+ */
+class ItemProviderRegistry {
+    private static final String TAG = ItemProviderRegistry.class.getSimpleName();
+
+    private final EnumMap<DataRequest.DataType, List<ItemProvider>> mProviders =
+            new EnumMap<>(DataRequest.DataType.class);
+    /* Each provider once, even if it serves several data types */
+    private final ArrayList<ItemProvider> mInstances = new ArrayList<>();
+
+    /**
+     * Register a provider for a data type, initializing it if it is new.
+     * @param dataType the data type
+     * @param provider the provider
+     */
+    void register(DataRequest.DataType dataType, ItemProvider provider) {
+        boolean isNew;
+        synchronized (this) {
+            List<ItemProvider> providers = mProviders.get(dataType);
+            if (providers == null) {
+                providers = new ArrayList<>();
+                mProviders.put(dataType, providers);
+            }
+            providers.add(provider);
+
+            isNew = !mInstances.contains(provider);
+            if (isNew) {
+                mInstances.add(provider);
+            }
+        }
+
+        if (isNew) {
+            provider.onInit();
+        }
+    }
+
+    /**
+     * Get the provider that serves a request.
+     * @param dataType the data type
+     * @param params   the request params, may be null
+     * @return the provider, or null if no registered provider handles the request
+     */
+    synchronized ItemProvider get(DataRequest.DataType dataType, Bundle params) {
+        List<ItemProvider> providers = mProviders.get(dataType);
+        if (providers != null) {
+            for (ItemProvider provider : providers) {
+                if (provider.handles(params)) {
+                    return provider;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Warm up all providers on a background thread, one after the other.
+     */
+    void warmUp() {
+        final List<ItemProvider> providers = getInstances();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (ItemProvider provider : providers) {
+                    try {
+                        provider.onWarmUp();
+                    } catch (RuntimeException e) {
+                        Log.w(TAG, "Failed to warm up " + provider.getClass().getSimpleName(), e);
+                    }
+                }
+            }
+        }, "PDMS warm-up").start();
+    }
+
+    /**
+     * Tell all providers to trim their memory.
+     * @param level the trim level, as in ComponentCallbacks2
+     */
+    void trimMemory(int level) {
+        for (ItemProvider provider : getInstances()) {
+            provider.onTrimMemory(level);
+        }
+    }
+
+    /**
+     * Shut down and unregister all providers.
+     */
+    void shutdown() {
+        List<ItemProvider> providers = getInstances();
+        synchronized (this) {
+            mProviders.clear();
+            mInstances.clear();
+        }
+        for (ItemProvider provider : providers) {
+            provider.onShutdown();
+        }
+    }
+
+    private synchronized List<ItemProvider> getInstances() {
+        return new ArrayList<>(mInstances);
+    }
+}
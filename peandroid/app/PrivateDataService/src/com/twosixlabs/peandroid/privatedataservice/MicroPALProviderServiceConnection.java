@@ -33,11 +33,16 @@ import android.content.ServiceConnection;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Parcel;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
 import android.pal.item.Item;
 import android.privatedata.DataRequest;
 import android.privatedata.IMicroPALProvider;
 import android.privatedata.ItemWrapper;
+import android.system.ErrnoException;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -55,6 +60,8 @@ public class MicroPALProviderServiceConnection implements ServiceConnection {
 
     private IMicroPALProvider mService;
     private DataRequest.DataType mSupportedType;
+    private FieldProjection mFieldProjection = FieldProjection.ALL;
+    private boolean mSupportsStreaming;
 
     public MicroPALProviderServiceConnection(ResolveInfo ri, Context context) {
         if(mActiveMicroPALConnections == null) {
@@ -86,6 +93,8 @@ public class MicroPALProviderServiceConnection implements ServiceConnection {
 
             boolean correctId = mId.equals(mService.getId());
             if(correctId) {
+                mFieldProjection = FieldProjection.of(mService.getRequiredFields());
+                mSupportsStreaming = mService.supportsStreaming();
                 mActiveMicroPALConnections.put(mId, this);
                 Log.i(TAG, String.format("Connected to %s (%d active connections now)", toString(), mActiveMicroPALConnections.size()));
 
@@ -123,7 +132,65 @@ public class MicroPALProviderServiceConnection implements ServiceConnection {
         }
     }
 
-    public Bundle processData(DataRequest.DataType dataType, ItemWrapper privateData, Bundle palParams) throws IllegalArgumentException,RemoteException {
+    /**
+     * A stream of list chunks to the PAL. Once a chunk fails, the PAL stops
+     * reading or the request is cancelled, the remaining chunks are dropped.
+     */
+    public class Stream implements ColumnarListItem.ChunkSink {
+        private final int mStreamId;
+        private final RequestControl mControl;
+        private boolean mOpen = true;
+        private int mChunkCount;
+
+        private Stream(int streamId, RequestControl control) {
+            mStreamId = streamId;
+            mControl = control;
+        }
+
+        @Override
+        public void onChunk(ColumnarListItem chunk) {
+            send(ItemWrapper.ofList(chunk, chunk.getItemClass()));
+        }
+
+        public void send(ItemWrapper chunk) {
+            if (!mOpen || mControl.isCancelled()) {
+                mOpen = false;
+                return;
+            }
+            try {
+                mOpen = mService.processChunk(mStreamId, chunk, mControl.getPalTimeoutMillis());
+                mChunkCount++;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to send chunk to " + MicroPALProviderServiceConnection.this.toString(), e);
+                mOpen = false;
+            }
+        }
+
+        public Bundle end() throws RemoteException {
+            Log.i(TAG, String.format("Sent %d chunks to %s", mChunkCount, MicroPALProviderServiceConnection.this.toString()));
+            return mService.endStream(mStreamId, mControl.getPalTimeoutMillis());
+        }
+    }
+
+    public boolean supportsStreaming() {
+        return mSupportsStreaming;
+    }
+
+    public Stream beginStream(DataRequest.DataType dataType, Bundle palParams, RequestControl control) throws IllegalArgumentException,RemoteException {
+        if(mSupportedType == DataRequest.DataType.ANY || dataType == mSupportedType) {
+            Log.i(TAG, toString() + " streaming data type " + dataType.name());
+            return new Stream(mService.beginStream(palParams), control);
+        }
+
+        throw new IllegalArgumentException(String.format("Invalid data type provider. Expected %s, got %s.", mSupportedType.name(), dataType.name()));
+    }
+
+    /**
+     * Process data in the PAL, which gives up on it once the timeout passes.
+     * @param timeoutMillis the time the PAL may take, or 0 for no limit
+     */
+    public Bundle processData(DataRequest.DataType dataType, ItemWrapper privateData, Bundle palParams, long timeoutMillis)
+            throws IllegalArgumentException,RemoteException {
         if(mSupportedType == DataRequest.DataType.ANY || dataType == mSupportedType) {
             Log.i(TAG, toString() + " processing data type " + dataType.name());
 
@@ -132,12 +199,59 @@ public class MicroPALProviderServiceConnection implements ServiceConnection {
             }
 
             Log.i(TAG, "send privateData for dataType=" + dataType.name());
-            return mService.processData(privateData, palParams);
+            return sendData(privateData, palParams, timeoutMillis);
         }
 
         throw new IllegalArgumentException(String.format("Invalid data type provider. Expected %s, got %s.", mSupportedType.name(), dataType.name()));
     }
 
+    /*
+     * Send small payloads inline, and large ones through shared memory to stay clear of the binder buffer limit.
+     * Columnar lists are sized by an estimate and written straight into the shared memory region, so the data
+     * is only copied once on either side. Other values are parcelled here to find their size, and a large one
+     * is then copied from the Parcel into the region.
+     */
+    private Bundle sendData(ItemWrapper privateData, Bundle palParams, long timeoutMillis) throws RemoteException {
+        int estimatedSize = privateData.estimateParcelSize();
+        if (estimatedSize >= 0 && estimatedSize <= ItemWrapper.MAX_INLINE_SIZE) {
+            return mService.processData(privateData, palParams, timeoutMillis);
+        }
+
+        SharedMemory memory;
+        if (privateData.canWriteDirectly()) {
+            try {
+                memory = privateData.writeToSharedMemory();
+            } catch (ErrnoException e) {
+                Log.w(TAG, "Unable to create shared memory, sending privateData inline", e);
+                return mService.processData(privateData, palParams, timeoutMillis);
+            }
+        } else {
+            Parcel parcel = Parcel.obtain();
+            try {
+                privateData.writeToParcel(parcel, 0);
+                int size = parcel.dataSize();
+                if (size <= ItemWrapper.MAX_INLINE_SIZE) {
+                    return mService.processData(privateData, palParams, timeoutMillis);
+                }
+                try {
+                    memory = ItemWrapper.writeToSharedMemory(parcel);
+                } catch (ErrnoException e) {
+                    Log.w(TAG, "Unable to create shared memory, sending " + size + " bytes inline", e);
+                    return mService.processData(privateData, palParams, timeoutMillis);
+                }
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        Log.i(TAG, "send " + memory.getSize() + " bytes of privateData through shared memory");
+        try {
+            return mService.processSharedData(memory, palParams, timeoutMillis);
+        } finally {
+            memory.close();
+        }
+    }
+
     public void disconnect() {
         Log.i(TAG, "Unbinding " + toString());
         mContext.unbindService(this);
@@ -151,6 +265,10 @@ public class MicroPALProviderServiceConnection implements ServiceConnection {
         return mService.getDescription();
     }
 
+    public FieldProjection getFieldProjection() {
+        return mFieldProjection;
+    }
+
     public static List<String> getMicroPALIdentifiers(DataRequest.DataType supportedType) {
         boolean getAllPALs = supportedType == null;
 
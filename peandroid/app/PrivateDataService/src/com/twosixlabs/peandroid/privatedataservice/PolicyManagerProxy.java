@@ -38,6 +38,9 @@ import android.util.Log;
 
 import com.android.internal.privacy.IPrivacyManager;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.concurrent.CountDownLatch;
 
 public class PolicyManagerProxy {
@@ -51,43 +54,90 @@ public class PolicyManagerProxy {
         initPolicyManager();
     }
 
-    public int queryPolicyManager(String packageName, DataRequest.DataType dataType, String purpose, String pal, String palDescription) {
+    public int queryPolicyManager(String packageName, DataRequest.DataType dataType, String purpose, String pal, String palDescription,
+                                  RequestControl control) {
+        return queryPolicyManager(packageName, new DataRequest.DataType[] { dataType }, new String[] { purpose },
+                                  new String[] { pal }, new String[] { palDescription }, new RequestControl[] { control })[0];
+    }
+
+    /**
+     * Query the policy manager about several requests of a package at once.
+     * IPolicyManager has no batch call, so this is a parallel dispatch: one
+     * onPrivateDataRequest call is made per distinct query, and all of them
+     * are sent before waiting for any answer. Identical queries are only sent
+     * once. The wait for a query ends once all the requests asking it are
+     * cancelled, e.g. past their deadline, so a cancelled request does not
+     * hold back the others. Unanswered requests are denied.
+     * @return the result of each request, in order
+     */
+    public int[] queryPolicyManager(String packageName, DataRequest.DataType[] dataTypes, String[] purposes, String[] pals, String[] palDescriptions,
+                                    RequestControl[] controls) {
         try {
             initPolicyManager();
         } catch (RemoteException e) {
             e.printStackTrace();
         }
 
-        int result = PackageManager.PERMISSION_NO_POLICY_MANAGER;
+        int count = dataTypes.length;
+        int[] results = new int[count];
+        Arrays.fill(results, PackageManager.PERMISSION_NO_POLICY_MANAGER);
 
         if(sPolicyManager != null) {
-            result = PackageManager.PERMISSION_DENIED;
-
-            if(dataType == DataRequest.DataType.EMPTY || dataType == DataRequest.DataType.ANY) {
-                Log.d(TAG, "Policy for 'EMPTY' or 'ANY' data type is always granted");
-                result = PackageManager.PERMISSION_GRANTED;
-
-            } else {
-                String permission = DataRequest.dataTypeToPermission(dataType);
+            Arrays.fill(results, PackageManager.PERMISSION_DENIED);
+
+            // Index of the first request asking each distinct query
+            HashMap<String, Integer> queries = new HashMap<>();
+            int[] queryOf = new int[count];
+            for(int i = 0; i < count; i++) {
+                queryOf[i] = -1;
+                if(dataTypes[i] == DataRequest.DataType.EMPTY || dataTypes[i] == DataRequest.DataType.ANY) {
+                    Log.d(TAG, "Policy for 'EMPTY' or 'ANY' data type is always granted");
+                    results[i] = PackageManager.PERMISSION_GRANTED;
+                } else {
+                    String query = DataRequest.dataTypeToPermission(dataTypes[i]) + '\n' + purposes[i] + '\n' + pals[i] + '\n' + palDescriptions[i];
+                    Integer first = queries.get(query);
+                    if(first == null) {
+                        first = i;
+                        queries.put(query, first);
+                    }
+                    queryOf[i] = first;
+                }
+            }
 
-                final CountDownLatch LATCH = new CountDownLatch(1);
-                final PolicyResultReceiver CALLBACK = new PolicyResultReceiver(LATCH);
+            PolicyResultReceiver[] callbacks = new PolicyResultReceiver[count];
+            try {
+                for(int first : queries.values()) {
+                    String permission = DataRequest.dataTypeToPermission(dataTypes[first]);
+                    callbacks[first] = new PolicyResultReceiver(new CountDownLatch(1));
+                    sPolicyManager.onPrivateDataRequest(packageName, permission, purposes[first], pals[first], palDescriptions[first], callbacks[first]);
+                }
 
-                try {
-                    sPolicyManager.onPrivateDataRequest(packageName, permission, purpose, pal, palDescription, CALLBACK);
-                    LATCH.await();
+                // Wait for each query only as long as one of the requests asking it is not cancelled
+                for(int first : queries.values()) {
+                    ArrayList<RequestControl> waiting = new ArrayList<>();
+                    for(int i = first; i < count; i++) {
+                        if(queryOf[i] == first) {
+                            waiting.add(controls[i]);
+                        }
+                    }
+                    if(!RequestControl.await(callbacks[first].latch, waiting.toArray(new RequestControl[waiting.size()]))) {
+                        Log.w(TAG, "Stopped waiting for the Policy Manager, requests of package " + packageName + " were cancelled");
+                    }
+                }
 
-                    if(CALLBACK.mAllowPerm) {
-                        Log.d(TAG, String.format("Policy granted for package %s, permission %s, for purpose %s", packageName, permission, purpose));
-                        result = PackageManager.PERMISSION_GRANTED;
+                for(int i = 0; i < count; i++) {
+                    if(queryOf[i] >= 0 && callbacks[queryOf[i]].mAllowPerm) {
+                        Log.d(TAG, String.format("Policy granted for package %s, permission %s, for purpose %s", packageName,
+                                                 DataRequest.dataTypeToPermission(dataTypes[i]), purposes[i]));
+                        results[i] = PackageManager.PERMISSION_GRANTED;
                     }
-                } catch(RemoteException | InterruptedException e) {
-                    Log.e(TAG, "Error querying PolicyManager", e);
                 }
+            } catch(RemoteException e) {
+                Log.e(TAG, "Error querying PolicyManager", e);
             }
         }
 
-        return result;
+        return results;
     }
 
     private void initPolicyManager() throws RemoteException {
@@ -112,7 +162,7 @@ public class PolicyManagerProxy {
     }
 
 	private class PolicyResultReceiver extends ResultReceiver {
-	    boolean mAllowPerm;
+	    volatile boolean mAllowPerm;
 	    CountDownLatch latch;
 
 	    PolicyResultReceiver(CountDownLatch latch) {
@@ -26,26 +26,42 @@
 
 package com.twosixlabs.peandroid.privatedataservice;
 
+import android.Manifest;
 import android.annotation.Nullable;
+import android.app.ActivityManager;
 import android.content.BroadcastReceiver;
+import android.content.ComponentCallbacks2;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
-import android.os.AsyncTask;
+import android.os.Binder;
 import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.IBinder;
+import android.os.OperationCanceledException;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
+import android.pal.item.AcquisitionOptions;
+import android.pal.item.ColumnarListItem;
+import android.pal.item.FieldProjection;
 import android.pal.item.Item;
 import android.pal.item.ItemProvider;
 import android.pal.item.calendar.CalendarEventItemProvider;
+import android.pal.item.calendar.CalendarInstanceCache;
 import android.pal.item.communication.CallItemProvider;
+import android.pal.item.communication.CallLogMirror;
 import android.pal.item.communication.ContactItemProvider;
 import android.pal.item.communication.MessageItemProvider;
+import android.pal.item.communication.SmsMirror;
+import android.pal.item.device.ContinuousDeviceStateItemProvider;
+import android.pal.item.device.DeviceStateCache;
 import android.pal.item.device.DeviceStateItemProvider;
 import android.pal.item.empty.EmptyItemProvider;
+import android.pal.item.location.ContinuousLocationItemProvider;
+import android.pal.item.location.LocationBroker;
 import android.pal.item.location.LocationItemProvider;
 import android.privatedata.DataRequest;
 import android.privatedata.IPrivateDataManagerService;
@@ -54,15 +70,27 @@ import android.privatedata.MicroPALProviderService;
 import android.privatedata.PrivateDataManager;
 import android.util.Log;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
 
 class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
     private static final String TAG = PrivateDataManagerService.class.getSimpleName();
+
+    /* Number of items per chunk when streaming a list to a PAL */
+    private static final int STREAM_CHUNK_SIZE = 500;
     private Context mContext;
     private BroadcastReceiver mInstallReceiver;
     private BroadcastReceiver mUninstallReceiver;
     private PolicyManagerProxy mPolicyManager;
+    private ProviderResultCache mResultCache;
+    private ItemProviderRegistry mProviders;
+    private RequestScheduler mScheduler;
+    private SingleFlight mInFlight;
+    private ActiveRequests mActiveRequests;
 
     public PrivateDataManagerService(Context context) {
         mContext = context;
@@ -100,6 +128,22 @@ class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
         };
 		mContext.registerReceiver(mUninstallReceiver, uninstallFilter);
 
+        // Cache provider results until the underlying data changes
+        mResultCache = new ProviderResultCache(mContext);
+        mResultCache.register();
+
+        // Create the long-lived item providers, then prepare them for the first requests
+        mProviders = new ItemProviderRegistry();
+        registerProviders();
+        mProviders.warmUp();
+
+        // Run requests on dedicated threads, with a cap per data type and foreground callers first
+        mScheduler = new RequestScheduler();
+        mInFlight = new SingleFlight();
+
+        // Cancel requests on their deadline, or when their app cancels them or dies
+        mActiveRequests = new ActiveRequests();
+
         // Bind to all uPALs
         bindPALsFromPackage(null);
 
@@ -144,63 +188,141 @@ class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
         }
     }
 
-    private ItemWrapper getPrivateData(DataRequest.DataType dataType, Bundle dataTypeExtras) throws IllegalArgumentException {
-        ItemProvider provider = null;
-        switch(dataType) {
-            // TODO Implement ACCOUNTS type in the future, perhaps
-            //case ACCOUNTS:
-            //    provider = null;            // TODO Get accounts data
-            //    break;
-
-            case CALENDAR:
-                provider = new CalendarEventItemProvider(mContext);
-                break;
-
-            case CALL_LOGS:
-                provider = new CallItemProvider(mContext);
-                break;
-
-            case CONTACTS:
-                provider = new ContactItemProvider(mContext);
-                break;
-
-            case LOCATION:
-                provider = new LocationItemProvider(mContext);
-                break;
-
-            case PHONE_STATE:
-                provider = new DeviceStateItemProvider(mContext);
-                break;
-
-            case SMS:
-                provider = new MessageItemProvider(mContext);
-                break;
-
-            case EMPTY:
-            case ANY:
-                provider = new EmptyItemProvider(mContext);
-                break;
-
-            default:
-                provider = null;         // Not getting any data at all
+    private void registerProviders() {
+        // Keep copies of the recent calls and messages, updated incrementally as they change
+        mProviders.register(DataRequest.DataType.CALL_LOGS, new CallItemProvider(mContext, new CallLogMirror(mContext)));
+        mProviders.register(DataRequest.DataType.SMS, new MessageItemProvider(mContext, new SmsMirror(mContext)));
+
+        // Cache calendar instances over the requested ranges, so overlapping ranges only query the gaps
+        mProviders.register(DataRequest.DataType.CALENDAR, new CalendarEventItemProvider(mContext, new CalendarInstanceCache(mContext)));
+
+        mProviders.register(DataRequest.DataType.CONTACTS, new ContactItemProvider(mContext));
+
+        // Share location fixes between concurrent and closely spaced location requests
+        LocationBroker locationBroker = new LocationBroker(mContext);
+        mProviders.register(DataRequest.DataType.LOCATION, new ContinuousLocationItemProvider(mContext, locationBroker));
+        mProviders.register(DataRequest.DataType.LOCATION, new LocationItemProvider(mContext, locationBroker));
+
+        // Keep the telephony handles and the device fields that only change with the SIM or carrier,
+        // and listen for phone state changes on behalf of all phone state subscriptions
+        DeviceStateCache deviceStateCache = new DeviceStateCache(mContext);
+        mProviders.register(DataRequest.DataType.PHONE_STATE, new ContinuousDeviceStateItemProvider(mContext, deviceStateCache));
+        mProviders.register(DataRequest.DataType.PHONE_STATE, new DeviceStateItemProvider(mContext, deviceStateCache));
+
+        // TODO Implement ACCOUNTS type in the future, perhaps
+        EmptyItemProvider emptyProvider = new EmptyItemProvider(mContext);
+        mProviders.register(DataRequest.DataType.EMPTY, emptyProvider);
+        mProviders.register(DataRequest.DataType.ANY, emptyProvider);
+    }
+
+    /**
+     * Let the item providers and the result cache free memory.
+     * @param level the trim level, as in ComponentCallbacks2
+     */
+    void onTrimMemory(int level) {
+        Log.i(TAG, "Trimming memory at level " + level);
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mResultCache.clear();
         }
+        mProviders.trimMemory(level);
+    }
+
+    /**
+     * Shut down the item providers and stop watching for data changes.
+     */
+    void shutdown() {
+        mProviders.shutdown();
+        mResultCache.unregister();
+        mActiveRequests.shutdown();
+    }
 
-        ItemWrapper privateData = null;
-        if(provider != null) {
-            privateData = provider.getPrivateData(dataTypeExtras);
+    /* Acquire a list in chunks and stream them to the PAL as they are read */
+    private Bundle streamData(DataRequest.DataType dataType, ItemProvider provider, Bundle dataTypeExtras, FieldProjection projection,
+                              MicroPALProviderServiceConnection pal, Bundle palExtras, RequestControl control) {
+        try {
+            Log.i(TAG, String.format("Attempting to stream dataType=%s on palProvider=%s", dataType.name(), pal.toString()));
+            MicroPALProviderServiceConnection.Stream stream = pal.beginStream(dataType, palExtras, control);
+            ItemWrapper lastChunk = provider.getPrivateData(dataTypeExtras,
+                    new AcquisitionOptions(projection, STREAM_CHUNK_SIZE, stream, control.getCancellationSignal()));
+            if(lastChunk != null) {
+                stream.send(lastChunk);
+            }
+            return stream.end();
+
+        } catch(RemoteException e) {
+            Log.e(TAG, "Failed to stream to PAL provider " + pal.toString(), e);
+            return null;
         }
+    }
+
+    /* Acquire data over time, processing each batch in the PAL and sending its result back as it comes */
+    private Bundle deliverContinuously(final DataRequest.DataType dataType, ItemProvider provider, Bundle dataTypeExtras, FieldProjection projection,
+                                       final String palProvider, final Bundle palExtras, final RequestControl control) {
+        ColumnarListItem.ChunkSink sink = new ColumnarListItem.ChunkSink() {
+            @Override
+            public void onChunk(ColumnarListItem batch) {
+                Bundle processed = processData(dataType, ItemWrapper.ofList(batch, batch.getItemClass()), palProvider, palExtras, control);
+                if(processed != null) {
+                    control.sendPartial(processed);
+                }
+            }
+        };
 
-        return privateData;
+        ItemWrapper lastBatch = provider.getPrivateData(dataTypeExtras,
+                new AcquisitionOptions(projection, STREAM_CHUNK_SIZE, sink, control.getCancellationSignal()));
+        return (lastBatch != null) ? processData(dataType, lastBatch, palProvider, palExtras, control) : null;
     }
 
-    private Bundle processData(DataRequest.DataType dataType, ItemWrapper privateData, String palProvider, Bundle palExtras) {
+    /* Acquire data, or join an acquisition of the same data in flight, and cache the result */
+    private ItemWrapper acquireShared(DataRequest.DataType dataType, ItemProvider provider, Bundle dataTypeExtras, FieldProjection projection,
+                                      RequestControl control) {
+        return newSharedAcquisition(dataType, provider, dataTypeExtras, projection, control, control.getCancellationSignal(), true)
+                .acquire();
+    }
+
+    /*
+     * Acquire data, or join an acquisition of the same data in flight. The
+     * acquisition observes the given signal, and caches its result only if
+     * told to: a speculative one must not, as its request may be denied.
+     */
+    private SingleFlight.Acquisition newSharedAcquisition(final DataRequest.DataType dataType, final ItemProvider provider,
+                                                          final Bundle dataTypeExtras, final FieldProjection projection,
+                                                          final RequestControl control, final CancellationSignal cancellationSignal,
+                                                          final boolean cacheResult) {
+        final RequestKey key = new RequestKey(dataType, dataTypeExtras, projection);
+        final SingleFlight.Acquisition acquisition = new SingleFlight.Acquisition() {
+            @Override
+            public ItemWrapper acquire() {
+                int generation = mResultCache.getGeneration(dataType);
+                ItemWrapper privateData = provider.getPrivateData(dataTypeExtras,
+                        new AcquisitionOptions(projection, cancellationSignal));
+                if(cacheResult) {
+                    mResultCache.put(dataType, dataTypeExtras, projection, generation, privateData);
+                }
+                return privateData;
+            }
+        };
+        return new SingleFlight.Acquisition() {
+            @Override
+            public ItemWrapper acquire() {
+                return mInFlight.acquire(key, acquisition, control);
+            }
+        };
+    }
+
+    private Bundle processData(DataRequest.DataType dataType, ItemWrapper privateData, String palProvider, Bundle palExtras,
+                               RequestControl control) {
+        if(control.isCancelled()) {
+            return null;
+        }
+
         MicroPALProviderServiceConnection pal = MicroPALProviderServiceConnection.getConnection(palProvider);
         if(pal != null) {
             try {
                 Log.i(TAG, String.format("Attempting to process dataType=%s on palProvider=%s",
                                          dataType.name(), palProvider));
                 Log.i(TAG, "Item type is " + privateData.getTypeString());
-                Bundle processed = pal.processData(dataType, privateData, palExtras);
+                Bundle processed = pal.processData(dataType, privateData, palExtras, control.getPalTimeoutMillis());
                 return processed;
 
             } catch(IllegalArgumentException | RemoteException e) {
@@ -213,30 +335,85 @@ class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
         return null;
     }
 
-    private class AsyncProcessor extends AsyncTask<Object, Void, Bundle> {
+    private class AsyncProcessor implements Runnable {
         private DataRequest.DataType dt;
         private Bundle dataTypeExtras;
         private String palProvider;
         private Bundle palExtras;
-        private ResultReceiver receiver;
+        private RequestControl control;
+        private Speculation speculation;
 
-        public AsyncProcessor(DataRequest.DataType dt, Bundle dataTypeExtras, String palProvider, Bundle palExtras, ResultReceiver receiver) {
+        public AsyncProcessor(DataRequest.DataType dt, Bundle dataTypeExtras, String palProvider, Bundle palExtras, RequestControl control,
+                              Speculation speculation) {
             this.dt = dt;
             this.dataTypeExtras = dataTypeExtras;
             this.palProvider = palProvider;
             this.palExtras = palExtras;
-            this.receiver = receiver;
+            this.control = control;
+            this.speculation = speculation;
         }
 
         @Override
-        protected Bundle doInBackground(Object... params) {
-            Bundle processed = null;
+        public void run() {
             try {
-                ItemWrapper privateData = getPrivateData(dt, dataTypeExtras);
+                Bundle result = null;
+                try {
+                    // A request cancelled while it was queued has already been answered
+                    if(!control.isCancelled()) {
+                        result = process();
+                    }
+                } catch(OperationCanceledException e) {
+                    Log.d(TAG, "Acquisition of dataType=" + dt.name() + " was cancelled");
+                }
+
+                int resultCode = (result != null) ? PrivateDataManager.RESULT_SUCCESS : PrivateDataManager.RESULT_UNABLE_TO_ACQUIRE_DATA;
+                if(control.finish(resultCode, result)) {
+                    Log.i(TAG, "Async processing complete, sending result back up to the PDM");
+                }
+            } finally {
+                if(speculation != null) {
+                    // Stop a speculative acquisition nobody waits for anymore
+                    speculation.discard();
+                }
+                mActiveRequests.close(control);
+            }
+        }
 
-                if (privateData != null) {
-                    // Process data in uPAL synchronously, then report result to callback
-                    processed = processData(dt, privateData, palProvider, palExtras);
+        private Bundle process() {
+            Bundle processed = null;
+            try {
+                // Only acquire the fields the PAL declared it needs
+                MicroPALProviderServiceConnection pal = MicroPALProviderServiceConnection.getConnection(palProvider);
+                FieldProjection projection = (pal != null) ? pal.getFieldProjection() : FieldProjection.ALL;
+                ItemWrapper speculativeData = awaitSpeculation();
+                ItemWrapper cachedData = (speculativeData == null) ? mResultCache.get(dt, dataTypeExtras, projection) : null;
+                ItemProvider provider = (speculativeData == null && cachedData == null) ? mProviders.get(dt, dataTypeExtras) : null;
+
+                if (speculativeData != null) {
+                    // Acquired while the policy manager was deciding on the request.
+                    // Only now that the request is granted may the result be shared through the cache
+                    mResultCache.put(dt, dataTypeExtras, projection, speculation.getGeneration(), speculativeData);
+                    processed = processData(dt, speculativeData, palProvider, palExtras, control);
+                } else if (cachedData != null) {
+                    Log.d(TAG, "Serving dataType=" + dt.name() + " from the result cache");
+                    processed = processData(dt, cachedData, palProvider, palExtras, control);
+                } else if (provider != null && provider.isContinuous()) {
+                    // Process each batch in the uPAL as it comes, and report it as a partial result
+                    processed = deliverContinuously(dt, provider, dataTypeExtras, projection, palProvider, palExtras, control);
+                } else if (provider != null && pal != null && provider.supportsStreaming() && pal.supportsStreaming()) {
+                    // Stream the data to the uPAL in chunks while it is being read
+                    processed = streamData(dt, provider, dataTypeExtras, projection, pal, palExtras, control);
+                } else {
+                    ItemWrapper privateData = null;
+                    if (provider != null) {
+                        // Share the acquisition with identical requests running at the same time
+                        privateData = acquireShared(dt, provider, dataTypeExtras, projection, control);
+                    }
+
+                    if (privateData != null) {
+                        // Process data in uPAL synchronously, then report result to callback
+                        processed = processData(dt, privateData, palProvider, palExtras, control);
+                    }
                 }
 
             } catch(IllegalArgumentException e) {
@@ -246,17 +423,36 @@ class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
             return processed;
         }
 
-        @Override
-        protected void onPostExecute(Bundle result) {
-            int resultCode = (result != null) ? PrivateDataManager.RESULT_SUCCESS : PrivateDataManager.RESULT_UNABLE_TO_ACQUIRE_DATA;
-            Log.i(TAG, "Async processing complete, sending result back up to the PDM");
-            receiver.send(resultCode, result);
+        /*
+         * Get the data acquired while the policy manager was deciding, if any.
+         * A speculation that failed or was cancelled yields null, so that the
+         * request is served as if there had been none.
+         */
+        private ItemWrapper awaitSpeculation() {
+            if(speculation == null) {
+                return null;
+            }
+            try {
+                return speculation.await(control);
+            } catch(RuntimeException e) {
+                if(control.isCancelled()) {
+                    throw e;
+                }
+                Log.w(TAG, "Speculative acquisition of dataType=" + dt.name() + " failed, acquiring again", e);
+                return null;
+            }
         }
     }
 
     @Override
-    public void requestData(String callingPackage, String dataType, Bundle dataTypeExtras, String palProvider, Bundle palExtras, String purpose, ResultReceiver receiver) {
+    public void requestData(String callingPackage, String dataType, Bundle dataTypeExtras, String palProvider, Bundle palExtras, String purpose,
+                            ResultReceiver receiver, long timeoutMillis, IBinder cancelToken) {
         DataRequest.DataType dt = DataRequest.DataType.valueOf(dataType);
+        int priority = isForegroundCaller() ? RequestScheduler.PRIORITY_FOREGROUND : RequestScheduler.PRIORITY_BACKGROUND;
+        RequestControl control = mActiveRequests.open(cancelToken, timeoutMillis, receiver);
+
+        // Start acquiring the data while the policy manager decides
+        Speculation speculation = speculate(dt, dataTypeExtras, palProvider, control);
 
         // Query the policy manager if it's a dangerous permission
         MicroPALProviderServiceConnection pal = MicroPALProviderServiceConnection.getConnection(palProvider);
@@ -265,7 +461,7 @@ class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
             if(pal != null) {
                 try {
                     String palDescription = pal.getDescription();
-                    policyResult = mPolicyManager.queryPolicyManager(callingPackage, dt, purpose, palProvider, palDescription);
+                    policyResult = mPolicyManager.queryPolicyManager(callingPackage, dt, purpose, palProvider, palDescription, control);
                 } catch(RemoteException e) {
                     Log.e(TAG, "Failed to get description from PAL ID " + palProvider, e);
                 }
@@ -277,21 +473,202 @@ class PrivateDataManagerService extends IPrivateDataManagerService.Stub {
         }
 
         // Get private data
-        if(policyResult == PackageManager.PERMISSION_GRANTED) {
-            Log.d(TAG, String.format("Permission granted to app %s for data type %s with purpose %s",
-                                     callingPackage, dataType, purpose));
+        dispatch(callingPackage, dt, dataTypeExtras, palProvider, palExtras, purpose, control, policyResult, priority, speculation);
+    }
 
-            AsyncProcessor processor = new AsyncProcessor(dt, dataTypeExtras, palProvider, palExtras, receiver);
-            processor.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);        // NOTE(irwin): Parallelization should be OK because these are all read operations
+    @Override
+    public void requestDataBatch(String callingPackage, List<String> dataTypes, List<Bundle> dataTypeExtras, List<String> palProviders,
+                                 List<Bundle> palExtras, List<String> purposes, List<ResultReceiver> receivers, long[] timeoutsMillis,
+                                 IBinder cancelToken) {
+        int count = dataTypes.size();
+        if(dataTypeExtras.size() != count || palProviders.size() != count || palExtras.size() != count
+                || purposes.size() != count || receivers.size() != count || timeoutsMillis.length != count) {
+            throw new IllegalArgumentException("Batch request lists differ in length");
+        }
+        Log.d(TAG, String.format("Got a batch of %d requests from app %s", count, callingPackage));
+
+        DataRequest.DataType[] dts = new DataRequest.DataType[count];
+        for(int i = 0; i < count; i++) {
+            dts[i] = DataRequest.DataType.valueOf(dataTypes.get(i));
+        }
+        int priority = isForegroundCaller() ? RequestScheduler.PRIORITY_FOREGROUND : RequestScheduler.PRIORITY_BACKGROUND;
+        RequestControl[] controls = new RequestControl[count];
+        for(int i = 0; i < count; i++) {
+            controls[i] = mActiveRequests.open(cancelToken, timeoutsMillis[i], receivers.get(i));
+        }
 
+        // Start acquiring the data while the policy manager decides
+        Speculation[] speculations = new Speculation[count];
+        for(int i = 0; i < count; i++) {
+            speculations[i] = speculate(dts[i], dataTypeExtras.get(i), palProviders.get(i), controls[i]);
+        }
+
+        // Query the policy manager about the whole batch at once, fetching each PAL's description once
+        int[] policyResults = new int[count];
+        Arrays.fill(policyResults, PackageManager.PERMISSION_NO_POLICY_MANAGER);
+        if(mPolicyManager != null) {
+            HashMap<String, String> palDescriptions = new HashMap<>();
+            ArrayList<Integer> queried = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                String palProvider = palProviders.get(i);
+                if(!palDescriptions.containsKey(palProvider)) {
+                    palDescriptions.put(palProvider, getPALDescription(palProvider));
+                }
+                if(palDescriptions.get(palProvider) != null) {
+                    queried.add(i);
+                }
+            }
+
+            int queryCount = queried.size();
+            DataRequest.DataType[] queryTypes = new DataRequest.DataType[queryCount];
+            String[] queryPurposes = new String[queryCount];
+            String[] queryPals = new String[queryCount];
+            String[] queryDescriptions = new String[queryCount];
+            RequestControl[] queryControls = new RequestControl[queryCount];
+            for(int q = 0; q < queryCount; q++) {
+                int i = queried.get(q);
+                queryTypes[q] = dts[i];
+                queryPurposes[q] = purposes.get(i);
+                queryPals[q] = palProviders.get(i);
+                queryDescriptions[q] = palDescriptions.get(palProviders.get(i));
+                queryControls[q] = controls[i];
+            }
+            int[] queryResults = mPolicyManager.queryPolicyManager(callingPackage, queryTypes, queryPurposes, queryPals, queryDescriptions,
+                                                                   queryControls);
+            for(int q = 0; q < queryCount; q++) {
+                policyResults[queried.get(q)] = queryResults[q];
+            }
+        } else {
+            Log.e(TAG, "Attempting to request data with no Policy Manager present");
+        }
+
+        // Schedule the granted requests together; equal acquisitions among them are shared
+        for(int i = 0; i < count; i++) {
+            dispatch(callingPackage, dts[i], dataTypeExtras.get(i), palProviders.get(i), palExtras.get(i), purposes.get(i),
+                     controls[i], policyResults[i], priority, speculations[i]);
+        }
+    }
+
+    /* The description of a PAL for the policy manager, or null if the PAL is unavailable */
+    private String getPALDescription(String palProvider) {
+        MicroPALProviderServiceConnection pal = MicroPALProviderServiceConnection.getConnection(palProvider);
+        if(pal == null) {
+            Log.e(TAG, "PAL ID " + palProvider + " not found");
+            return null;
+        }
+        try {
+            return pal.getDescription();
+        } catch(RemoteException e) {
+            Log.e(TAG, "Failed to get description from PAL ID " + palProvider, e);
+            return null;
+        }
+    }
+
+    /*
+     * Start acquiring the data of a request before it is granted, if the
+     * acquisition is a plain one that a grant would repeat, and a thread is
+     * idle. Continuous and streamed acquisitions are left alone: they are tied
+     * to the PAL, and may take long.
+     */
+    private Speculation speculate(DataRequest.DataType dt, Bundle dataTypeExtras, String palProvider, RequestControl control) {
+        MicroPALProviderServiceConnection pal = MicroPALProviderServiceConnection.getConnection(palProvider);
+        if(mPolicyManager == null || pal == null) {
+            return null;        // Would be denied
+        }
+
+        FieldProjection projection = pal.getFieldProjection();
+        if(mResultCache.get(dt, dataTypeExtras, projection) != null) {
+            return null;
+        }
+        ItemProvider provider = mProviders.get(dt, dataTypeExtras);
+        if(provider == null || provider.isContinuous() || (provider.supportsStreaming() && pal.supportsStreaming())) {
+            return null;
+        }
+
+        // Discarding the speculation cancels it, without ending the request
+        CancellationSignal cancellationSignal = new CancellationSignal();
+        int generation = mResultCache.getGeneration(dt);
+        Speculation speculation = new Speculation(
+                newSharedAcquisition(dt, provider, dataTypeExtras, projection, control, cancellationSignal, false),
+                cancellationSignal, generation);
+        return mScheduler.trySubmit(dt, speculation) ? speculation : null;
+    }
+
+    /*
+     * Schedule a request if the policy manager granted it, or else deny it and
+     * discard its speculation. A request that was cancelled or timed out
+     * meanwhile has already been answered, and is dropped.
+     */
+    private void dispatch(String callingPackage, DataRequest.DataType dt, Bundle dataTypeExtras, String palProvider, Bundle palExtras,
+                          String purpose, RequestControl control, int policyResult, int priority, Speculation speculation) {
+        if(control.isCancelled()) {
+            Log.d(TAG, String.format("Request of app %s for data type %s ended before it was scheduled", callingPackage, dt.name()));
+            if(speculation != null) {
+                speculation.discard();
+            }
+            mActiveRequests.close(control);
+
+        } else if(policyResult == PackageManager.PERMISSION_GRANTED) {
+            Log.d(TAG, String.format("Permission granted to app %s for data type %s with purpose %s",
+                                     callingPackage, dt.name(), purpose));
+
+            // NOTE(irwin): Parallelization should be OK because these are all read operations
+            AsyncProcessor processor = new AsyncProcessor(dt, dataTypeExtras, palProvider, palExtras, control, speculation);
+            ItemProvider provider = mProviders.get(dt, dataTypeExtras);
+            boolean continuous = provider != null && provider.isContinuous();
+            if(!mScheduler.submit(dt, continuous, priority, processor)) {
+                Log.w(TAG, String.format("Too many pending requests, rejecting request of app %s for data type %s",
+                                         callingPackage, dt.name()));
+                if(speculation != null) {
+                    speculation.discard();
+                }
+                control.finish(PrivateDataManager.RESULT_BUSY, null);
+                mActiveRequests.close(control);
+            }
 
         } else {
             Log.e(TAG, String.format("Policy Manager denied package %s for data type %s with purpose %s. Error code %d",
-                                     callingPackage, dataType, purpose, policyResult));
-            receiver.send(PrivateDataManager.RESULT_REQUEST_DENIED, null);
+                                     callingPackage, dt.name(), purpose, policyResult));
+            if(speculation != null) {
+                speculation.discard();
+            }
+            control.finish(PrivateDataManager.RESULT_REQUEST_DENIED, null);
+            mActiveRequests.close(control);
+        }
+    }
+
+    /* Whether the app calling in over binder is in the foreground, so its requests go first */
+    private boolean isForegroundCaller() {
+        int uid = Binder.getCallingUid();
+        long token = Binder.clearCallingIdentity();
+        try {
+            ActivityManager am = mContext.getSystemService(ActivityManager.class);
+            int importance = am.getUidImportance(uid);
+            return importance <= ActivityManager.RunningAppProcessInfo.IMPORTANCE_FOREGROUND_SERVICE;
+        } catch(SecurityException e) {
+            Log.w(TAG, "Unable to check the importance of uid " + uid, e);
+            return false;
+        } finally {
+            Binder.restoreCallingIdentity(token);
         }
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        if(mContext.checkCallingOrSelfPermission(Manifest.permission.DUMP) != PackageManager.PERMISSION_GRANTED) {
+            pw.println("Permission Denial: can't dump " + TAG);
+            return;
+        }
+        mScheduler.dump(pw);
+        mInFlight.dump(pw);
+        mActiveRequests.dump(pw);
+    }
+
+    @Override
+    public void cancelRequest(IBinder cancelToken) {
+        mActiveRequests.cancel(cancelToken);
+    }
+
     @Override
     public List<String> getPALProviders(String dataType) {
         try {
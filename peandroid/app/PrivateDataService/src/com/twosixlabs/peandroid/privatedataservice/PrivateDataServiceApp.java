@@ -47,8 +47,14 @@ public class PrivateDataServiceApp extends Application {
     Log.d(TAG, "Registered [" + serviceImpl.getClass().getName() + "] as [" + REMOTE_SERVICE_NAME + "]");
   }
 
+  public void onTrimMemory(int level) {
+    super.onTrimMemory(level);
+    this.serviceImpl.onTrimMemory(level);
+  }
+
   public void onTerminate() {
     super.onTerminate();
+    this.serviceImpl.shutdown();
     Log.d(TAG, "Terminated");
   }
 }
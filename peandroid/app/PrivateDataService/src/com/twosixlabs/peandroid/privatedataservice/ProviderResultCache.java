@@ -0,0 +1,236 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.pal.item.FieldProjection;
+import android.privatedata.DataRequest;
+import android.privatedata.ItemWrapper;
+import android.provider.CalendarContract;
+import android.provider.CallLog;
+import android.provider.ContactsContract;
+import android.provider.Telephony;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the data acquired by item providers, so that repeated requests for the
+ * same data are served from memory instead of querying the content providers
+ * again. Entries are keyed by data type, request params and field projection,
+ * bounded by count and size, and evicted least recently used first.
+ *
+ * Only data types backed by a content provider are cached. A ContentObserver
+ * on each provider drops every entry of its data type as soon as the
+ * underlying data changes, so a cached result is never stale.
+ */
+class ProviderResultCache {
+    private static final String TAG = ProviderResultCache.class.getSimpleName();
+
+    private static final int MAX_ENTRIES = 32;
+    private static final int MAX_BYTES = 8 * 1024 * 1024;
+
+    private final Context mContext;
+    private final LinkedHashMap<RequestKey, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ArrayList<ContentObserver> mObservers = new ArrayList<>();
+
+    /* Bumped on each invalidation, so that data acquired before a change is not cached after it */
+    private final int[] mGenerations = new int[DataRequest.DataType.values().length];
+    private int mBytes;
+
+    ProviderResultCache(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start watching the content providers behind the cached data types.
+     */
+    void register() {
+        observe(CallLog.Calls.CONTENT_URI, DataRequest.DataType.CALL_LOGS);
+        observe(Telephony.Sms.CONTENT_URI, DataRequest.DataType.SMS);
+        observe(ContactsContract.AUTHORITY_URI, DataRequest.DataType.CONTACTS);
+        observe(CalendarContract.CONTENT_URI, DataRequest.DataType.CALENDAR);
+    }
+
+    /**
+     * Stop watching the content providers and drop all entries.
+     */
+    void unregister() {
+        for (ContentObserver observer : mObservers) {
+            mContext.getContentResolver().unregisterContentObserver(observer);
+        }
+        mObservers.clear();
+        clear();
+    }
+
+    private void observe(Uri uri, final DataRequest.DataType dataType) {
+        ContentObserver observer = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                invalidate(dataType);
+            }
+        };
+        mContext.getContentResolver().registerContentObserver(uri, true, observer);
+        mObservers.add(observer);
+    }
+
+    /**
+     * Test if results of a data type can be cached.
+     * @param dataType the data type
+     * @return true if the data type is backed by an observed content provider
+     */
+    static boolean isCacheable(DataRequest.DataType dataType) {
+        switch (dataType) {
+            case CALL_LOGS:
+            case SMS:
+            case CONTACTS:
+            case CALENDAR:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Get the current generation of a data type. Read it before acquiring data
+     * and pass it to {@link #put}.
+     * @param dataType the data type
+     * @return the generation
+     */
+    synchronized int getGeneration(DataRequest.DataType dataType) {
+        return mGenerations[dataType.ordinal()];
+    }
+
+    /**
+     * Look up a cached result.
+     * @param dataType   the data type
+     * @param params     the request params
+     * @param projection the fields the result must hold
+     * @return the frozen result, or null if it is not cached
+     */
+    synchronized ItemWrapper get(DataRequest.DataType dataType, Bundle params, FieldProjection projection) {
+        if (!isCacheable(dataType)) {
+            return null;
+        }
+        Entry entry = mEntries.get(new RequestKey(dataType, params, projection));
+        return (entry != null) ? entry.mData : null;
+    }
+
+    /**
+     * Cache a result. It is frozen, and must not be modified afterwards.
+     * @param dataType   the data type
+     * @param params     the request params
+     * @param projection the fields the result holds
+     * @param generation the generation of the data type when acquisition started
+     * @param data       the result
+     */
+    void put(DataRequest.DataType dataType, Bundle params, FieldProjection projection, int generation, ItemWrapper data) {
+        if (!isCacheable(dataType) || data == null || data.getValue() == null) {
+            return;
+        }
+
+        // Measured outside the lock; for a frozen columnar list this also encodes the payload that will be sent
+        data.getValue().freeze();
+        int size = getParcelledSize(data);
+        if (size > MAX_BYTES / 4) {
+            Log.d(TAG, "Not caching " + size + " bytes of " + dataType.name());
+            return;
+        }
+
+        synchronized (this) {
+            if (mGenerations[dataType.ordinal()] != generation) {
+                return;
+            }
+            Entry previous = mEntries.put(new RequestKey(dataType, params, projection), new Entry(data, size));
+            if (previous != null) {
+                mBytes -= previous.mSize;
+            }
+            mBytes += size;
+            trim();
+        }
+    }
+
+    /**
+     * Drop every cached result of a data type.
+     * @param dataType the data type
+     */
+    synchronized void invalidate(DataRequest.DataType dataType) {
+        mGenerations[dataType.ordinal()]++;
+        Iterator<Map.Entry<RequestKey, Entry>> iterator = mEntries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<RequestKey, Entry> entry = iterator.next();
+            if (entry.getKey().getDataType() == dataType) {
+                mBytes -= entry.getValue().mSize;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all entries to free memory.
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        mBytes = 0;
+    }
+
+    /* Evict least recently used entries until both budgets are met */
+    private void trim() {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while ((mEntries.size() > MAX_ENTRIES || mBytes > MAX_BYTES) && iterator.hasNext()) {
+            mBytes -= iterator.next().mSize;
+            iterator.remove();
+        }
+    }
+
+    private static int getParcelledSize(ItemWrapper data) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            data.writeToParcel(parcel, 0);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static class Entry {
+        final ItemWrapper mData;
+        final int mSize;
+
+        Entry(ItemWrapper data, int size) {
+            mData = data;
+            mSize = size;
+        }
+    }
+}
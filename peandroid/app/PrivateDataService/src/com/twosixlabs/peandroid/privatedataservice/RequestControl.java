@@ -0,0 +1,181 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.Bundle;
+import android.os.CancellationSignal;
+import android.os.IBinder;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.privatedata.PrivateDataManager;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The deadline and cancellation of one request. A request ends exactly once:
+ * with its result, or as soon as it is cancelled or its deadline passes. In
+ * that case the receiver is answered right away, and the work still in
+ * progress is stopped through the cancellation signal, which the providers
+ * pass to their content queries. Waits on other threads, e.g. for the policy
+ * manager, give up once the request is cancelled.
+ */
+class RequestControl {
+    /* Longest wait on another thread before checking whether the request was cancelled */
+    private static final long CANCEL_CHECK_MILLIS = 100;
+
+    private final IBinder mToken;
+    private final ResultReceiver mReceiver;
+    private final long mDeadline;
+    private final CancellationSignal mCancellationSignal = new CancellationSignal();
+    private final AtomicBoolean mFinished = new AtomicBoolean();
+
+    /**
+     * @param token         the token of the request's handle in the app, or null
+     * @param timeoutMillis the time the request may take, or 0 for no deadline
+     * @param receiver      the receiver of the request's results
+     */
+    RequestControl(IBinder token, long timeoutMillis, ResultReceiver receiver) {
+        mToken = token;
+        mReceiver = receiver;
+        mDeadline = (timeoutMillis > 0) ? SystemClock.elapsedRealtime() + timeoutMillis : 0;
+    }
+
+    IBinder getToken() {
+        return mToken;
+    }
+
+    CancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    boolean isCancelled() {
+        return mCancellationSignal.isCanceled();
+    }
+
+    boolean hasDeadline() {
+        return mDeadline != 0;
+    }
+
+    /**
+     * Get the time left until the deadline. The deadline is kept on the
+     * elapsedRealtime clock, so that time in deep sleep counts against it.
+     * @return the time left, 0 or less once the deadline passed, or
+     *         Long.MAX_VALUE for no deadline
+     */
+    long getRemainingMillis() {
+        if (mDeadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return mDeadline - SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Get the time a PAL may take to process the request's data.
+     * @return the time left until the deadline, at least 1, or 0 for no limit
+     */
+    long getPalTimeoutMillis() {
+        if (mDeadline == 0) {
+            return 0;
+        }
+        return Math.max(getRemainingMillis(), 1);
+    }
+
+    /**
+     * Send the final result, unless the request already ended.
+     * @param resultCode the result code, one of PrivateDataManager.RESULT_*
+     * @param resultData the result, or null
+     * @return false if the request had already ended
+     */
+    boolean finish(int resultCode, Bundle resultData) {
+        if (!mFinished.compareAndSet(false, true)) {
+            return false;
+        }
+        mReceiver.send(resultCode, resultData);
+        return true;
+    }
+
+    /**
+     * Send one batch of results of a continuous request, unless it ended.
+     * @param resultData the batch of results
+     */
+    void sendPartial(Bundle resultData) {
+        if (!mFinished.get()) {
+            mReceiver.send(PrivateDataManager.RESULT_PARTIAL, resultData);
+        }
+    }
+
+    /**
+     * End the request with a result code and stop its work in progress.
+     * @param resultCode RESULT_CANCELLED or RESULT_TIMED_OUT
+     * @return false if the request had already ended
+     */
+    boolean cancel(int resultCode) {
+        // Answer first, so the work that notices the cancellation finds the request ended
+        boolean ended = finish(resultCode, null);
+        mCancellationSignal.cancel();
+        return ended;
+    }
+
+    /**
+     * Wait for a latch to count down, unless all the requests waiting for it
+     * are cancelled first.
+     * @param latch    the latch
+     * @param controls the requests waiting; null ones are never cancelled
+     * @return false if the requests were cancelled
+     */
+    static boolean await(CountDownLatch latch, RequestControl... controls) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    if (latch.await(CANCEL_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+                if (allCancelled(controls)) {
+                    return false;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static boolean allCancelled(RequestControl[] controls) {
+        for (RequestControl control : controls) {
+            if (control == null || !control.isCancelled()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.Bundle;
+import android.os.Parcel;
+import android.pal.item.FieldProjection;
+import android.privatedata.DataRequest;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Identifies the data a request acquires: its data type, its params and the
+ * fields it needs. Requests with equal keys acquire equal data, so they can
+ * share a result.
+ */
+final class RequestKey {
+    /* Keys params whose content is unknown, so that they never match */
+    private static final AtomicLong sUniqueIds = new AtomicLong();
+
+    private final DataRequest.DataType mDataType;
+    private final String mParams;
+    private final FieldProjection mProjection;
+
+    RequestKey(DataRequest.DataType dataType, Bundle params, FieldProjection projection) {
+        mDataType = dataType;
+        mParams = canonicalize(params);
+        mProjection = projection;
+    }
+
+    DataRequest.DataType getDataType() {
+        return mDataType;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof RequestKey)) {
+            return false;
+        }
+        RequestKey key = (RequestKey) other;
+        return mDataType == key.mDataType && mParams.equals(key.mParams) && mProjection.equals(key.mProjection);
+    }
+
+    @Override
+    public int hashCode() {
+        return (mDataType.hashCode() * 31 + mParams.hashCode()) * 31 + mProjection.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mDataType.name() + "{" + mParams + "}" + mProjection;
+    }
+
+    /*
+     * Bundle key order is not defined, so params are written in key order.
+     * Every key and value is length-prefixed, so that no two different
+     * Bundles are written the same.
+     */
+    private static String canonicalize(Bundle params) {
+        if (params == null) {
+            return "";
+        }
+        ArrayList<String> keys = new ArrayList<>(params.keySet());
+        Collections.sort(keys);
+        StringBuilder builder = new StringBuilder();
+        for (String key : keys) {
+            appendString(builder, key);
+            appendValue(builder, params.get(key));
+        }
+        return builder.toString();
+    }
+
+    private static void appendValue(StringBuilder builder, Object value) {
+        if (value == null) {
+            builder.append('N');
+        } else if (value instanceof Bundle) {
+            builder.append('B');
+            appendString(builder, canonicalize((Bundle) value));
+        } else if (value instanceof Object[]) {
+            Object[] values = (Object[]) value;
+            builder.append('A');
+            appendString(builder, value.getClass().getComponentType().getName());
+            builder.append(values.length).append(':');
+            for (Object element : values) {
+                appendValue(builder, element);
+            }
+        } else if (value instanceof List) {
+            List<?> values = (List<?>) value;
+            builder.append('L').append(values.size()).append(':');
+            for (Object element : values) {
+                appendValue(builder, element);
+            }
+        } else if (value.getClass().isArray()) {
+            // Primitive arrays
+            int length = Array.getLength(value);
+            builder.append('A');
+            appendString(builder, value.getClass().getComponentType().getName());
+            builder.append(length).append(':');
+            for (int i = 0; i < length; i++) {
+                appendString(builder, String.valueOf(Array.get(value, i)));
+            }
+        } else if (value instanceof CharSequence || value instanceof Number || value instanceof Boolean
+                || value instanceof Character) {
+            builder.append('V');
+            appendString(builder, value.getClass().getName());
+            appendString(builder, value.toString());
+        } else {
+            // Parcelables and Serializables are keyed by their parcelled content
+            byte[] bytes = marshall(value);
+            if (bytes != null) {
+                builder.append('P');
+                appendString(builder, value.getClass().getName());
+                builder.append(bytes.length).append(':');
+                for (byte b : bytes) {
+                    builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+                }
+            } else {
+                // Content unknown, so the request shares with no other
+                builder.append('I');
+                appendString(builder, value.getClass().getName());
+                builder.append(sUniqueIds.incrementAndGet()).append(':');
+            }
+        }
+    }
+
+    private static void appendString(StringBuilder builder, String value) {
+        builder.append(value.length()).append(':').append(value);
+    }
+
+    private static byte[] marshall(Object value) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeValue(value);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            return null;
+        } finally {
+            parcel.recycle();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.privatedata.DataRequest;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs data requests on a dedicated pool of threads. Each data type may only
+ * occupy a few of the threads, so slow requests cannot starve the other
+ * types. Continuous requests, e.g. location updates, hold a thread for their
+ * whole duration, so they run on threads of their own with their own caps,
+ * and never keep one-shot requests of the same type waiting. Requests that
+ * cannot run right away wait in one of two lanes, and requests of foreground
+ * callers are started before those of background callers. The lanes hold a
+ * bounded number of requests; beyond that, requests are rejected so that the
+ * caller can be told to retry instead of waiting behind an ever longer queue.
+ */
+class RequestScheduler {
+    private static final String TAG = RequestScheduler.class.getSimpleName();
+
+    static final int PRIORITY_FOREGROUND = 0;
+    static final int PRIORITY_BACKGROUND = 1;
+
+    private static final int MAX_THREADS = 8;
+    private static final int MAX_CONTINUOUS_THREADS = 4;
+    private static final int MAX_QUEUED = 64;
+    private static final int MAX_PER_TYPE = 4;
+    private static final int MAX_CONTINUOUS_PER_TYPE = 2;
+
+    private final ExecutorService mExecutor;
+    private final ArrayDeque<Task>[] mLanes;
+    private final int[] mRunning = new int[DataRequest.DataType.values().length];
+    private final int[] mRunningContinuous = new int[DataRequest.DataType.values().length];
+    private int mRunningTotal;
+    private int mRunningContinuousTotal;
+    private int mQueuedTotal;
+
+    /* Metrics, reported by dump */
+    private long mStarted;
+    private long mRejected;
+    private long mQueuedCount;
+    private long mQueueWaitMillis;
+    private int mMaxQueueDepth;
+
+    private class Task implements Runnable {
+        final DataRequest.DataType mDataType;
+        final boolean mContinuous;
+        final Runnable mRequest;
+        final long mQueuedAt;
+
+        Task(DataRequest.DataType dataType, boolean continuous, Runnable request) {
+            mDataType = dataType;
+            mContinuous = continuous;
+            mRequest = request;
+            mQueuedAt = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public void run() {
+            try {
+                mRequest.run();
+            } finally {
+                onFinished(this);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    RequestScheduler() {
+        mLanes = new ArrayDeque[] { new ArrayDeque<Task>(), new ArrayDeque<Task>() };
+        mExecutor = Executors.newFixedThreadPool(MAX_THREADS + MAX_CONTINUOUS_THREADS, new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        r.run();
+                    }
+                }, "PDMS request #" + mCount.incrementAndGet());
+            }
+        });
+    }
+
+    /**
+     * Run a request, right away if its data type and the pool have room, or
+     * else once they do.
+     * @param dataType   the data type of the request
+     * @param continuous whether the request delivers data continuously, holding its thread until it ends
+     * @param priority   {@link #PRIORITY_FOREGROUND} or {@link #PRIORITY_BACKGROUND}
+     * @param request    the request
+     * @return false if the request was rejected because too many requests are waiting
+     */
+    boolean submit(DataRequest.DataType dataType, boolean continuous, int priority, Runnable request) {
+        Task task = new Task(dataType, continuous, request);
+        synchronized (this) {
+            if (canStart(task)) {
+                start(task);
+                return true;
+            }
+            if (mQueuedTotal >= MAX_QUEUED) {
+                mRejected++;
+                return false;
+            }
+            mLanes[priority].addLast(task);
+            mQueuedTotal++;
+            mQueuedCount++;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueuedTotal);
+        }
+        return true;
+    }
+
+    /**
+     * Run optional work, e.g. a speculative acquisition, only if it can start
+     * right away without taking the place of a waiting request.
+     * @param dataType the data type of the work
+     * @param work     the work
+     * @return false if the work was not started
+     */
+    synchronized boolean trySubmit(DataRequest.DataType dataType, Runnable work) {
+        Task task = new Task(dataType, false, work);
+        if (mQueuedTotal > 0 || !canStart(task)) {
+            return false;
+        }
+        start(task);
+        return true;
+    }
+
+    private boolean canStart(Task task) {
+        int type = task.mDataType.ordinal();
+        if (task.mContinuous) {
+            return mRunningContinuousTotal < MAX_CONTINUOUS_THREADS && mRunningContinuous[type] < MAX_CONTINUOUS_PER_TYPE;
+        }
+        return mRunningTotal < MAX_THREADS && mRunning[type] < MAX_PER_TYPE;
+    }
+
+    private void start(Task task) {
+        if (task.mContinuous) {
+            mRunningContinuous[task.mDataType.ordinal()]++;
+            mRunningContinuousTotal++;
+        } else {
+            mRunning[task.mDataType.ordinal()]++;
+            mRunningTotal++;
+        }
+        mStarted++;
+        mExecutor.execute(task);
+    }
+
+    /* Start the first waiting request, by lane, whose data type has room again */
+    private synchronized void onFinished(Task task) {
+        if (task.mContinuous) {
+            mRunningContinuous[task.mDataType.ordinal()]--;
+            mRunningContinuousTotal--;
+        } else {
+            mRunning[task.mDataType.ordinal()]--;
+            mRunningTotal--;
+        }
+
+        for (ArrayDeque<Task> lane : mLanes) {
+            Iterator<Task> iterator = lane.iterator();
+            while (iterator.hasNext()) {
+                Task next = iterator.next();
+                if (canStart(next)) {
+                    iterator.remove();
+                    mQueuedTotal--;
+                    mQueueWaitMillis += SystemClock.elapsedRealtime() - next.mQueuedAt;
+                    start(next);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the current load and the queueing metrics, e.g. for dumpsys.
+     * @param pw the writer
+     */
+    synchronized void dump(PrintWriter pw) {
+        pw.println(TAG + ":");
+        pw.println("  running: " + mRunningTotal + "/" + MAX_THREADS
+                + ", continuous: " + mRunningContinuousTotal + "/" + MAX_CONTINUOUS_THREADS);
+        for (DataRequest.DataType dataType : DataRequest.DataType.values()) {
+            int running = mRunning[dataType.ordinal()];
+            int continuous = mRunningContinuous[dataType.ordinal()];
+            if (running > 0 || continuous > 0) {
+                pw.println("    " + dataType.name() + ": " + running + "/" + MAX_PER_TYPE
+                        + ", continuous: " + continuous + "/" + MAX_CONTINUOUS_PER_TYPE);
+            }
+        }
+        pw.println("  queued: foreground=" + mLanes[PRIORITY_FOREGROUND].size()
+                + " background=" + mLanes[PRIORITY_BACKGROUND].size() + " max=" + MAX_QUEUED);
+        pw.println("  started: " + mStarted + ", rejected: " + mRejected);
+        long dequeued = mQueuedCount - mQueuedTotal;
+        pw.println("  max queue depth: " + mMaxQueueDepth
+                + ", mean queue wait: " + ((dequeued > 0) ? mQueueWaitMillis / dequeued : 0) + "ms");
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.OperationCanceledException;
+import android.privatedata.ItemWrapper;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Lets concurrent requests for the same data share one acquisition. The first
+ * request with a key acquires the data; requests with an equal key that come
+ * in meanwhile wait for it and get the same result, instead of querying the
+ * content providers again. The result is frozen before it is shared, the same
+ * way cached results are, so each request can hand it to its own PAL. If the
+ * request leading an acquisition is cancelled, the requests that waited for
+ * it acquire the data again, one of them leading.
+ */
+class SingleFlight {
+    private static final String TAG = SingleFlight.class.getSimpleName();
+
+    private final HashMap<RequestKey, Flight> mFlights = new HashMap<>();
+    private long mCoalesced;
+
+    /**
+     * Acquires the data of a request.
+     */
+    interface Acquisition {
+        ItemWrapper acquire();
+    }
+
+    private static class Flight {
+        final CountDownLatch mDone = new CountDownLatch(1);
+        int mWaiters;
+        ItemWrapper mResult;
+        RuntimeException mError;
+    }
+
+    /**
+     * Acquire the data of a request, or wait for an acquisition of the same
+     * data that is already in flight.
+     * @param key         the data the request acquires
+     * @param acquisition acquires the data if no acquisition is in flight
+     * @param control     the request, whose cancellation ends its wait, or null
+     * @return the result, which is frozen if it was shared
+     * @throws RuntimeException as thrown by the acquisition, also to the requests that waited for it
+     * @throws OperationCanceledException if the request was cancelled
+     */
+    ItemWrapper acquire(RequestKey key, Acquisition acquisition, RequestControl control) {
+        Flight flight;
+        while (true) {
+            boolean leading;
+            synchronized (this) {
+                flight = mFlights.get(key);
+                leading = (flight == null);
+                if (leading) {
+                    flight = new Flight();
+                    mFlights.put(key, flight);
+                } else {
+                    flight.mWaiters++;
+                    mCoalesced++;
+                }
+            }
+            if (leading) {
+                break;
+            }
+
+            Log.d(TAG, "Joining the acquisition of " + key);
+            try {
+                return await(flight, control);
+            } catch (OperationCanceledException e) {
+                if (control != null && control.isCancelled()) {
+                    throw e;
+                }
+                Log.d(TAG, "The request leading the acquisition of " + key + " was cancelled, acquiring again");
+            }
+        }
+
+        try {
+            flight.mResult = acquisition.acquire();
+        } catch (RuntimeException e) {
+            flight.mError = e;
+            throw e;
+        } finally {
+            int waiters;
+            synchronized (this) {
+                mFlights.remove(key);
+                waiters = flight.mWaiters;
+            }
+            // Freeze before waking the waiters, as the result is about to be parcelled on several threads
+            if (waiters > 0 && flight.mResult != null && flight.mResult.getValue() != null) {
+                flight.mResult.getValue().freeze();
+            }
+            flight.mDone.countDown();
+        }
+        return flight.mResult;
+    }
+
+    private static ItemWrapper await(Flight flight, RequestControl control) {
+        if (!RequestControl.await(flight.mDone, control)) {
+            throw new OperationCanceledException();
+        }
+
+        if (flight.mError != null) {
+            throw flight.mError;
+        }
+        return flight.mResult;
+    }
+
+    /**
+     * Write the number of requests that shared an acquisition, e.g. for dumpsys.
+     * @param pw the writer
+     */
+    synchronized void dump(PrintWriter pw) {
+        pw.println(TAG + ":");
+        pw.println("  in flight: " + mFlights.size() + ", coalesced: " + mCoalesced);
+    }
+}
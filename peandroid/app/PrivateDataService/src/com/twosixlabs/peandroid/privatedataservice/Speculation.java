@@ -0,0 +1,131 @@
+/*
+ * This work was authored by Two Six Labs, LLC and is sponsored by a
+ * subcontract agreement with Raytheon BBN Technologies Corp. under Prime
+ * Contract No. FA8750-16-C-0006 with the Air Force Research Laboratory (AFRL).
+
+ * The Government has unlimited rights to use, modify, reproduce, release,
+ * perform, display, or disclose computer software or computer software
+ * documentation marked with this legend. Any reproduction of technical data,
+ * computer software, or portions thereof marked with this legend must also
+ * reproduce this marking.
+
+ * (C) 2020 Two Six Labs, LLC.  All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twosixlabs.peandroid.privatedataservice;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+import android.privatedata.ItemWrapper;
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Data acquired for a request while the policy manager is still deciding on
+ * it, so that acquisition overlaps the policy round trip instead of following
+ * it. If the request is granted, its processor takes the result, waiting for
+ * it if necessary. If the request is denied, the speculation is discarded:
+ * acquisition is cancelled, and the result is dropped and never handed to a
+ * PAL.
+ *
+ * The acquisition does not put its result in the result cache, since the
+ * request may yet be denied. The processor of a granted request caches it,
+ * under the generation read before acquisition started.
+ *
+ * The result is frozen as soon as it is acquired, which for columnar lists
+ * also encodes the payload the PAL will receive, so that this work is done
+ * during the policy decision as well.
+ */
+class Speculation implements Runnable {
+    private static final String TAG = Speculation.class.getSimpleName();
+
+    private final SingleFlight.Acquisition mAcquisition;
+    private final CancellationSignal mCancellationSignal;
+    private final int mGeneration;
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private volatile boolean mDiscarded;
+    private ItemWrapper mResult;
+    private RuntimeException mError;
+
+    /**
+     * @param acquisition        the acquisition, which must not cache its result
+     * @param cancellationSignal the signal the acquisition observes, cancelled on discard
+     * @param generation         the generation of the data type before acquisition
+     */
+    Speculation(SingleFlight.Acquisition acquisition, CancellationSignal cancellationSignal, int generation) {
+        mAcquisition = acquisition;
+        mCancellationSignal = cancellationSignal;
+        mGeneration = generation;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (mDiscarded) {
+                return;
+            }
+            ItemWrapper result = mAcquisition.acquire();
+            if (result != null && result.getValue() != null) {
+                result.getValue().freeze();
+            }
+            if (!mDiscarded) {
+                mResult = result;
+            }
+        } catch (RuntimeException e) {
+            mError = e;
+        } finally {
+            mDone.countDown();
+        }
+    }
+
+    /**
+     * Drop the result, e.g. because the request was denied. If acquisition
+     * has not started yet, it is skipped, and if it is running, it is
+     * cancelled.
+     */
+    void discard() {
+        Log.d(TAG, "Discarding speculative acquisition");
+        mDiscarded = true;
+        mResult = null;
+        mCancellationSignal.cancel();
+    }
+
+    /**
+     * Get the generation of the data type read before acquisition, under
+     * which a granted result may be cached.
+     * @return the generation
+     */
+    int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Get the result, waiting for acquisition to finish.
+     * @param control the request, whose cancellation ends the wait
+     * @return the result
+     * @throws RuntimeException as thrown by the acquisition
+     * @throws OperationCanceledException if the request was cancelled
+     */
+    ItemWrapper await(RequestControl control) {
+        if (!RequestControl.await(mDone, control)) {
+            throw new OperationCanceledException();
+        }
+
+        if (mError != null) {
+            throw mError;
+        }
+        return mResult;
+    }
+}
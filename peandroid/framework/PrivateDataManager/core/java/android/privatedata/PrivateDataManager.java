@@ -26,7 +26,9 @@
 
 package android.privatedata;
 
+import android.os.Binder;
 import android.os.Bundle;
+import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
@@ -46,6 +48,14 @@ public class PrivateDataManager {
     public static final int RESULT_SUCCESS = 0;
     public static final int RESULT_UNABLE_TO_ACQUIRE_DATA = 1;
     public static final int RESULT_REQUEST_DENIED = 2;
+    /** One batch of the results of a continuous request; more results follow. */
+    public static final int RESULT_PARTIAL = 3;
+    /** The service is handling too many requests; the request was not started and may be retried later. */
+    public static final int RESULT_BUSY = 4;
+    /** The request was cancelled through its {@link RequestHandle}, or because the app died. */
+    public static final int RESULT_CANCELLED = 5;
+    /** The request did not complete before its deadline; see {@link DataRequest#setTimeoutMillis(long)}. */
+    public static final int RESULT_TIMED_OUT = 6;
 
     private static final String TAG = PrivateDataManager.class.getSimpleName();
     private static final String PDMS = IPrivateDataManagerService.class.getName();
@@ -71,13 +81,36 @@ public class PrivateDataManager {
         }
     }
 
+    /**
+     * Handle to cancel a request, or the requests of a batch, that are still
+     * in progress. Work in progress is stopped, and each request that had not
+     * completed gets {@link #RESULT_CANCELLED}. Cancelling after completion
+     * does nothing.
+     */
+    public static final class RequestHandle {
+        private final IBinder mToken = new Binder();
+
+        private RequestHandle() {
+        }
+
+        public void cancel() {
+            try {
+                sPDMS.cancelRequest(mToken);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     /**
      *  Request sensitive data obtained asynchronously. For example,
      *  current location, location updates, and other streaming types.
-     *  Data returned via callback.
+     *  Data returned via callback. This call returns once the policy
+     *  decision is made; the data is acquired and processed afterwards.
      *  @param request An object specifying the data type, target PAL, parameters, and callback.
+     *  @return a handle to cancel the request, e.g. to stop continuous updates early
      */
-    public void requestData(DataRequest request) {
+    public RequestHandle requestData(DataRequest request) {
         String callingPackage = request.getContext().getPackageName();
         String dataType = request.getDataType().name();
         Bundle dataTypeExtras = request.getDataTypeExtras();
@@ -85,12 +118,60 @@ public class PrivateDataManager {
         Bundle palExtras = request.getPalExtras();
         String purpose = request.getPurpose().toString();
         ResultReceiver callback = request.getReceiver();
+        RequestHandle handle = new RequestHandle();
+
+        try {
+            sPDMS.requestData(callingPackage, dataType, dataTypeExtras, pal, palExtras, purpose, callback,
+                              request.getTimeoutMillis(), handle.mToken);
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        return handle;
+    }
+
+    /**
+     *  Request several kinds of sensitive data at once, e.g. everything a
+     *  screen shows. The requests are sent in one call, their policies are
+     *  evaluated together, and requests for the same data share its
+     *  acquisition. Each request still receives its own result through its
+     *  own callback, as with {@link #requestData(DataRequest)}.
+     *  Each request keeps its own deadline.
+     *  @param requests The requests, all originating from the same package.
+     *  @return a handle to cancel all the requests of the batch at once
+     */
+    public RequestHandle requestDataBatch(List<DataRequest> requests) {
+        RequestHandle handle = new RequestHandle();
+        if(requests.isEmpty()) {
+            return handle;
+        }
+
+        String callingPackage = requests.get(0).getContext().getPackageName();
+        int count = requests.size();
+        List<String> dataTypes = new ArrayList<>(count);
+        List<Bundle> dataTypeExtras = new ArrayList<>(count);
+        List<String> pals = new ArrayList<>(count);
+        List<Bundle> palExtras = new ArrayList<>(count);
+        List<String> purposes = new ArrayList<>(count);
+        List<ResultReceiver> callbacks = new ArrayList<>(count);
+        long[] timeoutsMillis = new long[count];
+        for(int i = 0; i < count; i++) {
+            DataRequest request = requests.get(i);
+            dataTypes.add(request.getDataType().name());
+            dataTypeExtras.add(request.getDataTypeExtras());
+            pals.add(request.getPalProvider());
+            palExtras.add(request.getPalExtras());
+            purposes.add(request.getPurpose().toString());
+            callbacks.add(request.getReceiver());
+            timeoutsMillis[i] = request.getTimeoutMillis();
+        }
 
         try {
-            sPDMS.requestData(callingPackage, dataType, dataTypeExtras, pal, palExtras, purpose, callback);
+            sPDMS.requestDataBatch(callingPackage, dataTypes, dataTypeExtras, pals, palExtras, purposes, callbacks,
+                                   timeoutsMillis, handle.mToken);
         } catch (RemoteException e) {
             e.printStackTrace();
         }
+        return handle;
     }
 
     /**